@@ -0,0 +1,88 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Пакетные операции против цикла по ключам: putAll заранее расширяет таблицу один раз
+// и берёт замок каждой полосы один раз на пакет, цикл put - по замку и проверке размера
+// на каждый ключ. fresh - загрузка в пустую карту, existing - поверх карты того же размера
+// с другими ключами (она создаётся с запасом, чтобы её собственный ресайз не достался замеру)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"10000", "100000"})
+    int batch;
+
+    @Param({"fresh", "existing"})
+    String target;
+
+    Map<Integer, Integer> source;
+    List<Integer> keys;
+    ShakurMap<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = new HashMap<>(batch * 2);
+        Integer[] array = new Integer[batch];
+        for (int i = 0; i < batch; i++) {
+            array[i] = i;
+            source.put(i, i);
+        }
+        keys = Arrays.asList(array);
+    }
+
+    @Setup(Level.Invocation)
+    public void newMap() {
+        if (target.equals("fresh")) {
+            map = new ShakurMap<>();
+        } else {
+            map = new ShakurMap<>(batch);
+            for (int i = 0; i < batch; i++) {
+                map.put(-i - 1, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public ShakurMap<Integer, Integer> putAll() {
+        map.putAll(source);
+        return map;
+    }
+
+    @Benchmark
+    public ShakurMap<Integer, Integer> putLoop() {
+        for (Map.Entry<Integer, Integer> entry : source.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    @Benchmark
+    public int removeAll() {
+        map.putAll(source);
+        return map.removeAll(keys);
+    }
+
+    @Benchmark
+    public int removeLoop() {
+        map.putAll(source);
+        int removed = 0;
+        for (Integer key : keys) {
+            if (map.remove(key) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
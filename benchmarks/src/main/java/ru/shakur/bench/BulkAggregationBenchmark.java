@@ -0,0 +1,54 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Агрегация по всей карте: последовательно, массовыми операциями с порогом параллельности
+// и через entrySet().parallelStream(), рядом - ConcurrentHashMap.reduceValuesToLong
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkAggregationBenchmark {
+
+    @Param({"1000000"})
+    int size;
+
+    ShakurMap<Integer, Long> map;
+    ConcurrentHashMap<Integer, Long> chm;
+
+    @Setup
+    public void setUp() {
+        map = new ShakurMap<>(size);
+        chm = new ConcurrentHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            map.put(i, (long) i);
+            chm.put(i, (long) i);
+        }
+    }
+
+    @Benchmark
+    public long reduceSequential() {
+        return map.reduceToLong(Long.MAX_VALUE, (key, value) -> value, 0L, Long::sum);
+    }
+
+    @Benchmark
+    public long reduceParallel() {
+        return map.reduceToLong(10_000, (key, value) -> value, 0L, Long::sum);
+    }
+
+    @Benchmark
+    public long parallelStream() {
+        return map.entrySet().parallelStream().mapToLong(entry -> entry.getValue()).sum();
+    }
+
+    @Benchmark
+    public long chmReduceParallel() {
+        return chm.reduceValuesToLong(10_000, value -> value, 0L, Long::sum);
+    }
+}
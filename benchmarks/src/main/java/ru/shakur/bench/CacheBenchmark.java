@@ -0,0 +1,120 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurCache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// ShakurCache против синхронизированного LRU на LinkedHashMap - того самого, которым кэш
+// оборачивали раньше. Трасса - распределение Ципфа по keySpace ключам, ёмкость кэша - cacheSize.
+// Промах загружает значение (put). Доля попаданий: hits / (hits + misses) из вспомогательных
+// счётчиков, пропускная способность - по основному результату; потоки задавать через -t
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int TRACE_SIZE = 1 << 20;
+
+    @Param({"shakur", "lru"})
+    String impl;
+
+    @Param({"0.8", "0.99"})
+    double skew;
+
+    @Param({"1000000"})
+    int keySpace;
+
+    @Param({"10000"})
+    int cacheSize;
+
+    ShakurCache<Integer, Integer> cache;
+    Map<Integer, Integer> lru;
+    int[] trace;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trace = zipfTrace(keySpace, skew, TRACE_SIZE, 42);
+        if (impl.equals("shakur")) {
+            cache = new ShakurCache<>(cacheSize);
+        } else {
+            int capacity = cacheSize;
+            lru = Collections.synchronizedMap(new LinkedHashMap<Integer, Integer>(capacity * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                    return size() > capacity;
+                }
+            });
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int position = ThreadLocalRandom.current().nextInt(TRACE_SIZE);
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Benchmark
+    public Integer getOrLoad(Cursor cursor, Counters counters) {
+        Integer key = trace[cursor.position++ & (TRACE_SIZE - 1)];
+        Integer value = cache != null ? cache.get(key) : lru.get(key);
+        if (value != null) {
+            counters.hits++;
+            return value;
+        }
+        counters.misses++;
+        if (cache != null) {
+            cache.put(key, key);
+        } else {
+            lru.put(key, key);
+        }
+        return key;
+    }
+
+    // ранг 0 - самый частый ключ; номера ключей перемешаны, чтобы частота не зависела от хэша
+    static int[] zipfTrace(int keySpace, double skew, int length, long seed) {
+        double[] cdf = new double[keySpace];
+        double sum = 0;
+        for (int rank = 0; rank < keySpace; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, skew);
+            cdf[rank] = sum;
+        }
+        Random random = new Random(seed);
+        int[] keys = new int[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = i;
+        }
+        for (int i = keySpace - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int rank = java.util.Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[i] = keys[rank >= 0 ? rank : -rank - 1];
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,75 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Все ключи попадают в один бакет: до деревьев поиск был линейным по цепочке
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+
+    @Param({"16", "1000", "10000"})
+    int size;
+
+    ShakurMap<CollidingKey, Integer> map;
+    CollidingKey[] keys;
+
+    @Setup
+    public void setUp() {
+        map = new ShakurMap<>();
+        keys = new CollidingKey[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = new CollidingKey(i);
+            map.put(keys[i], i);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(keys[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public Integer getMissing() {
+        return map.get(new CollidingKey(-1 - ThreadLocalRandom.current().nextInt(size)));
+    }
+
+    @Benchmark
+    public Integer removeAndPut() {
+        CollidingKey key = keys[ThreadLocalRandom.current().nextInt(size)];
+        Integer value = map.remove(key);
+        map.put(key, value);
+        return value;
+    }
+
+    // одинаковый hashCode у всех экземпляров
+    static final class CollidingKey implements Comparable<CollidingKey> {
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 7;
+        }
+
+        @Override
+        public int compareTo(CollidingKey other) {
+            return Integer.compare(id, other.id);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Профиль сравнения с картами JDK: JdkComparisonBenchmark на 1, 2, 4 ... ядрах машины потоков
+// (HashMap - только в однопоточном прогоне) и JdkBulkComparisonBenchmark, всё с -prof gc.
+// В конце печатает сводку: пропускная способность и байты, выделенные на операцию
+// (gc.alloc.rate.norm). Аргументы - обычные опции JMH, например сокращённый прогон:
+// java -cp target/benchmarks.jar ru.shakur.bench.ComparisonRunner -wi 1 -i 3 -p size=1000
+public class ComparisonRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        List<RunResult> results = new ArrayList<>();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLine)
+                    .include(JdkComparisonBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class);
+            if (threads > 1) {
+                options.param("impl", "shakur", "concurrent", "synchronized");
+            }
+            results.addAll(new Runner(options.build()).run());
+            if (threads == cores) {
+                break;
+            }
+        }
+
+        Options bulk = new OptionsBuilder()
+                .parent(commandLine)
+                .include(JdkBulkComparisonBenchmark.class.getSimpleName())
+                .threads(1)
+                .addProfiler(GCProfiler.class)
+                .build();
+        results.addAll(new Runner(bulk).run());
+
+        printSummary(results);
+    }
+
+    private static void printSummary(Collection<RunResult> results) {
+        System.out.println();
+        System.out.printf("%-45s %-13s %-8s %-8s %7s %14s %12s%n",
+                "benchmark", "impl", "keys", "size", "threads", "score", "bytes/op");
+        for (RunResult result : results) {
+            String label = result.getParams().getBenchmark();
+            Result<?> primary = result.getPrimaryResult();
+            Result<?> allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            System.out.printf("%-45s %-13s %-8s %-8s %7d %14s %12s%n",
+                    label.substring(label.lastIndexOf('.', label.lastIndexOf('.') - 1) + 1),
+                    result.getParams().getParam("impl"),
+                    result.getParams().getParam("keyType"),
+                    result.getParams().getParam("size"),
+                    result.getParams().getThreads(),
+                    String.format("%.3f %s", primary.getScore(), primary.getScoreUnit()),
+                    allocation == null ? "-" : String.format("%.1f", allocation.getScore()));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurCache;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Цена сроков жизни: чтение с проверкой срока (и продлением при expireAfterAccess) против кэша
+// без сроков - сроки здесь длинные, чтения попадают. churn пишет ключи из пространства в 10 раз
+// больше начального размера с TTL 200 мс: без сроков кэш растёт до всего пространства,
+// со сроками колесо таймеров освобождает записи по ходу записей и число живых держится
+// около rate * (ttl + шаг колеса ~1 с)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpiryBenchmark {
+
+    @Param({"none", "afterWrite", "afterAccess"})
+    String expiry;
+
+    @Param({"100000"})
+    int size;
+
+    static final Duration CHURN_TTL = Duration.ofMillis(200);
+
+    ShakurCache<Integer, Integer> cache;
+    Integer[] keys;
+
+    @Setup
+    public void setUp() {
+        Duration afterWrite = expiry.equals("none") ? null : Duration.ofMinutes(10);
+        Duration afterAccess = expiry.equals("afterAccess") ? Duration.ofMinutes(5) : null;
+        cache = new ShakurCache<>(ShakurCache.UNBOUNDED, null, afterWrite, afterAccess, System::nanoTime);
+        keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+            cache.put(keys[i], i);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public Integer churn() {
+        int key = ThreadLocalRandom.current().nextInt(10 * size);
+        return expiry.equals("none") ? cache.put(key, key) : cache.put(key, key, CHURN_TTL);
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        System.out.println(" live entries: " + cache.size());
+    }
+}
@@ -0,0 +1,62 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Полный обход живых представлений. Раньше keySet()/entrySet() копировали всё
+// в CopyOnWriteArraySet, и обход карты на миллион элементов занимал минуты
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IterationBenchmark {
+
+    @Param({"ShakurMap", "ConcurrentHashMap"})
+    String impl;
+
+    @Param({"1000000"})
+    int size;
+
+    Map<Integer, Integer> map;
+
+    @Setup
+    public void setUp() {
+        map = impl.equals("ShakurMap") ? new ShakurMap<>(size) : new ConcurrentHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            map.put(i, i);
+        }
+    }
+
+    @Benchmark
+    public long keySet() {
+        long sum = 0;
+        for (Integer key : map.keySet()) {
+            sum += key;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long values() {
+        long sum = 0;
+        for (Integer value : map.values()) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long entrySet() {
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            sum += entry.getKey() ^ entry.getValue();
+        }
+        return sum;
+    }
+}
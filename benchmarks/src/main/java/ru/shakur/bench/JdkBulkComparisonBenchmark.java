@@ -0,0 +1,57 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Операции над всей картой против карт JDK: полный обход entrySet и заполнение с таблицы
+// по умолчанию - серия ресайзов на каждой реализации. Однопоточный замер, поэтому HashMap
+// здесь участвует наравне с остальными
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdkBulkComparisonBenchmark {
+
+    @Param({"shakur", "concurrent", "synchronized", "hash"})
+    String impl;
+
+    @Param({"Integer", "Long", "String"})
+    String keyType;
+
+    @Param({"10000", "1000000"})
+    int size;
+
+    Map<Object, Object> map;
+    Object[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = JdkComparisonBenchmark.keys(keyType, size);
+        map = JdkComparisonBenchmark.newMap(impl);
+        for (Object key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    @Benchmark
+    public int iterate() {
+        int hash = 0;
+        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+            hash += entry.getKey().hashCode() + entry.getValue().hashCode();
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public Map<Object, Object> fill() {
+        Map<Object, Object> filled = JdkComparisonBenchmark.newMap(impl);
+        for (Object key : keys) {
+            filled.put(key, key);
+        }
+        return filled;
+    }
+}
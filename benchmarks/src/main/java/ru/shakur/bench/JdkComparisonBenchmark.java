@@ -0,0 +1,127 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import ru.shakur.ShakurMap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Точечные операции ShakurMap против карт JDK: ConcurrentHashMap, synchronizedMap(HashMap)
+// и голой HashMap как потолка без синхронизации. Число потоков задаётся через -t
+// (HashMap - только -t 1), прогон по всем числам потоков с профилем аллокаций - ComparisonRunner.
+// Размер карты держится постоянным: remove сразу возвращает ключ обратно
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdkComparisonBenchmark {
+
+    @Param({"shakur", "concurrent", "synchronized", "hash"})
+    String impl;
+
+    @Param({"Integer", "Long", "String"})
+    String keyType;
+
+    @Param({"1000", "1000000"})
+    int size;
+
+    Map<Object, Object> map;
+    Object[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        if (impl.equals("hash") && params.getThreads() > 1) {
+            throw new IllegalStateException("HashMap is not thread-safe, run it with -t 1 only");
+        }
+        keys = keys(keyType, size);
+        map = newMap(impl);
+        for (Object key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    private Object randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(size)];
+    }
+
+    @Benchmark
+    public Object get() {
+        return map.get(randomKey());
+    }
+
+    @Benchmark
+    public Object put() {
+        Object key = randomKey();
+        return map.put(key, key);
+    }
+
+    @Benchmark
+    public Object removeAndPut() {
+        Object key = randomKey();
+        Object value = map.remove(key);
+        map.put(key, key);
+        return value;
+    }
+
+    // смешанная нагрузка: 9 чтений на 1 запись
+    @Benchmark
+    public Object readMostly() {
+        return mixed(90);
+    }
+
+    // смешанная нагрузка: поровну чтений и записей
+    @Benchmark
+    public Object readWrite() {
+        return mixed(50);
+    }
+
+    private Object mixed(int readPercent) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Object key = keys[random.nextInt(size)];
+        return random.nextInt(100) < readPercent ? map.get(key) : map.put(key, key);
+    }
+
+    static Map<Object, Object> newMap(String impl) {
+        switch (impl) {
+            case "shakur":
+                return new ShakurMap<>();
+            case "concurrent":
+                return new ConcurrentHashMap<>();
+            case "synchronized":
+                return Collections.synchronizedMap(new HashMap<>());
+            case "hash":
+                return new HashMap<>();
+            default:
+                throw new IllegalArgumentException("Unknown map: " + impl);
+        }
+    }
+
+    // Integer - подряд идущие id, Long - id в старших битах (хэш без перемешивания их теряет),
+    // String - составные строковые ключи
+    static Object[] keys(String keyType, int size) {
+        Object[] keys = new Object[size];
+        for (int i = 0; i < size; i++) {
+            switch (keyType) {
+                case "Integer":
+                    keys[i] = i;
+                    break;
+                case "Long":
+                    keys[i] = (long) i << 32;
+                    break;
+                case "String":
+                    keys[i] = "user:" + i;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown key type: " + keyType);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.TimeUnit;
+
+// Стоимость одной операции для разных типов ключей: индексация маской и перемешивание хэша.
+// sequential - подряд идущие id, shifted - id, различающиеся только старшими битами
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyTypeBenchmark {
+
+    @Param({"Integer", "Long", "String"})
+    String keyType;
+
+    @Param({"sequential", "shifted"})
+    String pattern;
+
+    @Param({"100000"})
+    int size;
+
+    ShakurMap<Object, Object> map;
+    Object[] keys;
+    int next;
+
+    @Setup
+    public void setUp() {
+        keys = new Object[size];
+        for (int i = 0; i < size; i++) {
+            long id = pattern.equals("shifted") ? (long) i << 20 : i;
+            switch (keyType) {
+                case "Integer":
+                    keys[i] = (int) id;
+                    break;
+                case "Long":
+                    keys[i] = id << 12;
+                    break;
+                default:
+                    keys[i] = "user:" + id;
+            }
+        }
+        map = new ShakurMap<>();
+        for (Object key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    private Object nextKey() {
+        Object key = keys[next];
+        next = next + 1 == size ? 0 : next + 1;
+        return key;
+    }
+
+    @Benchmark
+    public Object get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public Object put() {
+        Object key = nextKey();
+        return map.put(key, key);
+    }
+
+    @Benchmark
+    public Object removeAndPut() {
+        Object key = nextKey();
+        Object value = map.remove(key);
+        map.put(key, value);
+        return value;
+    }
+}
@@ -0,0 +1,105 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurLongLongMap;
+import ru.shakur.ShakurLongMap;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.TimeUnit;
+
+// ShakurLongMap / ShakurLongLongMap против ShakurMap<Long, ...>. Память смотреть с профилировщиком:
+// java -jar target/benchmarks.jar LongKeyBenchmark -prof gc
+// gc.alloc.rate.norm у fill* - байт на всю заполненную карту, у get*/put* - байт на операцию
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongKeyBenchmark {
+
+    @Param({"100000"})
+    int size;
+
+    ShakurMap<Long, String> boxed;
+    ShakurLongMap<String> primitive;
+    ShakurMap<Long, Long> boxedCounters;
+    ShakurLongLongMap counters;
+    String value = "value";
+    long next;
+
+    @Setup
+    public void setUp() {
+        boxed = new ShakurMap<>();
+        primitive = new ShakurLongMap<>();
+        boxedCounters = new ShakurMap<>();
+        counters = new ShakurLongLongMap();
+        for (long i = 0; i < size; i++) {
+            long id = i * 1_000_003L;
+            boxed.put(id, value);
+            primitive.put(id, value);
+            boxedCounters.put(id, i);
+            counters.put(id, i);
+        }
+    }
+
+    private long nextId() {
+        long id = next * 1_000_003L;
+        next = next + 1 == size ? 0 : next + 1;
+        return id;
+    }
+
+    @Benchmark
+    public String getBoxed() {
+        return boxed.get(nextId());
+    }
+
+    @Benchmark
+    public String getPrimitive() {
+        return primitive.get(nextId());
+    }
+
+    @Benchmark
+    public String putBoxed() {
+        return boxed.put(nextId(), value);
+    }
+
+    @Benchmark
+    public String putPrimitive() {
+        return primitive.put(nextId(), value);
+    }
+
+    @Benchmark
+    public Long incrementBoxed() {
+        return boxedCounters.merge(nextId(), 1L, Long::sum);
+    }
+
+    @Benchmark
+    public long incrementPrimitive() {
+        return counters.addTo(nextId(), 1L);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public ShakurMap<Long, String> fillBoxed() {
+        ShakurMap<Long, String> map = new ShakurMap<>();
+        for (long i = 0; i < size; i++) {
+            map.put(i, value);
+        }
+        return map;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public ShakurLongMap<String> fillPrimitive() {
+        ShakurLongMap<String> map = new ShakurLongMap<>();
+        for (long i = 0; i < size; i++) {
+            map.put(i, value);
+        }
+        return map;
+    }
+}
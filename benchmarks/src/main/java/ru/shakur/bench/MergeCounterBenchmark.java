@@ -0,0 +1,51 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Подсчёт частот через merge под конкуренцией: hotKeys - число счётчиков, на которые
+// ложатся все потоки. Запуск: java -jar target/benchmarks.jar MergeCounterBenchmark -t 4
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeCounterBenchmark {
+
+    @Param({"ShakurMap", "ConcurrentHashMap"})
+    String impl;
+
+    @Param({"16", "100000"})
+    int hotKeys;
+
+    ConcurrentMap<Integer, Integer> counters;
+    Integer[] keys;
+
+    @Setup
+    public void setUp() {
+        counters = impl.equals("ShakurMap") ? new ShakurMap<>() : new ConcurrentHashMap<>();
+        keys = new Integer[hotKeys];
+        for (int i = 0; i < hotKeys; i++) {
+            keys[i] = i;
+        }
+    }
+
+    @Benchmark
+    public Integer merge() {
+        return counters.merge(keys[ThreadLocalRandom.current().nextInt(hotKeys)], 1, Integer::sum);
+    }
+
+    // то, что делали умолчания Map до атомарного merge: чтение и запись под разными блокировками
+    @Benchmark
+    public Integer getThenPut() {
+        Integer key = keys[ThreadLocalRandom.current().nextInt(hotKeys)];
+        Integer old = counters.get(key);
+        return counters.put(key, old == null ? 1 : old + 1);
+    }
+}
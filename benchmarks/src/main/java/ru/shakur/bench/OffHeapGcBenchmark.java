@@ -0,0 +1,76 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurOffHeapMap;
+import ru.shakur.ShakurSerializer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Сессионные блобы на куче (ShakurMap<String, byte[]>) и вне кучи (ShakurOffHeapMap).
+// fullGc - длительность полной сборки при живой карте: у кучи растёт с объёмом данных,
+// вне кучи остаётся плоской. churn - перезапись блобов, нагрузку на сборщик смотреть через -prof gc
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-XX:MaxDirectMemorySize=3g"})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OffHeapGcBenchmark {
+
+    @Param({"heap", "offheap"})
+    String impl;
+
+    @Param({"10000", "500000"})
+    int entries;
+
+    @Param({"1024"})
+    int blobSize;
+
+    ShakurMap<String, byte[]> heap;
+    ShakurOffHeapMap<String, byte[]> offHeap;
+    String[] keys;
+
+    @Setup
+    public void setUp() {
+        keys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "session-" + i;
+        }
+        if (impl.equals("heap")) {
+            heap = new ShakurMap<>(entries);
+            for (String key : keys) {
+                heap.put(key, new byte[blobSize]);
+            }
+        } else {
+            offHeap = new ShakurOffHeapMap<>(ShakurSerializer.STRING, ShakurSerializer.BYTES);
+            for (String key : keys) {
+                offHeap.put(key, new byte[blobSize]);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object churn() {
+        String key = keys[ThreadLocalRandom.current().nextInt(entries)];
+        byte[] blob = new byte[blobSize];
+        return heap != null ? heap.put(key, blob) : offHeap.put(key, blob);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] get() {
+        String key = keys[ThreadLocalRandom.current().nextInt(entries)];
+        return heap != null ? heap.get(key) : offHeap.get(key);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public void fullGc() {
+        System.gc();
+    }
+}
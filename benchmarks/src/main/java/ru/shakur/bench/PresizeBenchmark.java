@@ -0,0 +1,58 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Загрузка известного числа элементов: таблица по умолчанию (серия ресайзов)
+// против таблицы, заранее рассчитанной через конструктор или copyOf
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresizeBenchmark {
+
+    @Param({"10000", "1000000"})
+    int size;
+
+    Integer[] keys;
+    Map<Integer, Integer> source;
+
+    @Setup
+    public void setUp() {
+        keys = new Integer[size];
+        source = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+            source.put(i, i);
+        }
+    }
+
+    @Benchmark
+    public ShakurMap<Integer, Integer> loadDefault() {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        for (Integer key : keys) {
+            map.put(key, key);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public ShakurMap<Integer, Integer> loadPresized() {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>(size);
+        for (Integer key : keys) {
+            map.put(key, key);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public ShakurMap<Integer, Integer> copyOf() {
+        return ShakurMap.copyOf(source);
+    }
+}
@@ -0,0 +1,47 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Масштабирование чтения по ядрам: запускать с разным числом потоков,
+// например: java -jar target/benchmarks.jar ReadScalingBenchmark -t 1, затем -t 2, -t 4 ... -t N
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadScalingBenchmark {
+
+    @Param({"1000", "1000000"})
+    int size;
+
+    ShakurMap<Integer, Integer> map;
+
+    @Setup
+    public void setUp() {
+        map = new ShakurMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(i, i);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return map.containsKey(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    // чтение на горячем бакете: все потоки бьют в один и тот же ключ
+    @Benchmark
+    public Integer getHotKey() {
+        return map.get(0);
+    }
+}
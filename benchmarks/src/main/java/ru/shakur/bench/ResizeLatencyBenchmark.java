@@ -0,0 +1,68 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.TimeUnit;
+
+// Хвосты задержки put на растущей карте: в режиме SampleTime видны p99.9/p99.99 и max,
+// куда попадают операции, застрявшие на ресайзе. Карта растёт до LIMIT и начинается заново
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResizeLatencyBenchmark {
+
+    static final int LIMIT = 4_000_000;
+
+    ShakurMap<Integer, Integer> map;
+    int key;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        map = new ShakurMap<>();
+        key = 0;
+    }
+
+    @Benchmark
+    public Integer putGrowing() {
+        if (key == LIMIT) {
+            setUp();
+        }
+        int k = key++;
+        return map.put(k, k);
+    }
+
+    // чтения идут параллельно с заполнением и не должны ждать ресайз
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Integer writer(WriterState state) {
+        if (state.key == LIMIT) {
+            state.setUp();
+        }
+        int k = state.key++;
+        return state.map.put(k, k);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Integer reader(WriterState state) {
+        return state.map.get(state.key >>> 1);
+    }
+
+    @State(Scope.Group)
+    public static class WriterState {
+        ShakurMap<Integer, Integer> map;
+        volatile int key;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            map = new ShakurMap<>();
+            key = 0;
+        }
+    }
+}
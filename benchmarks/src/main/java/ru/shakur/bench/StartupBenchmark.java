@@ -0,0 +1,71 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurSerializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Тёплый рестарт: пересборка карты серией put против загрузки снимка через loadFrom.
+// rebuildWithPut берёт готовые ключи из памяти - нижняя граница для любой пересборки;
+// rebuildFromSource ещё и создаёт ключи и значения заново, как при чтении из внешнего источника
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StartupBenchmark {
+
+    @Param({"1000000"})
+    int size;
+
+    String[] keys;
+    long[] values;
+    Path snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        keys = new String[size];
+        values = new long[size];
+        ShakurMap<String, Long> map = new ShakurMap<>();
+        for (int i = 0; i < size; i++) {
+            keys[i] = "user:" + i;
+            values[i] = i * 31L;
+            map.put(keys[i], values[i]);
+        }
+        snapshot = Files.createTempFile("shakur", ".snapshot");
+        map.snapshotTo(snapshot, ShakurSerializer.STRING, ShakurSerializer.LONG);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public ShakurMap<String, Long> rebuildWithPut() {
+        ShakurMap<String, Long> map = new ShakurMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(keys[i], values[i]);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public ShakurMap<String, Long> rebuildFromSource() {
+        ShakurMap<String, Long> map = new ShakurMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put("user:" + i, i * 31L);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public ShakurMap<String, Long> loadSnapshot() throws IOException {
+        return ShakurMap.loadFrom(snapshot, ShakurSerializer.STRING, ShakurSerializer.LONG);
+    }
+}
@@ -0,0 +1,77 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Цена обратного индекса значений: put и remove с индексом против карты без него
+// и containsValue - поиск в индексе против обхода всей карты.
+// distinctValues задаёт, сколько ключей в среднем делят одно значение
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueIndexBenchmark {
+
+    @Param({"false", "true"})
+    boolean indexed;
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"1000", "100000"})
+    int distinctValues;
+
+    ShakurMap<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = new ShakurMap<>(keys);
+        for (int i = 0; i < keys; i++) {
+            map.put(i, i % distinctValues);
+        }
+        if (indexed) {
+            map.enableValueIndex();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer put1() {
+        return put();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer put8() {
+        return put();
+    }
+
+    // удаление с возвратом, чтобы размер карты и индекса не менялся
+    @Benchmark
+    @Threads(8)
+    public Integer removeAndPut8() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int key = random.nextInt(keys);
+        Integer value = map.remove(key);
+        if (value != null) {
+            map.put(key, value);
+        }
+        return value;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean containsValue() {
+        return map.containsValue(ThreadLocalRandom.current().nextInt(distinctValues * 2));
+    }
+
+    private Integer put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return map.put(random.nextInt(keys), random.nextInt(distinctValues));
+    }
+}
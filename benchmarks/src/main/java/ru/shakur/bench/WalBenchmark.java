@@ -0,0 +1,79 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurSerializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Пропускная способность put в режиме durability по политикам fsync против карты без журнала.
+// При ALWAYS с ростом числа потоков растёт число записей на один fsync (group commit),
+// поэтому пропускная способность должна расти, а не упираться в один fsync на операцию
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalBenchmark {
+
+    @Param({"memory", "NONE", "INTERVAL", "ALWAYS"})
+    String policy;
+
+    @Param({"10000"})
+    int keys;
+
+    ShakurMap<String, Long> map;
+    String[] keyPool;
+    Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        keyPool = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyPool[i] = "key" + i;
+        }
+        if (policy.equals("memory")) {
+            map = new ShakurMap<>();
+        } else {
+            directory = Files.createTempDirectory("shakur-wal");
+            map = ShakurMap.openDurable(directory, ShakurSerializer.STRING, ShakurSerializer.LONG,
+                    ShakurMap.SyncPolicy.valueOf(policy), 10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        map.closeLog();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Long put1() {
+        return put();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Long put8() {
+        return put();
+    }
+
+    private Long put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return map.put(keyPool[random.nextInt(keys)], random.nextLong());
+    }
+}
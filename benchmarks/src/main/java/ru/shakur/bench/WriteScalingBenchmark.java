@@ -0,0 +1,75 @@
+package ru.shakur.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.shakur.ShakurMap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Масштабирование записи: запускать с -t 1, -t 2 ... -t N.
+// Каждый поток вставляет и удаляет свои ключи, размер карты стоит на месте,
+// поэтому в замер попадают блокировки полос и счётчик размера, но не ресайз.
+// counterAtomic/counterAdder показывают сам счётчик: одна строка кэша против полос
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteScalingBenchmark {
+
+    static final int KEYS_PER_THREAD = 1 << 12;
+
+    ShakurMap<Integer, Integer> map;
+    final AtomicInteger atomicCounter = new AtomicInteger();
+    final LongAdder adderCounter = new LongAdder();
+    final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        map = new ShakurMap<>();
+        for (int i = 0; i < 64 * KEYS_PER_THREAD; i += 2) {
+            map.put(i, i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        int base;
+        int next;
+
+        @Setup
+        public void setUp(WriteScalingBenchmark benchmark) {
+            base = (benchmark.threadIds.getAndIncrement() % 64) * KEYS_PER_THREAD;
+        }
+
+        int nextKey() {
+            // нечётные ключи: в карте их нет, put всегда вставляет новый элемент
+            next = (next + 2) & (KEYS_PER_THREAD - 1);
+            return base + next + 1;
+        }
+    }
+
+    @Benchmark
+    public Integer putRemove(ThreadKeys keys) {
+        int key = keys.nextKey();
+        map.put(key, key);
+        return map.remove(key);
+    }
+
+    @Benchmark
+    public int counterAtomic() {
+        return atomicCounter.incrementAndGet();
+    }
+
+    @Benchmark
+    public void counterAdder() {
+        adderCounter.increment();
+    }
+
+    @Benchmark
+    public long sizeRead() {
+        return map.mappingCount();
+    }
+}
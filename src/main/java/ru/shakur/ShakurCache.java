@@ -0,0 +1,819 @@
+package ru.shakur;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntBiFunction;
+
+// Ограниченный кэш поверх ShakurMap: данные лежат в обычной карте (ключ -> Node), а порядок
+// вытеснения ведёт политика W-TinyLFU под отдельной блокировкой evictionLock.
+// Карта отвечает за конкурентный доступ, политика - только за то, кого выселить:
+// - окно (1% ёмкости) - LRU для новых записей, гасит всплески;
+// - основная часть - сегментированный LRU: пробный сегмент и защищённый (80% основной);
+// - при переполнении кандидат из окна сравнивается с жертвой из пробного сегмента
+//   по частоте обращений (count-min sketch с 4-битными счётчиками и старением), выживает частый.
+// get не берёт блокировок: обращение кладётся в полосатый кольцевой буфер с потерями,
+// буферы разбирает тот, кто захватил evictionLock. Записи идут через очередь задач,
+// которую разбирает писатель, сумевший взять блокировку без ожидания.
+// Срок жизни записей (после записи, после обращения или свой у каждой записи) проверяется при
+// чтении по полю узла, без блокировок: просроченная запись сразу считается отсутствующей.
+// Освобождает такие записи иерархическое колесо таймеров, которое проворачивается тем же
+// разбором буферов - без обхода всей таблицы, с амортизированной O(1) на запись
+public class ShakurCache<K, V> {
+
+    public static final long UNBOUNDED = Long.MAX_VALUE; // без ограничения размера, только срок жизни
+
+    private static final double PERCENT_MAIN = 0.99; // окно - 1% ёмкости
+    private static final double PERCENT_MAIN_PROTECTED = 0.80; // защищённый сегмент - 80% основной части
+    private static final int NCPU = Runtime.getRuntime().availableProcessors();
+    private static final int READ_BUFFER_STRIPES = Math.min(64, ShakurMap.tableSizeFor(4L * NCPU));
+    private static final int WRITE_BUFFER_MAX = 128 * ShakurMap.tableSizeFor(NCPU); // дальше писатели ждут разбора
+    private static final int WRITE_DRAIN_THRESHOLD = 16; // столько задач записи копится до разбора
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+    private static final long NEVER = Long.MAX_VALUE; // срок записи без истечения
+
+    private final ShakurMap<K, Node<K, V>> data;
+    private final ToIntBiFunction<? super K, ? super V> weigher; // null - каждая запись весит 1
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final long expireAfterWriteNanos; // 0 - не истекает
+    private final long expireAfterAccessNanos;
+    private final LongSupplier ticker; // источник времени в наносекундах, как System.nanoTime
+
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    // состояние политики: только под evictionLock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AccessOrderQueue<K, V> window = new AccessOrderQueue<>();
+    private final AccessOrderQueue<K, V> probation = new AccessOrderQueue<>();
+    private final AccessOrderQueue<K, V> protectedQueue = new AccessOrderQueue<>();
+    private final FrequencySketch sketch;
+    private final TimerWheel<K, V> timerWheel;
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long weightedSize; // пишется под evictionLock, читается без него
+
+    // Ограничение по числу записей
+    public ShakurCache(long maximumSize) {
+        this(maximumSize, null);
+    }
+
+    // Ограничение по суммарному весу; weigher вызывается при каждой записи и не должен возвращать отрицательный вес
+    public ShakurCache(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+        this(maximumWeight, weigher, null, null, System::nanoTime);
+    }
+
+    // Ограничение по числу записей и срок жизни; null - соответствующий срок не задан
+    public ShakurCache(long maximumSize, Duration expireAfterWrite, Duration expireAfterAccess) {
+        this(maximumSize, null, expireAfterWrite, expireAfterAccess, System::nanoTime);
+    }
+
+    // Запись истекает, когда наступит раньшее из: expireAfterWrite после последней записи,
+    // expireAfterAccess после последнего обращения. ticker подменяется в тестах
+    @SuppressWarnings("unchecked")
+    public ShakurCache(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher,
+                       Duration expireAfterWrite, Duration expireAfterAccess, LongSupplier ticker) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("Illegal maximum: " + maximumWeight);
+        }
+        this.weigher = weigher;
+        this.maximum = maximumWeight;
+        this.windowMaximum = maximumWeight - (long) (PERCENT_MAIN * maximumWeight);
+        this.protectedMaximum = (long) (PERCENT_MAIN_PROTECTED * (maximumWeight - windowMaximum));
+        this.expireAfterWriteNanos = toNanos(expireAfterWrite);
+        this.expireAfterAccessNanos = toNanos(expireAfterAccess);
+        this.ticker = Objects.requireNonNull(ticker);
+        // при ограничении по весу или без ограничения число записей заранее неизвестно,
+        // таблица и счётчики частот подстроятся при росте
+        int expected = (int) Math.min(weigher == null ? maximumWeight : 1024, 1 << 16);
+        this.data = new ShakurMap<>(expected);
+        this.sketch = new FrequencySketch(expected);
+        this.timerWheel = new TimerWheel<>(ticker.getAsLong());
+        this.readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    private static long toNanos(Duration duration) {
+        if (duration == null) {
+            return 0;
+        }
+        if (duration.isNegative() || duration.isZero()) {
+            throw new IllegalArgumentException("Illegal expiration: " + duration);
+        }
+        return duration.toNanos();
+    }
+
+    // Чтение без блокировок: срок сверяется с полем узла, продление после обращения - обычная
+    // volatile-запись в узел, перестановку в колесе таймеров сделает разбор буфера обращений
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.expiresAt != NEVER) {
+            long now = ticker.getAsLong();
+            if (node.expiresAt - now <= 0) {
+                recordRead(node); // чтения тоже поворачивают колесо, когда заполняют буфер
+                return null;
+            }
+            if (expireAfterAccessNanos != 0) {
+                node.expiresAt = Math.min(node.writeDeadline, now + expireAfterAccessNanos);
+            }
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    public boolean containsKey(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null && !isExpired(node);
+    }
+
+    private boolean isExpired(Node<K, V> node) {
+        return node.expiresAt != NEVER && node.expiresAt - ticker.getAsLong() <= 0;
+    }
+
+    public V put(K key, V value) {
+        return put(key, value, expireAfterWriteNanos);
+    }
+
+    // Запись со своим сроком жизни вместо expireAfterWrite
+    public V put(K key, V value, Duration timeToLive) {
+        return put(key, value, toNanos(Objects.requireNonNull(timeToLive)));
+    }
+
+    private V put(K key, V value, long timeToLiveNanos) {
+        int weight = weigh(key, value);
+        // в кэш обычно кладут после промаха, поэтому сразу вставка, без предварительного поиска
+        Node<K, V> fresh = new Node<>(key, value, weight);
+        setDeadlines(fresh, timeToLiveNanos);
+        while (true) {
+            Node<K, V> node = data.putIfAbsent(key, fresh);
+            if (node == null) {
+                afterWrite(() -> onAdd(fresh));
+                return null;
+            }
+            // значение меняется на месте; узел, уже удалённый из карты, не годится - повтор
+            boolean expired = isExpired(node);
+            V oldValue = node.swap(value, weight);
+            setDeadlines(node, timeToLiveNanos);
+            if (node.alive) {
+                Node<K, V> updated = node;
+                afterWrite(() -> onUpdate(updated));
+                return expired ? null : oldValue;
+            }
+        }
+    }
+
+    private void setDeadlines(Node<K, V> node, long timeToLiveNanos) {
+        if (timeToLiveNanos == 0 && expireAfterAccessNanos == 0) {
+            node.writeDeadline = NEVER;
+            node.expiresAt = NEVER;
+            return;
+        }
+        long now = ticker.getAsLong();
+        long writeDeadline = timeToLiveNanos == 0 ? NEVER : now + timeToLiveNanos;
+        node.writeDeadline = writeDeadline;
+        node.expiresAt = expireAfterAccessNanos == 0 ? writeDeadline
+                : Math.min(writeDeadline, now + expireAfterAccessNanos);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        int weight = weigh(key, value);
+        Node<K, V> fresh = new Node<>(key, value, weight);
+        setDeadlines(fresh, expireAfterWriteNanos);
+        while (true) {
+            Node<K, V> node = data.putIfAbsent(key, fresh);
+            if (node == null) {
+                afterWrite(() -> onAdd(fresh));
+                return null;
+            }
+            if (!isExpired(node)) {
+                recordRead(node);
+                return node.value;
+            }
+            // просроченная запись считается отсутствующей: подменяем её новой
+            if (data.replace(key, node, fresh)) {
+                node.alive = false;
+                afterWrite(() -> onRemove(node));
+                afterWrite(() -> onAdd(fresh));
+                return null;
+            }
+        }
+    }
+
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        node.alive = false;
+        afterWrite(() -> onRemove(node));
+        return isExpired(node) ? null : node.value;
+    }
+
+    // Удаляет всё, что успело попасть в политику; записи, идущие параллельно, могут остаться
+    public void clear() {
+        evictionLock.lock();
+        try {
+            maintenance();
+            while (window.head != null) {
+                evict(window.head);
+            }
+            while (probation.head != null) {
+                evict(probation.head);
+            }
+            while (protectedQueue.head != null) {
+                evict(protectedQueue.head);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Число записей; между разборами буферов может ненадолго превышать ограничение
+    // и включать просроченные записи, которые колесо таймеров ещё не освободило
+    public int size() {
+        return data.size();
+    }
+
+    // Суммарный вес записей, учтённых политикой
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    public long maximum() {
+        return maximum;
+    }
+
+    // Разбирает накопленные буферы, освобождает просроченное и выселяет лишнее прямо сейчас
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        int weight = weigher.applyAsInt(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight " + weight + " for key " + key);
+        }
+        return weight;
+    }
+
+    private void recordRead(Node<K, V> node) {
+        int probe = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        ReadBuffer<K, V> buffer = readBuffers[(probe >>> 16) & (readBuffers.length - 1)];
+        if (!buffer.offer(node) && evictionLock.tryLock()) {
+            // буфер полон: разбираем сами, если никто другой этим уже не занят
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Писатель не ждёт политику: задача встаёт в очередь, разбирает её тот, кто взял блокировку.
+    // После снятия блокировки очередь проверяется снова - задача, добавленная, пока разбирающий
+    // заканчивал работу, не зависнет до следующей записи
+    private void afterWrite(Runnable task) {
+        writeBuffer.offer(task);
+        int pending = pendingWrites.incrementAndGet();
+        if (pending > WRITE_BUFFER_MAX) {
+            // политика не успевает: притормаживаем писателей, чтобы кэш не рос без предела
+            evictionLock.lock();
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        if (pending < WRITE_DRAIN_THRESHOLD) {
+            return; // разбор раз в несколько записей: блокировка и проход по буферам делятся на пачку
+        }
+        while (pendingWrites.get() >= WRITE_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // под evictionLock
+    private void maintenance() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drain(this);
+        }
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            pendingWrites.decrementAndGet();
+            task.run();
+        }
+        timerWheel.advance(this, ticker.getAsLong()); // если шаг колеса не сменился, поворот сразу завершается
+        evictEntries();
+    }
+
+    private void onAdd(Node<K, V> node) {
+        if (!node.alive) {
+            return; // удалён раньше, чем политика узнала о нём
+        }
+        long weight = node.weight;
+        node.policyWeight = weight;
+        node.queue = WINDOW;
+        node.linked = true;
+        window.addLast(node);
+        windowWeight += weight;
+        weightedSize += weight;
+        if (weigher != null || maximum > Integer.MAX_VALUE) {
+            sketch.ensureCapacity(data.size());
+        }
+        sketch.increment(node.key);
+        if (node.expiresAt != NEVER) {
+            timerWheel.schedule(node);
+        }
+    }
+
+    private void onUpdate(Node<K, V> node) {
+        if (!node.linked) {
+            return; // onAdd ещё впереди и возьмёт новый вес, либо узел уже выселен
+        }
+        long delta = node.weight - node.policyWeight;
+        node.policyWeight += delta;
+        weightedSize += delta;
+        if (node.queue == WINDOW) {
+            windowWeight += delta;
+        } else if (node.queue == PROTECTED) {
+            protectedWeight += delta;
+        }
+        reschedule(node);
+        onAccess(node);
+    }
+
+    // срок узла мог измениться после записи или обращения
+    private void reschedule(Node<K, V> node) {
+        if (node.expiresAt == NEVER) {
+            timerWheel.deschedule(node);
+        } else {
+            timerWheel.reschedule(node);
+        }
+    }
+
+    private void onRemove(Node<K, V> node) {
+        if (node.linked) {
+            unlink(node);
+        }
+    }
+
+    void onAccess(Node<K, V> node) {
+        if (!node.linked) {
+            return;
+        }
+        sketch.increment(node.key);
+        if (expireAfterAccessNanos != 0) {
+            reschedule(node);
+        }
+        if (node.queue == WINDOW) {
+            window.moveToLast(node);
+        } else if (node.queue == PROBATION) {
+            // повторное обращение переводит запись в защищённый сегмент
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.policyWeight;
+            while (protectedWeight > protectedMaximum && protectedQueue.head != node) {
+                Node<K, V> demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                protectedWeight -= demoted.policyWeight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedQueue.moveToLast(node);
+        }
+    }
+
+    // Окно сбрасывает старые записи в хвост пробного сегмента - это кандидаты. Пока кэш переполнен,
+    // очередной кандидат сравнивается с жертвой из головы пробного сегмента: остаётся тот,
+    // к кому чаще обращались. Поэтому однократный проход по новым ключам не вымывает горячие
+    private void evictEntries() {
+        Node<K, V> candidate = null;
+        while (windowWeight > windowMaximum && window.head != null) {
+            Node<K, V> node = window.head;
+            window.remove(node);
+            windowWeight -= node.policyWeight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (weightedSize > maximum) {
+            Node<K, V> victim = probation.head;
+            if (candidate == null || victim == null || victim == candidate
+                    || candidate.policyWeight > maximum || victim.policyWeight > maximum) {
+                Node<K, V> evicted = candidate != null && candidate.policyWeight > maximum ? candidate
+                        : victim != null ? victim
+                        : protectedQueue.head != null ? protectedQueue.head
+                        : window.head;
+                if (evicted == null) {
+                    break;
+                }
+                if (evicted == candidate) {
+                    candidate = candidate.next;
+                }
+                evict(evicted);
+                continue;
+            }
+
+            Node<K, V> next = candidate.next;
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+            candidate = next;
+        }
+    }
+
+    // Вызывается колесом таймеров для узла, чей срок истёк
+    void expire(Node<K, V> node) {
+        if (node.linked) {
+            evict(node);
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        // узел мог быть уже удалён пользователем - тогда его задача удаления ещё в очереди
+        if (data.remove(node.key, node)) {
+            node.alive = false;
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            windowWeight -= node.policyWeight;
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else {
+            protectedQueue.remove(node);
+            protectedWeight -= node.policyWeight;
+        }
+        weightedSize -= node.policyWeight;
+        node.linked = false;
+        timerWheel.deschedule(node);
+    }
+
+    // Значение кэша: сама запись карты данных. prev/next/queue/policyWeight/linked - состояние
+    // политики, меняется только под evictionLock
+    static final class Node<K, V> {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(Node.class, "value", Object.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final K key;
+        volatile V value;
+        volatile int weight;
+        volatile boolean alive = true; // false - узел удалён из карты данных
+        volatile long expiresAt = NEVER; // момент истечения по ticker
+        volatile long writeDeadline = NEVER; // предел, который обращение не продлевает
+        long policyWeight; // вес, учтённый политикой
+        byte queue;
+        boolean linked;
+        Node<K, V> prev;
+        Node<K, V> next;
+        Node<K, V> prevInTimer; // ячейка колеса таймеров - кольцевой список со стражем
+        Node<K, V> nextInTimer;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        @SuppressWarnings("unchecked")
+        V swap(V newValue, int newWeight) {
+            weight = newWeight;
+            return (V) VALUE.getAndSet(this, newValue);
+        }
+    }
+
+    // Двусвязный список в порядке обращений: голова - самая давняя запись
+    static final class AccessOrderQueue<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    // Иерархическое колесо таймеров: уровни с ячейками по ~1 с, ~1 мин, ~1 ч, ~1 сутки и переполнение.
+    // Узел кладётся в ячейку уровня, шаг которого соответствует оставшемуся сроку. При повороте
+    // ячейки пройденных шагов разбираются: истёкшие узлы освобождаются, остальные (срок продлён
+    // или уровень грубый) переезжают ниже. Узел переезжает не больше числа уровней раз,
+    // поэтому освобождение стоит амортизированную O(1). Только под evictionLock
+    static final class TimerWheel<K, V> {
+        static final int[] BUCKETS = {64, 64, 32, 4, 1};
+        static final long[] SPANS = {
+                Long.highestOneBit(TimeUnit.SECONDS.toNanos(1)) << 1, // 1.07 с
+                Long.highestOneBit(TimeUnit.MINUTES.toNanos(1)) << 1, // 1.14 мин
+                Long.highestOneBit(TimeUnit.HOURS.toNanos(1)) << 1, // 1.22 ч
+                Long.highestOneBit(TimeUnit.DAYS.toNanos(1)) << 1, // 1.63 суток
+                BUCKETS[3] * (Long.highestOneBit(TimeUnit.DAYS.toNanos(1)) << 1), // 6.5 суток
+        };
+        static final long[] SHIFT = {
+                Long.numberOfTrailingZeros(SPANS[0]),
+                Long.numberOfTrailingZeros(SPANS[1]),
+                Long.numberOfTrailingZeros(SPANS[2]),
+                Long.numberOfTrailingZeros(SPANS[3]),
+                Long.numberOfTrailingZeros(SPANS[4]),
+        };
+
+        final Node<K, V>[][] wheel;
+        long nanos; // время последнего поворота
+
+        @SuppressWarnings("unchecked")
+        TimerWheel(long now) {
+            nanos = now;
+            wheel = new Node[BUCKETS.length][];
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new Node[BUCKETS[i]];
+                for (int j = 0; j < wheel[i].length; j++) {
+                    Node<K, V> sentinel = new Node<>(null, null, 0);
+                    sentinel.prevInTimer = sentinel;
+                    sentinel.nextInTimer = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+        }
+
+        void schedule(Node<K, V> node) {
+            Node<K, V> sentinel = findBucket(node.expiresAt);
+            node.prevInTimer = sentinel.prevInTimer;
+            node.nextInTimer = sentinel;
+            sentinel.prevInTimer.nextInTimer = node;
+            sentinel.prevInTimer = node;
+        }
+
+        void reschedule(Node<K, V> node) {
+            if (node.nextInTimer != null) {
+                unlink(node);
+            }
+            schedule(node);
+        }
+
+        void deschedule(Node<K, V> node) {
+            if (node.nextInTimer != null) {
+                unlink(node);
+            }
+        }
+
+        private void unlink(Node<K, V> node) {
+            node.prevInTimer.nextInTimer = node.nextInTimer;
+            node.nextInTimer.prevInTimer = node.prevInTimer;
+            node.prevInTimer = null;
+            node.nextInTimer = null;
+        }
+
+        // срок уже прошёл - ячейка текущего шага, она разберётся при следующем повороте
+        private Node<K, V> findBucket(long time) {
+            long duration = time - nanos;
+            if (duration < 0) {
+                time = nanos;
+                duration = 0;
+            }
+            for (int i = 0; i < SHIFT.length - 1; i++) {
+                if (duration < SPANS[i + 1]) {
+                    long ticks = time >>> SHIFT[i];
+                    return wheel[i][(int) ticks & (wheel[i].length - 1)];
+                }
+            }
+            return wheel[wheel.length - 1][0];
+        }
+
+        void advance(ShakurCache<K, V> cache, long now) {
+            long previous = nanos;
+            nanos = now;
+            for (int i = 0; i < SHIFT.length; i++) {
+                long previousTicks = previous >>> SHIFT[i];
+                long delta = (now >>> SHIFT[i]) - previousTicks;
+                if (delta <= 0) {
+                    break; // грубые уровни не сдвинулись, раз не сдвинулся этот
+                }
+                expire(cache, i, previousTicks, delta);
+            }
+        }
+
+        private void expire(ShakurCache<K, V> cache, int level, long previousTicks, long delta) {
+            Node<K, V>[] buckets = wheel[level];
+            int mask = buckets.length - 1;
+            int steps = (int) Math.min(1 + delta, buckets.length);
+            int start = (int) (previousTicks & mask);
+            for (int i = start; i < start + steps; i++) {
+                Node<K, V> sentinel = buckets[i & mask];
+                Node<K, V> node = sentinel.nextInTimer;
+                sentinel.prevInTimer = sentinel;
+                sentinel.nextInTimer = sentinel;
+                while (node != sentinel) {
+                    Node<K, V> next = node.nextInTimer;
+                    node.prevInTimer = null;
+                    node.nextInTimer = null;
+                    if (node.expiresAt - nanos <= 0) {
+                        cache.expire(node);
+                    } else if (node.expiresAt != NEVER) {
+                        schedule(node);
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    // Кольцевой буфер обращений одной полосы. Потери допустимы: при переполнении или гонке
+    // за слот обращение просто не учитывается, статистика частот от этого почти не меняется
+    static final class ReadBuffer<K, V> {
+        static final int SIZE = 16;
+        static final int MASK = SIZE - 1;
+
+        final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        volatile long readCounter; // двигает только разбирающий под evictionLock
+
+        // false - буфер полон, пора разбирать
+        boolean offer(Node<K, V> node) {
+            long tail = writeCounter.get();
+            if (tail - readCounter >= SIZE) {
+                return false;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) tail & MASK, node);
+            }
+            return true;
+        }
+
+        void drain(ShakurCache<K, V> cache) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) head & MASK;
+                Node<K, V> node = slots.get(index);
+                if (node == null) {
+                    break; // слот занят, но ещё не записан - доберём в следующий раз
+                }
+                slots.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            readCounter = head;
+        }
+    }
+
+    // Count-min sketch: 4 счётчика по 4 бита на ключ, 16 счётчиков в одном long.
+    // После 10 * ёмкость увеличений все счётчики делятся пополам - старые частоты забываются
+    static final class FrequencySketch {
+        private static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+
+        private long[] table;
+        private int tableMask;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedSize) {
+            allocate(expectedSize);
+        }
+
+        // при заметном росте числа записей таблица пересоздаётся; накопленные частоты теряются
+        void ensureCapacity(long expectedSize) {
+            if (expectedSize > table.length && table.length < (1 << 30)) {
+                allocate(expectedSize);
+            }
+        }
+
+        private void allocate(long expectedSize) {
+            int capacity = ShakurMap.tableSizeFor(Math.max(16, Math.min(expectedSize, 1 << 30)));
+            table = new long[capacity];
+            tableMask = capacity - 1;
+            sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+            additions = 0;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(Objects.hashCode(key));
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(Objects.hashCode(key));
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xFL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            int odd = 0;
+            for (int i = 0; i < table.length; i++) {
+                odd += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions = (additions - (odd >>> 2)) >>> 1;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEED[i]) * SEED[i];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.shakur;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Лента изменений ShakurMap: put, remove и clear публикуют записи в кольцевой буфер на
+// capacity последних изменений. Писатель берёт номер записи одним getAndIncrement и кладёт
+// запись в слот номер & (capacity - 1) без блокировок; публикация идёт под той же блокировкой,
+// что и само изменение, поэтому записи одного ключа идут в ленте в порядке изменений карты.
+// Подписка - только курсор читателя: лента не знает о подписчиках и никогда не ждёт их.
+// Отставший больше чем на capacity записей подписчик получает запись OVERFLOW - часть
+// изменений потеряна, копию нужно перечитать из карты (например, через snapshot()).
+// Записи несут полное состояние ключа, поэтому применять их поверх более свежей копии можно:
+// копия сойдётся с картой, когда подписчик дочитает ленту
+public final class ShakurChangeFeed<K, V> {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final AtomicReferenceArray<Change<K, V>> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // номер следующей записи
+
+    ShakurChangeFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        int size = ShakurMap.tableSizeFor(capacity);
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    // Слот может оказаться уже занят более новой записью, если писатель застрял между взятием
+    // номера и записью дольше, чем длится целый круг буфера. Тогда его запись пропадает,
+    // а читатели на её номере увидят переполнение
+    void publish(Change.Type type, K key, V value) {
+        long sequence = tail.getAndIncrement();
+        Change<K, V> change = new Change<>(sequence, type, key, value);
+        int index = (int) sequence & mask;
+        while (true) {
+            Change<K, V> current = ring.get(index);
+            if (current != null && current.sequence > sequence) {
+                return;
+            }
+            if (ring.compareAndSet(index, current, change)) {
+                return;
+            }
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // номер, который получит следующее изменение
+    public long sequence() {
+        return tail.get();
+    }
+
+    // Подписка с текущего места ленты: видит изменения, опубликованные после вызова.
+    // Чтобы собрать полную копию, подпишитесь до того, как читать карту
+    public Subscription subscribe() {
+        return new Subscription(tail.get());
+    }
+
+    // Курсор одного читателя: drain вызывает один поток, lag и position можно смотреть из любого
+    public final class Subscription {
+        private volatile long cursor; // номер следующей непрочитанной записи
+
+        private Subscription(long cursor) {
+            this.cursor = cursor;
+        }
+
+        // Отдаёт consumer до maxBatch опубликованных записей по порядку и возвращает, сколько отдал.
+        // Останавливается на первом номере, который ещё не опубликован. Если нужные записи уже
+        // затёрты, отдаёт OVERFLOW и продолжает с текущего конца ленты
+        public int drain(Consumer<? super Change<K, V>> consumer, int maxBatch) {
+            Objects.requireNonNull(consumer);
+            int drained = 0;
+            while (drained < maxBatch) {
+                long sequence = cursor;
+                Change<K, V> change = ring.get((int) sequence & mask);
+                if (change == null || change.sequence < sequence) {
+                    break;
+                }
+                if (change.sequence > sequence) {
+                    cursor = tail.get();
+                    change = new Change<>(sequence, Change.Type.OVERFLOW, null, null);
+                } else {
+                    cursor = sequence + 1;
+                }
+                consumer.accept(change);
+                drained++;
+            }
+            return drained;
+        }
+
+        // сколько записей опубликовано, но ещё не прочитано; больше capacity - уже переполнение
+        public long lag() {
+            return Math.max(0L, tail.get() - cursor);
+        }
+
+        public long position() {
+            return cursor;
+        }
+    }
+
+    // Неизменяемая запись ленты. REMOVE несёт только ключ, CLEAR и OVERFLOW - ни ключа, ни значения
+    public static final class Change<K, V> {
+
+        public enum Type {
+            PUT,
+            REMOVE,
+            CLEAR,
+            OVERFLOW // подписчик отстал: записи с номера getSequence() потеряны, копию нужно перечитать
+        }
+
+        private final long sequence;
+        private final Type type;
+        private final K key;
+        private final V value;
+
+        Change(long sequence, Type type, K key, V value) {
+            this.sequence = sequence;
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + ":" + type + (type == Type.PUT || type == Type.REMOVE ? " " + key : "")
+                    + (type == Type.PUT ? "=" + value : "");
+        }
+    }
+}
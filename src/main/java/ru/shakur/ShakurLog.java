@@ -0,0 +1,548 @@
+package ru.shakur;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Журнал упреждающей записи для ShakurMap в режиме durability.
+// Каталог: сегменты журнала wal-<номер>.log и контрольные снимки checkpoint-<номер>.snapshot
+// (формат ShakurSnapshot); снимок с номером N содержит состояние до сегмента N, после него
+// проигрываются сегменты с номерами от N. Запись в сегменте: [длина 4][crc32 4][тип][ключ][значение],
+// ключ и значение - varint длины + 1 и байты, как в снимке. Оборванная последняя запись
+// последнего сегмента (падение посреди write) отбрасывается при восстановлении, битая запись
+// в любом другом месте - ошибка открытия.
+// Писатели только кодируют запись и дописывают её в общий буфер; поток сброса забирает буфер
+// целиком, пишет в FileChannel и делает один fsync на всю пачку (group commit)
+final class ShakurLog<K, V> implements ShakurMap.MutationListener<K, V> {
+
+    static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+    static final long SEGMENT_SIZE = 64L << 20; // после этого размера сегмент закрывается
+    // переопределяет SEGMENT_SIZE для журналов, открытых после установки: мелкие сегменты для тестов
+    static final String SEGMENT_SIZE_PROPERTY = "ru.shakur.log.segmentSize";
+    static final int COMPACT_AFTER_SEGMENTS = 4; // столько закрытых сегментов запускают компактизацию
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final int FRAME_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".snapshot";
+
+    private final Path directory;
+    private final ShakurMap<K, V> map;
+    private final ShakurSerializer<K> keySerializer;
+    private final ShakurSerializer<V> valueSerializer;
+    private final ShakurMap.SyncPolicy syncPolicy;
+    private final long syncIntervalNanos;
+    private final long segmentSize;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Condition dataAvailable = appendLock.newCondition();
+    private final Condition durable = appendLock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16); // записи, ещё не отданные в файл
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    private long appendedSeq; // номер последней дописанной записи
+    private volatile long durableSeq; // номер последней записи, сохранённой по политике
+    private boolean syncRequested;
+    private boolean closing;
+    private volatile IOException failure;
+
+    // номер последней записи этого потока: afterWrite ждёт только свои записи
+    private final ThreadLocal<long[]> lastSeq = ThreadLocal.withInitial(() -> new long[1]);
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    // текущий сегмент меняет только поток сброса
+    private FileChannel channel;
+    private long segmentIndex;
+    private int sealedSegments; // под appendLock
+    private long oldestSegment; // под appendLock
+    private final Thread flusher;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shakur-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean compacting; // под appendLock
+
+    private ShakurLog(Path directory, ShakurMap<K, V> map, ShakurSerializer<K> keySerializer,
+                      ShakurSerializer<V> valueSerializer, ShakurMap.SyncPolicy syncPolicy, long syncIntervalMillis,
+                      long segmentIndex, long oldestSegment) throws IOException {
+        this.directory = directory;
+        this.map = map;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.segmentSize = Math.max(1, Long.getLong(SEGMENT_SIZE_PROPERTY, SEGMENT_SIZE));
+        this.segmentIndex = segmentIndex;
+        this.oldestSegment = oldestSegment;
+        this.sealedSegments = (int) (segmentIndex - oldestSegment);
+        this.channel = openSegment(segmentIndex);
+        this.flusher = new Thread(this::flushLoop, "shakur-log-flusher");
+        flusher.setDaemon(true);
+    }
+
+    // Восстановление: последний снимок, затем все сегменты после него по порядку
+    static <K, V> ShakurMap<K, V> open(Path directory, ShakurSerializer<K> keySerializer,
+                                       ShakurSerializer<V> valueSerializer, ShakurMap.SyncPolicy syncPolicy,
+                                       long syncIntervalMillis) throws IOException {
+        if (syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Illegal sync interval: " + syncIntervalMillis);
+        }
+        Files.createDirectories(directory);
+
+        List<Long> checkpoints = indexes(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        long base = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1);
+        ShakurMap<K, V> map = checkpoints.isEmpty() ? new ShakurMap<>()
+                : ShakurSnapshot.read(checkpointPath(directory, base), keySerializer, valueSerializer);
+
+        long last = base - 1;
+        List<Long> segments = indexes(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i < segments.size(); i++) {
+            long index = segments.get(i);
+            if (index < base) {
+                // остался от компактизации, прерванной после записи снимка
+                Files.deleteIfExists(segmentPath(directory, index));
+                continue;
+            }
+            replay(segmentPath(directory, index), i == segments.size() - 1, map, keySerializer, valueSerializer);
+            last = index;
+        }
+        for (long index : checkpoints) {
+            if (index < base) {
+                Files.deleteIfExists(checkpointPath(directory, index));
+            }
+        }
+
+        ShakurLog<K, V> log = new ShakurLog<>(directory, map, keySerializer, valueSerializer, syncPolicy,
+                syncIntervalMillis, last + 1, base);
+        map.setListener(log);
+        log.flusher.start();
+        if (last >= base) {
+            // проигранные сегменты сворачиваются в снимок в фоне, карта уже доступна
+            log.scheduleCompaction(last + 1);
+        }
+        return map;
+    }
+
+    // Оборванный хвост допустим только в последнем сегменте: закрытые сегменты перед переключением
+    // сбрасываются на диск целиком, поэтому битая запись в них - порча, а не падение посреди write.
+    // Сегмент читается в кучу, а не отображается: обрезается он уже закрытым, отдельным шагом
+    private static <K, V> void replay(Path segment, boolean last, ShakurMap<K, V> map, ShakurSerializer<K> keySerializer,
+                                      ShakurSerializer<V> valueSerializer) throws IOException {
+        ByteBuffer data;
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+                // дочитываем
+            }
+            data.flip();
+        }
+
+        CRC32 crc = new CRC32();
+        int valid = 0;
+        while (data.remaining() >= FRAME_HEADER) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer payload = data.slice(data.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload, map, keySerializer, valueSerializer);
+            data.position(data.position() + length);
+            valid = data.position();
+        }
+        if (valid < data.limit()) {
+            if (!last) {
+                throw new IOException("Corrupted log segment " + segment + " at offset " + valid);
+            }
+            try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                out.truncate(valid); // хвост недописанной записи
+            }
+        }
+    }
+
+    private static <K, V> void apply(ByteBuffer payload, ShakurMap<K, V> map, ShakurSerializer<K> keySerializer,
+                                     ShakurSerializer<V> valueSerializer) throws IOException {
+        byte type = payload.get();
+        switch (type) {
+            case PUT:
+                K key = readField(payload, keySerializer);
+                map.put(key, readField(payload, valueSerializer));
+                break;
+            case REMOVE:
+                map.remove(readField(payload, keySerializer));
+                break;
+            case CLEAR:
+                map.clear();
+                break;
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    private static <T> T readField(ByteBuffer payload, ShakurSerializer<T> serializer) {
+        int length = readVarint(payload) - 1;
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer field = payload.slice(payload.position(), length);
+        payload.position(payload.position() + length);
+        return serializer.read(field, length);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public void onPut(K key, V value) {
+        ByteBuffer record = scratch.get();
+        record.clear();
+        int keySize = key == null ? 0 : keySerializer.sizeOf(key);
+        int valueSize = value == null ? 0 : valueSerializer.sizeOf(value);
+        record = ensureScratch(record, 1 + 10 + keySize + valueSize);
+        record.put(PUT);
+        writeField(record, key, keySize, keySerializer);
+        writeField(record, value, valueSize, valueSerializer);
+        append(record);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onRemove(Object key) {
+        ByteBuffer record = scratch.get();
+        record.clear();
+        int keySize = key == null ? 0 : keySerializer.sizeOf((K) key);
+        record = ensureScratch(record, 1 + 5 + keySize);
+        record.put(REMOVE);
+        writeField(record, (K) key, keySize, keySerializer);
+        append(record);
+    }
+
+    @Override
+    public void onClear() {
+        ByteBuffer record = scratch.get();
+        record.clear();
+        record.put(CLEAR);
+        append(record);
+    }
+
+    private ByteBuffer ensureScratch(ByteBuffer record, int size) {
+        if (record.capacity() >= size) {
+            return record;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, record.capacity() * 2));
+        scratch.set(larger);
+        return larger;
+    }
+
+    private static <T> void writeField(ByteBuffer record, T value, int size, ShakurSerializer<T> serializer) {
+        if (value == null) {
+            ShakurSnapshot.writeVarint(record, 0);
+            return;
+        }
+        ShakurSnapshot.writeVarint(record, size + 1);
+        int start = record.position();
+        serializer.write(value, record);
+        if (record.position() - start != size) {
+            throw new IllegalStateException("Serializer wrote " + (record.position() - start)
+                    + " bytes, expected " + size);
+        }
+    }
+
+    // Запись уже закодирована вне appendLock; под ним только копирование в общий буфер
+    private void append(ByteBuffer record) {
+        record.flip();
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        int length = record.remaining();
+
+        appendLock.lock();
+        try {
+            checkFailure();
+            if (pending.remaining() < FRAME_HEADER + length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                        pending.position() + FRAME_HEADER + length));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.putInt(length).putInt((int) crc.getValue()).put(record);
+            lastSeq.get()[0] = ++appendedSeq;
+            if (syncPolicy == ShakurMap.SyncPolicy.ALWAYS) {
+                dataAvailable.signal();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException("Write-ahead log failed", e);
+        }
+    }
+
+    @Override
+    public void afterWrite() {
+        if (syncPolicy != ShakurMap.SyncPolicy.ALWAYS) {
+            return;
+        }
+        long seq = lastSeq.get()[0];
+        if (seq <= durableSeq) {
+            return;
+        }
+        appendLock.lock();
+        try {
+            while (durableSeq < seq && failure == null && !closing) {
+                durable.awaitUninterruptibly();
+            }
+            checkFailure();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        appendLock.lock();
+        try {
+            long seq = appendedSeq;
+            syncRequested = true;
+            dataAvailable.signal();
+            while (durableSeq < seq && failure == null && flusher.isAlive()) {
+                durable.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            closing = true;
+            dataAvailable.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            flusher.join();
+            compactor.shutdown();
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Поток сброса: при ALWAYS пишет, как только есть данные, иначе раз в интервал.
+    // Пока идёт write и fsync, писатели копят следующую пачку в другом буфере
+    private void flushLoop() {
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long batchSeq;
+                boolean stop;
+                boolean force;
+                appendLock.lock();
+                try {
+                    if (syncPolicy == ShakurMap.SyncPolicy.ALWAYS) {
+                        while (pending.position() == 0 && !closing && !syncRequested) {
+                            dataAvailable.awaitUninterruptibly();
+                        }
+                    } else if (!closing && !syncRequested) {
+                        try {
+                            dataAvailable.awaitNanos(syncIntervalNanos);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    // пустой буфер без запроса на sync: по таймауту простаивающий журнал не пишет и не сбрасывается
+                    if (pending.position() == 0 && !syncRequested && !closing) {
+                        continue;
+                    }
+                    force = syncPolicy != ShakurMap.SyncPolicy.NONE || syncRequested || closing;
+                    syncRequested = false;
+                    stop = closing;
+                    batch = pending;
+                    pending = spare;
+                    spare = batch;
+                    batchSeq = appendedSeq;
+                } finally {
+                    appendLock.unlock();
+                }
+
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                batch.clear();
+                if (force) {
+                    channel.force(false);
+                }
+                if (channel.size() >= segmentSize) {
+                    roll();
+                }
+
+                appendLock.lock();
+                try {
+                    durableSeq = batchSeq;
+                    durable.signalAll();
+                } finally {
+                    appendLock.unlock();
+                }
+                if (stop) {
+                    channel.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            appendLock.lock();
+            try {
+                failure = e;
+                durable.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    // Закрывает сегмент и открывает следующий. Запись попадает в журнал раньше, чем в бакет,
+    // поэтому изменения из закрытых сегментов могут ещё выполняться; их дожидается снимок
+    // компактизации (см. compact)
+    private void roll() throws IOException {
+        channel.force(false);
+        channel.close();
+        segmentIndex++;
+        channel = openSegment(segmentIndex);
+        boolean compact;
+        appendLock.lock();
+        try {
+            sealedSegments++;
+            compact = sealedSegments >= COMPACT_AFTER_SEGMENTS;
+        } finally {
+            appendLock.unlock();
+        }
+        if (compact) {
+            scheduleCompaction(segmentIndex);
+        }
+    }
+
+    // boundary - первый сегмент, который останется; все до него покрывает снимок из compact
+    private void scheduleCompaction(long boundary) {
+        appendLock.lock();
+        try {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+        } finally {
+            appendLock.unlock();
+        }
+        compactor.execute(() -> compact(boundary));
+    }
+
+    // Фоновая компактизация: снимок карты становится новой базой, старые сегменты удаляются.
+    // Изменение журналируется под блокировкой своей полосы (clear - под всеми), а snapshot()
+    // берёт их все, поэтому изменения, записанные до переключения, в снимке уже есть.
+    // Записи после границы проигрываются поверх него, а каждая запись задаёт итоговое
+    // состояние ключа, так что повтор изменений, попавших и в снимок, безвреден
+    private void compact(long boundary) {
+        try (ShakurMap.Snapshot<K, V> snapshot = map.snapshot()) {
+            ShakurSnapshot.write(snapshot, checkpointPath(directory, boundary), keySerializer, valueSerializer);
+            for (long index : indexes(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                if (index < boundary) {
+                    Files.deleteIfExists(segmentPath(directory, index));
+                }
+            }
+            for (long index : indexes(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+                if (index < boundary) {
+                    Files.deleteIfExists(checkpointPath(directory, index));
+                }
+            }
+            appendLock.lock();
+            try {
+                sealedSegments -= (int) (boundary - oldestSegment);
+                oldestSegment = boundary;
+            } finally {
+                appendLock.unlock();
+            }
+        } catch (IOException e) {
+            // журнал цел, компактизация повторится после следующего переключения сегмента
+        } finally {
+            appendLock.lock();
+            try {
+                compacting = false;
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    private FileChannel openSegment(long index) throws IOException {
+        FileChannel segment = FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return segment;
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private static Path checkpointPath(Path directory, long index) {
+        return directory.resolve(String.format("%s%020d%s", CHECKPOINT_PREFIX, index, CHECKPOINT_SUFFIX));
+    }
+
+    // номера файлов вида <prefix><номер><suffix>, по возрастанию
+    private static List<Long> indexes(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // чужой файл с похожим именем
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
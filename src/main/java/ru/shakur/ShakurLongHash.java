@@ -0,0 +1,229 @@
+package ru.shakur;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+// Общее ядро карт с ключами long (ShakurLongMap, ShakurLongLongMap): сегменты с открытой
+// адресацией на примитивных массивах, каждый со своей блокировкой и своей таблицей.
+// Ядро ведёт ключи, состояния слотов, пробирование, пересборку и размер; массив значений
+// и порядок его записи - дело наследника таблицы.
+// Слот публикуется release-записью состояния после ключа и значения. Удалённый слот (REMOVED)
+// занимает только тот же ключ, поэтому ключ слота не меняется, пока жива таблица, и читатель
+// не может принять значение одного ключа за значение другого. Надгробия вычищаются пересборкой
+abstract class ShakurLongHash<T extends ShakurLongHash.Table<T>> {
+
+    static final int DEFAULT_CONCURRENCY_LEVEL = 16; // число сегментов по умолчанию
+    static final float DEFAULT_LOAD_FACTOR = 0.5f; // доля занятых слотов (с надгробиями) до пересборки
+    static final int MIN_SEGMENT_CAPACITY = 8; // начальная таблица сегмента
+    static final int MAXIMUM_SEGMENT_CAPACITY = 1 << 30;
+    static final int MAX_SEGMENTS = 1 << 16;
+    static final byte EMPTY = 0; // слот ни разу не занимался: на нём поиск останавливается
+    static final byte FULL = 1;
+    static final byte REMOVED = 2; // надгробие, ключ в слоте сохраняется
+
+    static final VarHandle STATES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    final LongAdder size = new LongAdder(); // количество элементов, полосатый счётчик
+    final Segment<T>[] segments;
+    private final int segmentShift; // сегмент берётся по старшим битам хэша, слот - по младшим
+
+    // tables создаёт пустую таблицу наследника заданной ёмкости
+    @SuppressWarnings("unchecked")
+    ShakurLongHash(int expectedSize, float loadFactor, int concurrencyLevel, IntFunction<T> tables) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+        }
+        // в открытой адресации всегда должен оставаться пустой слот
+        if (!(loadFactor > 0.0f && loadFactor < 1.0f)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+        }
+
+        int count = ShakurMap.tableSizeFor(Math.min(concurrencyLevel, MAX_SEGMENTS));
+        int capacity = Math.max(MIN_SEGMENT_CAPACITY,
+                ShakurMap.tableSizeFor((long) Math.ceil((double) expectedSize / count / loadFactor)));
+
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(tables.apply(capacity), loadFactor);
+        }
+        segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    // Таблица сегмента. Массивы неизменного размера; новая таблица публикуется volatile-записью
+    abstract static class Table<T extends Table<T>> {
+        final long[] keys;
+        final byte[] states;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            states = new byte[capacity];
+            mask = capacity - 1;
+        }
+
+        // пустая таблица того же вида
+        abstract T create(int capacity);
+
+        // переносит значение слота from в слот to таблицы fresh при пересборке
+        abstract void moveValue(int from, T fresh, int to);
+    }
+
+    static final class Segment<T extends Table<T>> {
+        final ReentrantLock lock = new ReentrantLock();
+        final float loadFactor;
+        volatile T table;
+        int count; // живые элементы, только под блокировкой
+        int used; // занятые слоты вместе с надгробиями
+        int threshold;
+
+        Segment(T table, float loadFactor) {
+            this.loadFactor = loadFactor;
+            this.table = table;
+            threshold = thresholdFor(table.keys.length, loadFactor);
+        }
+
+        // Пересобирает таблицу без надгробий; растёт, только если живых элементов много
+        void rehash() {
+            T old = table;
+            int capacity = old.keys.length;
+            if (count + 1 > threshold / 2 && capacity < MAXIMUM_SEGMENT_CAPACITY) {
+                capacity <<= 1;
+            }
+            T fresh = old.create(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.states[i] == FULL) {
+                    long key = old.keys[i];
+                    int slot = (int) mix(key) & fresh.mask;
+                    while (fresh.states[slot] != EMPTY) {
+                        slot = (slot + 1) & fresh.mask;
+                    }
+                    fresh.keys[slot] = key;
+                    old.moveValue(i, fresh, slot);
+                    fresh.states[slot] = FULL;
+                }
+            }
+            used = count;
+            threshold = thresholdFor(capacity, loadFactor);
+            table = fresh;
+        }
+    }
+
+    // Финализатор MurmurHash3: последовательные id расходятся по всем битам
+    static long mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int thresholdFor(int capacity, float loadFactor) {
+        // хотя бы один слот всегда остаётся пустым
+        return Math.min(capacity - 1, (int) (capacity * (double) loadFactor));
+    }
+
+    final Segment<T> segmentFor(long hash) {
+        return segments[segmentShift == 64 ? 0 : (int) (hash >>> segmentShift)];
+    }
+
+    // Слот ключа (живой или надгробие) или -1. Без блокировок: состояние читается с acquire,
+    // поэтому ключ и значение найденного слота уже видны
+    static int find(Table<?> table, long hash, long key) {
+        int slot = (int) hash & table.mask;
+        while (true) {
+            byte state = (byte) STATES.getAcquire(table.states, slot);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (table.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & table.mask;
+        }
+    }
+
+    // Под блокировкой сегмента: слот ключа или, если его нет, -(пустой слот) - 1
+    static int probe(Table<?> table, long hash, long key) {
+        int slot = (int) hash & table.mask;
+        while (table.states[slot] != EMPTY) {
+            if (table.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & table.mask;
+        }
+        return -slot - 1;
+    }
+
+    // Пустой слот под новый ключ; при переполнении сегмент пересобирается и слот ищется заново.
+    // Ключ записывается сразу, значение пишет вызывающий в segment.table и публикует слот через publish
+    static int claim(Segment<?> segment, int slot, long hash, long key) {
+        if (segment.used + 1 > segment.threshold) {
+            segment.rehash();
+            Table<?> table = segment.table;
+            slot = (int) hash & table.mask;
+            while (table.states[slot] != EMPTY) {
+                slot = (slot + 1) & table.mask;
+            }
+        }
+        segment.table.keys[slot] = key;
+        return slot;
+    }
+
+    final void publish(Segment<T> segment, T table, int slot) {
+        STATES.setRelease(table.states, slot, FULL); // публикует ключ и значение
+        segment.used++;
+        segment.count++;
+        size.increment();
+    }
+
+    // надгробие того же ключа: значение уже записано, оживляем слот
+    final void revive(Segment<T> segment, T table, int slot) {
+        STATES.setRelease(table.states, slot, FULL);
+        segment.count++;
+        size.increment();
+    }
+
+    final void bury(Segment<T> segment, T table, int slot) {
+        STATES.setRelease(table.states, slot, REMOVED);
+        segment.count--;
+        size.decrement();
+    }
+
+    public int size() {
+        long n = size.sum();
+        return n < 0 ? 0 : n > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
+    }
+
+    public long mappingCount() {
+        long n = size.sum();
+        return n < 0 ? 0 : n;
+    }
+
+    public boolean isEmpty() {
+        return mappingCount() == 0;
+    }
+
+    // Сегменты очищаются по очереди, каждый под своей блокировкой
+    public void clear() {
+        for (Segment<T> segment : segments) {
+            segment.lock.lock();
+            try {
+                // ёмкость сохраняется, как у HashMap: карта обычно заполняется снова
+                size.add(-segment.count);
+                segment.count = 0;
+                segment.used = 0;
+                segment.table = segment.table.create(segment.table.keys.length);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+}
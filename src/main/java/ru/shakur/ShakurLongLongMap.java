@@ -0,0 +1,142 @@
+package ru.shakur;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+// Карта long -> long для счётчиков. Устройство то же, что у ShakurLongMap (ядро в ShakurLongHash):
+// сегменты с открытой адресацией, чтение без блокировок, надгробие занимает только тот же ключ.
+// Значение отсутствующего ключа - 0 (или defaultValue в getOrDefault), поэтому addTo
+// работает как инкремент счётчика без предварительной вставки
+public class ShakurLongLongMap extends ShakurLongHash<ShakurLongLongMap.LongTable> {
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(long[].class);
+
+    public ShakurLongLongMap() {
+        this(0);
+    }
+
+    // expectedSize - сколько элементов карта примет без пересборки таблиц
+    public ShakurLongLongMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public ShakurLongLongMap(int expectedSize, float loadFactor, int concurrencyLevel) {
+        super(expectedSize, loadFactor, concurrencyLevel, LongTable::new);
+    }
+
+    static final class LongTable extends ShakurLongHash.Table<LongTable> {
+        final long[] values;
+
+        LongTable(int capacity) {
+            super(capacity);
+            values = new long[capacity];
+        }
+
+        @Override
+        LongTable create(int capacity) {
+            return new LongTable(capacity);
+        }
+
+        @Override
+        void moveValue(int from, LongTable fresh, int to) {
+            fresh.values[to] = values[from];
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    public boolean containsKey(long key) {
+        long hash = mix(key);
+        LongTable table = segmentFor(hash).table;
+        int slot = find(table, hash, key);
+        return slot >= 0 && (byte) STATES.getAcquire(table.states, slot) == FULL;
+    }
+
+    public long get(long key) {
+        return getOrDefault(key, 0L);
+    }
+
+    // Без блокировок и без выделения памяти. Значение надгробия не обнуляется,
+    // поэтому после поиска перечитывается состояние слота
+    public long getOrDefault(long key, long defaultValue) {
+        long hash = mix(key);
+        LongTable table = segmentFor(hash).table;
+        int slot = find(table, hash, key);
+        if (slot < 0 || (byte) STATES.getAcquire(table.states, slot) != FULL) {
+            return defaultValue;
+        }
+        return (long) VALUES.getAcquire(table.values, slot);
+    }
+
+    // Возвращает прежнее значение, 0 если ключа не было
+    public long put(long key, long value) {
+        return update(key, value, false);
+    }
+
+    // Прибавляет delta к счётчику (отсутствующий считается нулём) и возвращает новое значение
+    public long addTo(long key, long delta) {
+        return update(key, delta, true);
+    }
+
+    private long update(long key, long operand, boolean add) {
+        long hash = mix(key);
+        Segment<LongTable> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            LongTable table = segment.table;
+            int slot = probe(table, hash, key);
+            if (slot >= 0) {
+                boolean live = table.states[slot] == FULL;
+                long oldValue = live ? table.values[slot] : 0L;
+                VALUES.setRelease(table.values, slot, add ? oldValue + operand : operand);
+                if (!live) {
+                    revive(segment, table, slot);
+                }
+                return add ? oldValue + operand : oldValue;
+            }
+
+            slot = claim(segment, -slot - 1, hash, key);
+            table = segment.table;
+            table.values[slot] = operand;
+            publish(segment, table, slot);
+            return add ? operand : 0L;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Возвращает удалённое значение, 0 если ключа не было
+    public long remove(long key) {
+        long hash = mix(key);
+        Segment<LongTable> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            LongTable table = segment.table;
+            int slot = probe(table, hash, key);
+            if (slot < 0 || table.states[slot] != FULL) {
+                return 0L;
+            }
+            bury(segment, table, slot);
+            return table.values[slot];
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Слабо согласованный обход без блокировок
+    public void forEach(LongLongConsumer action) {
+        Objects.requireNonNull(action);
+        for (Segment<LongTable> segment : segments) {
+            LongTable table = segment.table;
+            for (int slot = 0; slot < table.keys.length; slot++) {
+                if ((byte) STATES.getAcquire(table.states, slot) == FULL) {
+                    action.accept(table.keys[slot], (long) VALUES.getAcquire(table.values, slot));
+                }
+            }
+        }
+    }
+}
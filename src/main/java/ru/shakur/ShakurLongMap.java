@@ -0,0 +1,188 @@
+package ru.shakur;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.function.LongFunction;
+
+// Карта с ключами long без упаковки: открытая адресация на примитивных массивах.
+// Ключи делятся на сегменты, у каждого своя блокировка и своя таблица (как полосы ShakurMap);
+// сегменты, пробирование и надгробия - в ShakurLongHash. Чтение без блокировок.
+// Значения null не допускаются: null - это отсутствие
+public class ShakurLongMap<V> extends ShakurLongHash<ShakurLongMap.RefTable> {
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    public ShakurLongMap() {
+        this(0);
+    }
+
+    // expectedSize - сколько элементов карта примет без пересборки таблиц
+    public ShakurLongMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public ShakurLongMap(int expectedSize, float loadFactor, int concurrencyLevel) {
+        super(expectedSize, loadFactor, concurrencyLevel, RefTable::new);
+    }
+
+    static final class RefTable extends ShakurLongHash.Table<RefTable> {
+        final Object[] values;
+
+        RefTable(int capacity) {
+            super(capacity);
+            values = new Object[capacity];
+        }
+
+        @Override
+        RefTable create(int capacity) {
+            return new RefTable(capacity);
+        }
+
+        @Override
+        void moveValue(int from, RefTable fresh, int to) {
+            fresh.values[to] = values[from];
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongObjConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    // Без блокировок и без выделения памяти. У надгробия значение обнулено,
+    // поэтому состояние слота перечитывать не нужно
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long hash = mix(key);
+        RefTable table = segmentFor(hash).table;
+        int slot = find(table, hash, key);
+        return slot < 0 ? null : (V) VALUES.getAcquire(table.values, slot);
+    }
+
+    public V getOrDefault(long key, V defaultValue) {
+        V value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public V put(long key, V value) {
+        Objects.requireNonNull(value);
+        return putValue(key, value, false);
+    }
+
+    public V putIfAbsent(long key, V value) {
+        Objects.requireNonNull(value);
+        return putValue(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putValue(long key, V value, boolean onlyIfAbsent) {
+        long hash = mix(key);
+        Segment<RefTable> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            RefTable table = segment.table;
+            int slot = probe(table, hash, key);
+            if (slot >= 0) {
+                if (table.states[slot] == FULL) {
+                    V oldValue = (V) table.values[slot];
+                    if (!onlyIfAbsent) {
+                        VALUES.setRelease(table.values, slot, value);
+                    }
+                    return oldValue;
+                }
+                VALUES.setRelease(table.values, slot, value);
+                revive(segment, table, slot);
+                return null;
+            }
+
+            insert(segment, -slot - 1, hash, key, value);
+            return null;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void insert(Segment<RefTable> segment, int slot, long hash, long key, Object value) {
+        slot = claim(segment, slot, hash, key);
+        RefTable table = segment.table;
+        table.values[slot] = value;
+        publish(segment, table, slot);
+    }
+
+    // Функция выполняется под блокировкой сегмента и вызывается не больше одного раза на ключ
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        V existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        long hash = mix(key);
+        Segment<RefTable> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            RefTable table = segment.table;
+            int slot = probe(table, hash, key);
+            if (slot >= 0 && table.states[slot] == FULL) {
+                return (V) table.values[slot];
+            }
+
+            V value = mappingFunction.apply(key);
+            if (value != null) {
+                if (slot >= 0) {
+                    VALUES.setRelease(table.values, slot, value);
+                    revive(segment, table, slot);
+                } else {
+                    insert(segment, -slot - 1, hash, key, value);
+                }
+            }
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        long hash = mix(key);
+        Segment<RefTable> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            RefTable table = segment.table;
+            int slot = probe(table, hash, key);
+            if (slot < 0 || table.states[slot] != FULL) {
+                return null;
+            }
+            V oldValue = (V) table.values[slot];
+            // читатель, успевший увидеть FULL, прочтёт null, то есть отсутствие
+            VALUES.setRelease(table.values, slot, null);
+            bury(segment, table, slot);
+            return oldValue;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // Слабо согласованный обход без блокировок, как у представлений ShakurMap
+    @SuppressWarnings("unchecked")
+    public void forEach(LongObjConsumer<? super V> action) {
+        Objects.requireNonNull(action);
+        for (Segment<RefTable> segment : segments) {
+            RefTable table = segment.table;
+            for (int slot = 0; slot < table.keys.length; slot++) {
+                if ((byte) STATES.getAcquire(table.states, slot) == FULL) {
+                    V value = (V) VALUES.getAcquire(table.values, slot);
+                    if (value != null) {
+                        action.accept(table.keys[slot], value);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,483 +1,3051 @@
 package ru.shakur;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
-
-public class ShakurMap<K, V> implements Map<K, V> {
-
-    private static final int DEFAULT_CAPACITY = 16; // начальный размер таблицы
-    private static final float LOAD_FACTOR = 0.75f; // коэффициент загрузки
-    private final AtomicInteger size = new AtomicInteger(0); // количество элементов в карте
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongBiFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ShakurMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final int DEFAULT_CAPACITY = 16; // начальный размер таблицы, всегда степень двойки
+    private static final int MAXIMUM_CAPACITY = 1 << 30; // больше таблица не растёт
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f; // коэффициент загрузки
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16; // число блокировок-полос по умолчанию
+    private static final int MAX_LOCK_STRIPES = 1 << 16; // больше полос не даёт выигрыша, только память
+    private static final int TRANSFER_STRIDE = 16; // бакетов за один захват при переносе
+    private static final int MAX_HELP_STRIDES = 4; // сколько диапазонов переносит писатель за операцию
+    private static final int BATCH_REGION = 1 << 12; // бакетов в участке таблицы, который пакет обходит подряд
+    private static final int HASH_BITS = 0x7FFFFFFF; // хэши обычных узлов неотрицательны
+    private static final int MOVED = -1; // хэш узла-перенаправления
+    private static final int TREEBIN = -2; // хэш корня бакета-дерева
+    private static final int TREEIFY_THRESHOLD = 8; // длина цепочки, после которой бакет становится деревом
+    private static final int UNTREEIFY_THRESHOLD = 6; // размер дерева, при котором бакет снова становится списком
+    private static final int MIN_TREEIFY_CAPACITY = 64; // в меньшей таблице коллизии лечит ресайз, а не дерево
+    // результаты функции пересчёта в update: оставить бакет как есть или удалить ключ
+    private static final Object KEEP = new Object();
+    private static final Object REMOVE = new Object();
+    private static final Object ABSENT = new Object(); // update вернул прежнее значение, а ключа не было
+    private static final int SIZE_CHECK_MASK = 0x3F; // вставки в пустой бакет сверяют размер с порогом 1 раз из 64
+    private static final int REMOVAL_COUNTER_STRIDE = 16; // int-ов между счётчиками удалений соседних полос: 64 байта
+
+    private final LongAdder size = new LongAdder(); // количество элементов, полосатый счётчик
+    private final float loadFactor; // коэффициент загрузки
     private volatile int threshold; // порог увеличения размера таблицы
+    private volatile int shrinkThreshold; // порог сжатия: четверть порога увеличения
     private volatile ShakurEntry<K, V> nullKeyEntry; // Entry для хранения null ключа
-    private AtomicReference<ShakurEntry<K, V>>[] arrayBuckets; // массив бакетов
-    private ReentrantLock[] locks; // массив блокировок
+    private volatile AtomicReferenceArray<ShakurEntry<K, V>> arrayBuckets; // массив бакетов
+    private final ReentrantLock[] locks; // блокировки-полосы: бакет i любой таблицы -> locks[i & (locks.length - 1)]
+    private final int[] removalCounts; // удаления по полосам для выборочной проверки сжатия; меняются под блокировкой полосы
     private final ReentrantLock nullKeyLock = new ReentrantLock(); // блокировка для null ключа
     private final ReentrantLock globalLock = new ReentrantLock(); // глобальная блокировка
-    private final ReentrantLock resizeLock = new ReentrantLock(); // блокировка ресайза
-    private final Condition resizeCondition = resizeLock.newCondition(); // координация потоков
-    private final AtomicBoolean isResizing = new AtomicBoolean(false); // проверка запущен ли ресайз
+    private final ReentrantLock resizeLock = new ReentrantLock(); // старт и завершение ресайза
+    private final AtomicReference<Transfer<K, V>> transfer = new AtomicReference<>(); // текущий перенос
+    private volatile MutationListener<K, V> listener; // журнал изменений, null - карта только в памяти
+    private volatile ShakurChangeFeed<K, V> feed; // лента изменений для подписчиков, null - выключена
+    private volatile ShakurValueIndex<K, V> valueIndex; // значение -> ключи для containsValue, null - выключен
+    private volatile ShakurMapStatistics statistics; // счётчики для JMX, null - статистика выключена
+    private ObjectName statisticsName; // под каким именем статистика зарегистрирована, меняется под resizeLock
+    private volatile ShakurMap<K, Load<V>> loads; // загрузки getOrLoad в полёте, создаётся лениво
+    private volatile WeakReference<Snapshot<K, V>>[] snapshots; // открытые снимки, null - нет ни одного; меняется под globalLock
+    private KeySetView keySet; // представления создаются лениво, гонка безвредна
+    private ValuesView values;
+    private EntrySetView entrySet;
 
-    @SuppressWarnings("unchecked")
     public ShakurMap() {
-        arrayBuckets = new AtomicReference[DEFAULT_CAPACITY];
-        locks = new ReentrantLock[DEFAULT_CAPACITY];
-        for (int i = 0; i < DEFAULT_CAPACITY; i++) {
-            arrayBuckets[i] = new AtomicReference<>();
-            locks[i] = new ReentrantLock();
-        }
-        threshold = (int) (DEFAULT_CAPACITY * LOAD_FACTOR);
+        this((int) (DEFAULT_CAPACITY * DEFAULT_LOAD_FACTOR));
     }
 
-    private static class ShakurEntry<K, V> implements Map.Entry<K, V> {
-        K key;
-        V value;
-        ShakurEntry<K, V> next;
+    // expectedSize - сколько элементов карта примет без единого ресайза
+    public ShakurMap(int expectedSize) {
+        this(expectedSize, DEFAULT_LOAD_FACTOR);
+    }
 
-        ShakurEntry(K key, V value) {
-            this.key = key;
-            this.value = value;
-        }
+    public ShakurMap(int expectedSize, float loadFactor) {
+        this(expectedSize, loadFactor, DEFAULT_CONCURRENCY_LEVEL);
+    }
 
-        @Override
-        public K getKey() {
-            return key;
+    // concurrencyLevel - ожидаемое число одновременных писателей. Задаёт число блокировок-полос
+    // (округляется вверх до степени двойки) независимо от числа бакетов;
+    // таблица никогда не бывает меньше числа полос
+    public ShakurMap(int expectedSize, float loadFactor, int concurrencyLevel) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
         }
-
-        @Override
-        public V getValue() {
-            return value;
+        if (!(loadFactor > 0.0f)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
         }
-
-        @Override
-        public V setValue(V value) {
-            V oldValue = this.value;
-            this.value = value;
-            return oldValue;
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ShakurEntry<?, ?> that = (ShakurEntry<?, ?>) o;
-            return Objects.equals(key, that.key) && Objects.equals(value, that.value);
-        }
+        int stripes = tableSizeFor(Math.min(concurrencyLevel, MAX_LOCK_STRIPES));
+        int capacity = Math.max(stripes, tableSizeFor((long) Math.ceil(expectedSize / (double) loadFactor)));
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(key, value);
+        this.loadFactor = loadFactor;
+        arrayBuckets = new AtomicReferenceArray<>(capacity);
+        locks = new ReentrantLock[stripes];
+        removalCounts = new int[(stripes + 2) * REMOVAL_COUNTER_STRIDE];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
         }
+        threshold = thresholdFor(capacity);
+        shrinkThreshold = shrinkThresholdFor(capacity);
     }
 
-    @Override
-    public int size() {
-        awaitResizeCompletion();
+    // Копия с таблицей, сразу рассчитанной на все элементы источника
+    public static <K, V> ShakurMap<K, V> copyOf(Map<? extends K, ? extends V> source) {
+        ShakurMap<K, V> map = new ShakurMap<>(source.size());
+        map.putAll(source);
+        return map;
+    }
 
-        return size.get();
+    // Пишет компактный двоичный снимок карты (формат - в ShakurSnapshot) и возвращает число записей.
+    // Снимок слабо согласован, как обход представлений; файл подменяется атомарно
+    public long snapshotTo(Path path, ShakurSerializer<? super K> keySerializer,
+                           ShakurSerializer<? super V> valueSerializer) throws IOException {
+        return ShakurSnapshot.write(this, path, keySerializer, valueSerializer);
     }
 
-    @Override
-    public boolean isEmpty() {
-        awaitResizeCompletion();
+    // Отображает снимок в память и строит карту за один проход: таблица сразу
+    // рассчитана на число записей из заголовка, ресайзов при загрузке нет
+    public static <K, V> ShakurMap<K, V> loadFrom(Path path, ShakurSerializer<? extends K> keySerializer,
+                                                  ShakurSerializer<? extends V> valueSerializer) throws IOException {
+        return ShakurSnapshot.read(path, keySerializer, valueSerializer);
+    }
 
-        return size.get() == 0;
+    // Потоковый двоичный образ карты (формат - в ShakurSnapshot) для передачи по сети или в другой
+    // процесс. Образ согласован на момент вызова: пишется из snapshot(), писатели не ждут.
+    // Поток не закрывается и не сбрасывается. Возвращает число записанных элементов
+    public long writeTo(OutputStream out, ShakurSerializer<? super K> keySerializer,
+                        ShakurSerializer<? super V> valueSerializer) throws IOException {
+        return writeTo(Channels.newChannel(out), keySerializer, valueSerializer);
     }
 
-    @Override
-    public boolean containsKey(Object key) {
-        if (key == null) {
-            nullKeyLock.lock();
-            try {
-                return nullKeyEntry != null;
-            } finally {
-                nullKeyLock.unlock();
-            }
+    public long writeTo(WritableByteChannel channel, ShakurSerializer<? super K> keySerializer,
+                        ShakurSerializer<? super V> valueSerializer) throws IOException {
+        try (Snapshot<K, V> snapshot = snapshot()) {
+            return ShakurSnapshot.writeStream(snapshot, snapshot.size(), channel, keySerializer, valueSerializer);
         }
+    }
 
-        awaitResizeCompletion();
+    // Читает образ, записанный writeTo, в карту, рассчитанную на число записей из заголовка, -
+    // до миллиона записей ресайзов при чтении нет. Из потока берутся только байты образа
+    public static <K, V> ShakurMap<K, V> readFrom(InputStream in, ShakurSerializer<? extends K> keySerializer,
+                                                  ShakurSerializer<? extends V> valueSerializer) throws IOException {
+        return readFrom(Channels.newChannel(in), keySerializer, valueSerializer);
+    }
 
-        int hash = key.hashCode();
-        int index = (hash & 0x7FFFFFFF) % arrayBuckets.length;
+    public static <K, V> ShakurMap<K, V> readFrom(ReadableByteChannel channel, ShakurSerializer<? extends K> keySerializer,
+                                                  ShakurSerializer<? extends V> valueSerializer) throws IOException {
+        return ShakurSnapshot.readStream(channel, keySerializer, valueSerializer);
+    }
 
-        locks[index].lock();
-        try {
-            ShakurEntry<K, V> entry = arrayBuckets[index].get();
-            while (entry != null) {
-                if (entry.key.equals(key)) {
-                    return true;
-                }
-                entry = entry.next;
-            }
-            return false;
-        } finally {
-            locks[index].unlock();
+    // Политика fsync журнала в режиме durability
+    public enum SyncPolicy {
+        ALWAYS, // запись возвращается после fsync; fsync общий для всех записей, накопившихся за время предыдущего
+        INTERVAL, // fsync раз в syncIntervalMillis, запись не ждёт: при падении теряется не больше интервала
+        NONE // запись в файл раз в интервал без fsync, сохранность решает ОС
+    }
+
+    // Открывает карту в режиме durability: восстанавливает её из каталога (последний
+    // контрольный снимок + журнал после него) и дальше пишет в журнал каждое изменение
+    public static <K, V> ShakurMap<K, V> openDurable(Path directory, ShakurSerializer<K> keySerializer,
+                                                     ShakurSerializer<V> valueSerializer) throws IOException {
+        return openDurable(directory, keySerializer, valueSerializer, SyncPolicy.ALWAYS, ShakurLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public static <K, V> ShakurMap<K, V> openDurable(Path directory, ShakurSerializer<K> keySerializer,
+                                                     ShakurSerializer<V> valueSerializer, SyncPolicy syncPolicy,
+                                                     long syncIntervalMillis) throws IOException {
+        return ShakurLog.open(directory, keySerializer, valueSerializer, syncPolicy, syncIntervalMillis);
+    }
+
+    // Сбрасывает журнал на диск независимо от политики; без журнала ничего не делает
+    public void syncLog() throws IOException {
+        MutationListener<K, V> l = listener;
+        if (l != null) {
+            l.sync();
         }
     }
 
-    @Override
-    public boolean containsValue(Object value) {
-        awaitResizeCompletion();
+    // Закрывает журнал: всё записанное сбрасывается на диск, дальше карта живёт только в памяти
+    public void closeLog() throws IOException {
+        MutationListener<K, V> l = listener;
+        if (l != null) {
+            listener = null;
+            l.close();
+        }
+    }
 
-        globalLock.lock();
+    // Включает режим статистики (счётчики - в ShakurMapMXBean) и возвращает его бин.
+    // Пока режим выключен, операции платят за него одним чтением volatile-поля
+    public ShakurMapMXBean enableStatistics() {
+        resizeLock.lock();
         try {
-            if (nullKeyEntry != null && Objects.equals(nullKeyEntry.value, value)) {
-                return true;
-            }
-
-            if (value == null) {
-                for (AtomicReference<ShakurEntry<K, V>> arrayBucket : arrayBuckets) {
-                    ShakurEntry<K, V> entry = arrayBucket.get();
-                    while (entry != null) {
-                        if (entry.value == null) {
-                            return true;
-                        }
-                        entry = entry.next;
-                    }
-                }
-            } else {
-                for (AtomicReference<ShakurEntry<K, V>> arrayBucket : arrayBuckets) {
-                    ShakurEntry<K, V> entry = arrayBucket.get();
-                    while (entry != null) {
-                        if (value.equals(entry.value)) {
-                            return true;
-                        }
-                        entry = entry.next;
-                    }
-                }
+            ShakurMapStatistics stats = statistics;
+            if (stats == null) {
+                stats = new ShakurMapStatistics(this, locks.length);
+                statistics = stats;
             }
-            return false;
+            return stats;
         } finally {
-            globalLock.unlock();
+            resizeLock.unlock();
         }
     }
 
-    @Override
-    public V get(Object key) {
-        if (key == null) {
-            nullKeyLock.lock();
-            try {
-                return nullKeyEntry == null ? null : nullKeyEntry.value;
-            } finally {
-                nullKeyLock.unlock();
+    // То же и регистрирует бин в платформенном MBeanServer как ru.shakur:type=ShakurMap,name=<name>
+    public ShakurMapMXBean enableStatistics(String name) {
+        Objects.requireNonNull(name);
+        resizeLock.lock();
+        try {
+            ShakurMapMXBean stats = enableStatistics();
+            if (statisticsName == null) {
+                ObjectName objectName = new ObjectName("ru.shakur:type=ShakurMap,name=" + ObjectName.quote(name));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+                statisticsName = objectName;
             }
+            return stats;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register statistics as " + name, e);
+        } finally {
+            resizeLock.unlock();
         }
+    }
 
-        awaitResizeCompletion();
-
-        int hash = key.hashCode();
-        int index = (hash & 0x7FFFFFFF) % arrayBuckets.length;
-
-        locks[index].lock();
+    // Выключает статистику и снимает бин с регистрации; накопленные счётчики теряются
+    public void disableStatistics() {
+        resizeLock.lock();
         try {
-            ShakurEntry<K, V> entry = arrayBuckets[index].get();
-            while (entry != null) {
-                if (entry.key.equals(key)) {
-                    return entry.value;
+            statistics = null;
+            if (statisticsName != null) {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                try {
+                    server.unregisterMBean(statisticsName);
+                } catch (JMException e) {
+                    // бин уже сняли снаружи, карте он больше не нужен
                 }
-                entry = entry.next;
+                statisticsName = null;
             }
         } finally {
-            locks[index].unlock();
+            resizeLock.unlock();
         }
+    }
 
-        return null;
+    int tableLength() {
+        return arrayBuckets.length();
     }
 
-    @Override
-    public V put(K key, V value) {
-        if (key == null) {
-            nullKeyLock.lock();
-            try {
-                if (nullKeyEntry != null) {
-                    V oldValue = nullKeyEntry.value;
-                    nullKeyEntry.value = value;
-                    return oldValue;
-                } else {
-                    nullKeyEntry = new ShakurEntry<>(null, value);
-                    size.incrementAndGet();
-                    return null;
+    // Гистограмма длин цепочек текущей таблицы: элемент i - число бакетов из i узлов,
+    // последний - из size - 1 и больше. Бакеты, уже перенесённые незавершённым ресайзом, не считаются
+    long[] chainLengthHistogram(int size) {
+        long[] histogram = new long[size];
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        for (int i = 0; i < buckets.length(); i++) {
+            ShakurEntry<K, V> head = buckets.get(i);
+            if (head != null && head.hash == MOVED) {
+                continue;
+            }
+            int length = 0;
+            if (head != null && head.hash == TREEBIN) {
+                length = ((TreeBin<K, V>) head).count;
+            } else {
+                for (ShakurEntry<K, V> entry = head; entry != null; entry = entry.next) {
+                    length++;
                 }
-            } finally {
-                nullKeyLock.unlock();
             }
+            histogram[Math.min(length, size - 1)]++;
         }
+        return histogram;
+    }
 
-        awaitResizeCompletion();
+    // Подписчик на изменения. onPut/onRemove вызываются под блокировкой, которая защищает
+    // изменённый ключ, непосредственно перед изменением бакета: если подписчик бросит исключение
+    // (например, сериализатор журнала), карта останется нетронутой. Записи одного ключа попадают
+    // в журнал в том же порядке, что и в карту. afterWrite вызывается уже без блокировок
+    interface MutationListener<K, V> {
+        void onPut(K key, V value);
 
-        int hash = key.hashCode();
-        int index = (hash & 0x7FFFFFFF) % arrayBuckets.length;
-        ShakurEntry<K, V> newEntry = new ShakurEntry<>(key, value);
+        void onRemove(Object key);
 
-        locks[index].lock();
-        try {
-            ShakurEntry<K, V> currentEntry = arrayBuckets[index].get();
-            while (currentEntry != null) {
-                if (currentEntry.key.equals(key)) {
-                    V oldValue = currentEntry.value;
-                    currentEntry.value = value;
-                    return oldValue;
-                }
-                currentEntry = currentEntry.next;
-            }
+        void onClear();
 
-            newEntry.next = arrayBuckets[index].get();
-            arrayBuckets[index].set(newEntry);
-            size.incrementAndGet();
-        } finally {
-            locks[index].unlock();
-        }
+        void afterWrite();
 
-        if (size.get() > threshold) {
-            startResize();
-        }
+        void sync() throws IOException;
 
-        return null;
+        void close() throws IOException;
     }
 
-    @SuppressWarnings("unchecked")
-    private void resize() {
-        try {
-            int newCapacity = arrayBuckets.length * 2;
-            AtomicReference<ShakurEntry<K, V>>[] newArrayBuckets = new AtomicReference[newCapacity];
-            ReentrantLock[] newLocks = new ReentrantLock[newCapacity];
-
-            for (int i = 0; i < newCapacity; i++) {
-                newArrayBuckets[i] = new AtomicReference<>();
-                newLocks[i] = new ReentrantLock();
-            }
-
-            threshold = (int) (newCapacity * LOAD_FACTOR);
+    void setListener(MutationListener<K, V> listener) {
+        this.listener = listener;
+    }
 
-            for (AtomicReference<ShakurEntry<K, V>> arrayBucket : arrayBuckets) {
-                ShakurEntry<K, V> entry = arrayBucket.get();
-                while (entry != null) {
-                    ShakurEntry<K, V> nextEntry = entry.next;
+    // Вызывается перед изменением бакета; журнал идёт первым - его исключение отменяет изменение целиком.
+    // oldValue - прежнее значение ключа, null для нового; нужен обратному индексу
+    private void logPut(K key, V oldValue, V value) {
+        MutationListener<K, V> l = listener;
+        if (l != null) {
+            l.onPut(key, value);
+        }
+        ShakurValueIndex<K, V> index = valueIndex;
+        if (index != null) {
+            index.put(key, oldValue, value);
+        }
+        ShakurChangeFeed<K, V> f = feed;
+        if (f != null) {
+            f.publish(ShakurChangeFeed.Change.Type.PUT, key, value);
+        }
+    }
 
-                    int hash = entry.key.hashCode();
-                    int newIndex = (hash & 0x7FFFFFFF) % newCapacity;
+    @SuppressWarnings("unchecked")
+    private void logRemove(Object key, V oldValue) {
+        MutationListener<K, V> l = listener;
+        if (l != null) {
+            l.onRemove(key);
+        }
+        ShakurValueIndex<K, V> index = valueIndex;
+        if (index != null) {
+            index.remove(key, oldValue);
+        }
+        ShakurChangeFeed<K, V> f = feed;
+        if (f != null) {
+            f.publish(ShakurChangeFeed.Change.Type.REMOVE, (K) key, null);
+        }
+    }
 
-                    ReentrantLock lock = newLocks[newIndex];
-                    lock.lock();
-                    try {
-                        entry.next = newArrayBuckets[newIndex].get();
-                        newArrayBuckets[newIndex].set(entry);
-                    } finally {
-                        lock.unlock();
-                    }
+    public ShakurChangeFeed<K, V> enableChangeFeed() {
+        return enableChangeFeed(ShakurChangeFeed.DEFAULT_CAPACITY);
+    }
 
-                    entry = nextEntry;
-                }
+    // Включает ленту изменений на capacity последних записей (округляется до степени двойки)
+    // и возвращает её; если лента уже включена, возвращает её как есть. Пока лента выключена,
+    // изменения платят за неё одним чтением volatile-поля
+    public ShakurChangeFeed<K, V> enableChangeFeed(int capacity) {
+        resizeLock.lock();
+        try {
+            ShakurChangeFeed<K, V> f = feed;
+            if (f == null) {
+                f = new ShakurChangeFeed<>(capacity);
+                feed = f;
             }
-
-            arrayBuckets = newArrayBuckets;
-            locks = newLocks;
+            return f;
         } finally {
-            resizeLock.lock();
-            try {
-                isResizing.set(false);
-                resizeCondition.signalAll();
-            } finally {
-                resizeLock.unlock();
-            }
+            resizeLock.unlock();
         }
     }
 
-    private void startResize() {
+    // Выключает ленту: подписчики дочитывают уже опубликованное, новых записей не будет
+    public void disableChangeFeed() {
+        feed = null;
+    }
+
+    // включённая лента или null
+    ShakurChangeFeed<K, V> changeFeed() {
+        return feed;
+    }
+
+    // Выключает ленту, только если включена именно эта: ShakurReplication выключает свою ленту,
+    // не трогая ту, что включили заново после неё
+    void disableChangeFeed(ShakurChangeFeed<K, V> expected) {
         resizeLock.lock();
         try {
-            if (!isResizing.get()) {
-                isResizing.set(true);
-                new Thread(this::resize).start();
+            if (feed == expected) {
+                feed = null;
             }
         } finally {
             resizeLock.unlock();
         }
     }
 
-    private void awaitResizeCompletion() {
-        while (isResizing.get()) {
-            try {
-                resizeLock.lock();
-                try {
-                    resizeCondition.await();
-                } finally {
-                    resizeLock.unlock();
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    // Включает обратный индекс значений: containsValue и keysForValue становятся поиском в хеш-таблице
+    // вместо обхода всей карты под globalLock. Индекс строится обходом под всеми блокировками,
+    // дальше обновляется вместе с каждой записью - это одна-две операции compute на put/remove
+    // (см. ShakurValueIndex). Значения должны иметь осмысленные equals/hashCode
+    public void enableValueIndex() {
+        globalLock.lock();
+        try {
+            if (valueIndex != null) {
+                return;
+            }
+            for (ReentrantLock lock : locks) {
+                lock.lock();
             }
-        }
-    }
-
-    @Override
-    public V remove(Object key) {
-        if (key == null) {
             nullKeyLock.lock();
             try {
-                if (nullKeyEntry != null) {
-                    V oldValue = nullKeyEntry.value;
-                    nullKeyEntry = null;
-                    size.decrementAndGet();
-                    return oldValue;
+                ShakurValueIndex<K, V> index = new ShakurValueIndex<>();
+                ShakurEntry<K, V> nullEntry = nullKeyEntry;
+                if (nullEntry != null) {
+                    index.put(null, null, nullEntry.value);
+                }
+                Traverser traverser = new Traverser(arrayBuckets);
+                ShakurEntry<K, V> entry;
+                while ((entry = traverser.advance()) != null) {
+                    index.put(entry.key, null, entry.value);
                 }
+                valueIndex = index;
             } finally {
                 nullKeyLock.unlock();
-            }
-            return null;
-        }
-
-        awaitResizeCompletion();
-
-        int hash = key.hashCode();
-        int index = (hash & 0x7FFFFFFF) % arrayBuckets.length;
-
-        locks[index].lock();
-        try {
-            AtomicReference<ShakurEntry<K, V>> bucketReference = arrayBuckets[index];
-            ShakurEntry<K, V> previous = null;
-            ShakurEntry<K, V> current = bucketReference.get();
-
-            while (current != null) {
-                if (current.key.equals(key)) {
-                    if (previous == null) {
-                        bucketReference.set(current.next);
-                    } else {
-                        previous.next = current.next;
-                    }
-                    size.decrementAndGet();
-                    return current.value;
+                for (ReentrantLock lock : locks) {
+                    lock.unlock();
                 }
-                previous = current;
-                current = current.next;
             }
         } finally {
-            locks[index].unlock();
+            globalLock.unlock();
         }
-
-        return null;
     }
 
-    @Override
-    public void putAll(Map<? extends K, ? extends V> m) {
-        awaitResizeCompletion();
+    public void disableValueIndex() {
+        valueIndex = null;
+    }
 
-        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+    // ожидание group commit; вызывается после снятия блокировок
+    private void awaitDurable() {
+        MutationListener<K, V> l = listener;
+        if (l != null) {
+            l.afterWrite();
         }
     }
 
-    @Override
-    public void clear() {
-        awaitResizeCompletion();
-
-        globalLock.lock();
-        try {
-            for (int i = 0; i < arrayBuckets.length; i++) {
-                arrayBuckets[i] = new AtomicReference<>();
-            }
-            nullKeyEntry = null;
-            size.set(0);
-        } finally {
-            globalLock.unlock();
+    // ближайшая степень двойки не меньше size; общая для таблиц пакета (ShakurLongHash, ShakurCache, ShakurChangeFeed)
+    static int tableSizeFor(long size) {
+        if (size >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
         }
+        return size <= 1 ? 1 : Integer.highestOneBit((int) size - 1) << 1;
     }
 
-    @Override
-    public Set<K> keySet() {
-        Set<K> keys = new CopyOnWriteArraySet<>();
-
-        nullKeyLock.lock();
-        try {
-            if (nullKeyEntry != null) {
-                keys.add(null);
-            }
-        } finally {
-            nullKeyLock.unlock();
-        }
+    private int thresholdFor(int capacity) {
+        return capacity >= MAXIMUM_CAPACITY ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (long) (capacity * (double) loadFactor));
+    }
 
-        awaitResizeCompletion();
+    // Гистерезис: таблица сжимается, когда элементов меньше четверти порога, и так,
+    // чтобы после сжатия они занимали не больше половины нового порога. Дальше до
+    // следующего ресайза в любую сторону число элементов должно измениться хотя бы вдвое
+    private int shrinkThresholdFor(int capacity) {
+        return capacity <= minShrinkCapacity() ? 0 : thresholdFor(capacity) >>> 2;
+    }
 
-        for (int i = 0; i < arrayBuckets.length; i++) {
-            locks[i].lock();
-            try {
-                ShakurEntry<K, V> entry = arrayBuckets[i].get();
-                while (entry != null) {
-                    keys.add(entry.key);
-                    entry = entry.next;
-                }
-            } finally {
-                locks[i].unlock();
-            }
-        }
+    // Ниже числа полос таблица не бывает никогда, а само собой не сжимается и ниже размера по умолчанию
+    private int minShrinkCapacity() {
+        return Math.max(DEFAULT_CAPACITY, locks.length);
+    }
 
-        return keys;
+    // Размер таблицы под count элементов; slack - во сколько раз порог должен их превышать
+    private int shrinkTarget(long count, int slack, int floor) {
+        return Math.max(floor, tableSizeFor((long) Math.ceil(Math.max(0L, count) * (double) slack / loadFactor)));
     }
 
-    @Override
-    public Collection<V> values() {
-        Collection<V> values = new ArrayList<>();
+    // key и hash неизменяемы, value и next volatile: читатели обходят цепочку без блокировок
+    private static class ShakurEntry<K, V> implements Map.Entry<K, V> {
+        final int hash;
+        final K key;
+        volatile V value;
+        volatile ShakurEntry<K, V> next;
 
-        nullKeyLock.lock();
-        try {
-            if (nullKeyEntry != null) {
-                values.add(nullKeyEntry.value);
-            }
-        } finally {
-            nullKeyLock.unlock();
+        ShakurEntry(int hash, K key, V value, ShakurEntry<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
         }
 
-        awaitResizeCompletion();
-
-        for (int i = 0; i < arrayBuckets.length; i++) {
-            locks[i].lock();
-            try {
-                ShakurEntry<K, V> entry = arrayBuckets[i].get();
-                while (entry != null) {
-                    values.add(entry.value);
-                    entry = entry.next;
-                }
-            } finally {
-                locks[i].unlock();
-            }
+        @Override
+        public K getKey() {
+            return key;
         }
 
-        return values;
-    }
-
-    @Override
-    public Set<Map.Entry<K, V>> entrySet() {
-        Set<Map.Entry<K, V>> entries = new CopyOnWriteArraySet<>();
-
-        nullKeyLock.lock();
-        try {
-            if (nullKeyEntry != null) {
-                entries.add(nullKeyEntry);
-            }
-        } finally {
-            nullKeyLock.unlock();
+        @Override
+        public V getValue() {
+            return value;
         }
 
-        awaitResizeCompletion();
+        @Override
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ShakurEntry<?, ?> that = (ShakurEntry<?, ?>) o;
+            return Objects.equals(key, that.key) && Objects.equals(value, that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, value);
+        }
+    }
+
+    // Ставится в бакет старой таблицы после переноса его содержимого.
+    // Читатели по нему уходят в новую таблицу, писатели сначала помогают переносу
+    private static final class ForwardingEntry<K, V> extends ShakurEntry<K, V> {
+        final Transfer<K, V> transfer;
+
+        ForwardingEntry(Transfer<K, V> transfer) {
+            super(MOVED, null, null, null);
+            this.transfer = transfer;
+        }
+    }
+
+    // Бакет-дерево для ключей с большим числом коллизий. Дерево AVL неизменяемо по структуре:
+    // писатель под блокировкой полосы копирует путь от корня и публикует новый корень
+    // volatile-записью, поэтому читатели ищут в нём без блокировок, как и в цепочке.
+    // Значения узлов меняются на месте, как у обычных ShakurEntry
+    private static final class TreeBin<K, V> extends ShakurEntry<K, V> {
+        volatile TreeNode<K, V> root;
+        int count; // меняется только под блокировкой полосы
+
+        TreeBin(ShakurEntry<K, V> chain) {
+            super(TREEBIN, null, null, null);
+            for (ShakurEntry<K, V> entry = chain; entry != null; entry = entry.next) {
+                root = TreeNode.insert(root, entry.hash, entry.key, entry.value);
+                count++;
+            }
+        }
+
+        TreeNode<K, V> find(int hash, Object key) {
+            return TreeNode.find(root, hash, key);
+        }
+
+        void insert(int hash, K key, V value) {
+            root = TreeNode.insert(root, hash, key, value);
+            count++;
+        }
+
+        void remove(TreeNode<K, V> node) {
+            root = TreeNode.remove(root, node);
+            count--;
+        }
+
+        // узлы в порядке обхода дерева; снимок корня согласован сам по себе
+        @SuppressWarnings("unchecked")
+        ShakurEntry<K, V>[] entries() {
+            List<ShakurEntry<K, V>> entries = new ArrayList<>();
+            TreeNode.collect(root, entries);
+            return entries.toArray(new ShakurEntry[0]);
+        }
+
+        // обратное превращение в цепочку из новых узлов
+        ShakurEntry<K, V> toChain() {
+            ShakurEntry<K, V> chain = null;
+            for (ShakurEntry<K, V> entry : entries()) {
+                chain = new ShakurEntry<>(entry.hash, entry.key, entry.value, chain);
+            }
+            return chain;
+        }
+    }
+
+    private static final class TreeNode<K, V> extends ShakurEntry<K, V> {
+        final TreeNode<K, V> left;
+        final TreeNode<K, V> right;
+        final int height;
+
+        TreeNode(int hash, K key, V value, TreeNode<K, V> left, TreeNode<K, V> right) {
+            super(hash, key, value, null);
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+
+        static int height(TreeNode<?, ?> node) {
+            return node == null ? 0 : node.height;
+        }
+
+        // Порядок: хэш, затем имя класса, затем compareTo для Comparable ключей одного класса.
+        // 0 - порядок не определён, такой ключ может лежать в обоих поддеревьях
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static int compare(int hash, Object key, TreeNode<?, ?> node) {
+            if (hash != node.hash) {
+                return hash < node.hash ? -1 : 1;
+            }
+            Class<?> keyClass = key.getClass();
+            Class<?> nodeClass = node.key.getClass();
+            if (keyClass != nodeClass) {
+                return keyClass.getName().compareTo(nodeClass.getName());
+            }
+            if (key instanceof Comparable) {
+                return ((Comparable) key).compareTo(node.key);
+            }
+            return 0;
+        }
+
+        static <K, V> TreeNode<K, V> find(TreeNode<K, V> node, int hash, Object key) {
+            while (node != null) {
+                if (node.hash == hash && node.key.equals(key)) {
+                    return node;
+                }
+                int cmp = compare(hash, key, node);
+                if (cmp < 0) {
+                    node = node.left;
+                } else if (cmp > 0) {
+                    node = node.right;
+                } else {
+                    TreeNode<K, V> found = find(node.left, hash, key);
+                    if (found != null) {
+                        return found;
+                    }
+                    node = node.right;
+                }
+            }
+            return null;
+        }
+
+        // ключа в дереве нет, это проверено через find
+        static <K, V> TreeNode<K, V> insert(TreeNode<K, V> node, int hash, K key, V value) {
+            if (node == null) {
+                return new TreeNode<>(hash, key, value, null, null);
+            }
+            if (compare(hash, key, node) < 0) {
+                return balance(node, insert(node.left, hash, key, value), node.right);
+            }
+            return balance(node, node.left, insert(node.right, hash, key, value));
+        }
+
+        // удаляет именно этот узел; если узла в поддереве нет, возвращает то же поддерево
+        static <K, V> TreeNode<K, V> remove(TreeNode<K, V> node, TreeNode<K, V> target) {
+            if (node == null) {
+                return null;
+            }
+            if (node == target) {
+                if (node.left == null) {
+                    return node.right;
+                }
+                if (node.right == null) {
+                    return node.left;
+                }
+                TreeNode<K, V> successor = node.right;
+                while (successor.left != null) {
+                    successor = successor.left;
+                }
+                return balance(successor, node.left, removeMin(node.right));
+            }
+
+            int cmp = compare(target.hash, target.key, node);
+            if (cmp <= 0) {
+                TreeNode<K, V> left = remove(node.left, target);
+                if (left != node.left) {
+                    return balance(node, left, node.right);
+                }
+                if (cmp < 0) {
+                    return node;
+                }
+            }
+            TreeNode<K, V> right = remove(node.right, target);
+            return right == node.right ? node : balance(node, node.left, right);
+        }
+
+        static <K, V> TreeNode<K, V> removeMin(TreeNode<K, V> node) {
+            if (node.left == null) {
+                return node.right;
+            }
+            return balance(node, removeMin(node.left), node.right);
+        }
+
+        // копия узла с новыми детьми и восстановленным балансом
+        static <K, V> TreeNode<K, V> balance(TreeNode<K, V> node, TreeNode<K, V> left, TreeNode<K, V> right) {
+            int diff = height(left) - height(right);
+            if (diff > 1) {
+                if (height(left.left) < height(left.right)) {
+                    left = rotateLeft(left, left.left, left.right);
+                }
+                return rotateRight(node, left, right);
+            }
+            if (diff < -1) {
+                if (height(right.right) < height(right.left)) {
+                    right = rotateRight(right, right.left, right.right);
+                }
+                return rotateLeft(node, left, right);
+            }
+            return new TreeNode<>(node.hash, node.key, node.value, left, right);
+        }
+
+        private static <K, V> TreeNode<K, V> rotateRight(TreeNode<K, V> node, TreeNode<K, V> left, TreeNode<K, V> right) {
+            TreeNode<K, V> newRight = new TreeNode<>(node.hash, node.key, node.value, left.right, right);
+            return new TreeNode<>(left.hash, left.key, left.value, left.left, newRight);
+        }
+
+        private static <K, V> TreeNode<K, V> rotateLeft(TreeNode<K, V> node, TreeNode<K, V> left, TreeNode<K, V> right) {
+            TreeNode<K, V> newLeft = new TreeNode<>(node.hash, node.key, node.value, left, right.left);
+            return new TreeNode<>(right.hash, right.key, right.value, newLeft, right.right);
+        }
+
+        static <K, V> void collect(TreeNode<K, V> node, List<ShakurEntry<K, V>> entries) {
+            while (node != null) {
+                collect(node.left, entries);
+                entries.add(node);
+                node = node.right;
+            }
+        }
+    }
+
+    // Состояние одного ресайза. Единица переноса u - все бакеты старой таблицы с индексом
+    // i & (units - 1) == u; они попадают только в бакеты новой таблицы с тем же остатком
+    // и защищены одной блокировкой-полосой, поэтому переносятся независимо друг от друга
+    private static final class Transfer<K, V> {
+        final AtomicReferenceArray<ShakurEntry<K, V>> from;
+        final AtomicReferenceArray<ShakurEntry<K, V>> to;
+        final int units;
+        final AtomicInteger transferIndex; // единицы [0, transferIndex) ещё не розданы
+        final AtomicInteger movedUnits = new AtomicInteger(); // сколько единиц уже перенесено
+        final ForwardingEntry<K, V> forwarding = new ForwardingEntry<>(this);
+        final long started = System.nanoTime(); // для статистики: длительность ресайза от старта до конца
+
+        Transfer(AtomicReferenceArray<ShakurEntry<K, V>> from, AtomicReferenceArray<ShakurEntry<K, V>> to) {
+            this.from = from;
+            this.to = to;
+            this.units = Math.min(from.length(), to.length());
+            this.transferIndex = new AtomicInteger(units);
+        }
+    }
+
+    // Старшие биты подмешиваются к младшим: индекс берётся маской, и без этого ключи,
+    // различающиеся только старшими битами (Long, Float, сдвинутые id), легли бы в один бакет
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    // размер таблицы - степень двойки, поэтому вместо деления достаточно маски
+    private static int indexFor(int hash, int length) {
+        return hash & (length - 1);
+    }
+
+    private ReentrantLock lockFor(int index) {
+        return locks[index & (locks.length - 1)];
+    }
+
+    // Берёт блокировку-полосу бакета index. Со статистикой сначала пробует tryLock,
+    // чтобы отличить захват с ожиданием; без неё - один лишний null-чек
+    private ReentrantLock lockBucket(int index) {
+        ReentrantLock lock = lockFor(index);
+        ShakurMapStatistics stats = statistics;
+        if (stats == null) {
+            lock.lock();
+            return lock;
+        }
+        boolean contended = !lock.tryLock();
+        if (contended) {
+            lock.lock();
+        }
+        stats.recordLock(index & (locks.length - 1), contended);
+        return lock;
+    }
+
+    // Вызывается под блокировкой полосы бакета index после удаления: true у каждого 64-го удаления
+    // в полосе. Выборка по числу операций, а не по битам хеша, как у роста: иначе ключи, у которых
+    // младшие биты хеша никогда не нули, не сжимали бы таблицу вовсе. Счётчики полос лежат
+    // на разных строках кеша, первый - с отступом от заголовка массива
+    private boolean sampleRemoval(int index) {
+        int slot = ((index & (locks.length - 1)) + 1) * REMOVAL_COUNTER_STRIDE;
+        return (++removalCounts[slot] & SIZE_CHECK_MASK) == 0;
+    }
+
+    // Вызывается под блокировкой полосы перед изменением бакета index: открытые снимки,
+    // которые ещё читают этот бакет из живой таблицы, получают копию его содержимого.
+    // Без снимков стоит одно чтение volatile-поля
+    private void preserve(AtomicReferenceArray<ShakurEntry<K, V>> buckets, int index) {
+        WeakReference<Snapshot<K, V>>[] refs = snapshots;
+        if (refs == null) {
+            return;
+        }
+        for (WeakReference<Snapshot<K, V>> ref : refs) {
+            Snapshot<K, V> snapshot = ref.get();
+            if (snapshot != null) {
+                snapshot.preserve(buckets, index);
+            }
+        }
+    }
+
+    // Точное значение, если карту не меняют параллельно; иначе одно из промежуточных
+    @Override
+    public int size() {
+        long count = mappingCount();
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
+    public long mappingCount() {
+        return Math.max(0L, size.sum());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mappingCount() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return nullKeyEntry != null;
+        }
+
+        return findEntry(key) != null;
+    }
+
+    // С обратным индексом (enableValueIndex) - поиск в хеш-таблице, иначе обход всей карты
+    @Override
+    public boolean containsValue(Object value) {
+        ShakurValueIndex<K, V> index = valueIndex;
+        if (index != null) {
+            return index.contains(value);
+        }
+        globalLock.lock();
+        try {
+            ShakurEntry<K, V> nullEntry = nullKeyEntry;
+            if (nullEntry != null && Objects.equals(nullEntry.value, value)) {
+                return true;
+            }
+
+            Traverser traverser = new Traverser(arrayBuckets);
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                if (Objects.equals(value, entry.value)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            globalLock.unlock();
+        }
+    }
+
+    // Ключи, у которых сейчас значение value; копия, изменения карты её не меняют.
+    // С обратным индексом - поиск и копирование найденных ключей, иначе обход всей карты
+    public Set<K> keysForValue(Object value) {
+        ShakurValueIndex<K, V> index = valueIndex;
+        if (index != null) {
+            return index.keysFor(value);
+        }
+        Set<K> keys = new HashSet<>();
+        globalLock.lock();
+        try {
+            ShakurEntry<K, V> nullEntry = nullKeyEntry;
+            if (nullEntry != null && Objects.equals(nullEntry.value, value)) {
+                keys.add(null);
+            }
+            Traverser traverser = new Traverser(arrayBuckets);
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                if (Objects.equals(value, entry.value)) {
+                    keys.add(entry.key);
+                }
+            }
+        } finally {
+            globalLock.unlock();
+        }
+        return keys;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            ShakurEntry<K, V> entry = nullKeyEntry;
+            return entry == null ? null : entry.value;
+        }
+
+        ShakurEntry<K, V> entry = findEntry(key);
+        return entry == null ? null : entry.value;
+    }
+
+    // Чтение без блокировок: только volatile-чтения таблицы, головы бакета и ссылок next.
+    // Безопасно при параллельных put/remove/resize:
+    // - put публикует полностью сконструированный узел через volatile-запись головы бакета;
+    // - remove только перекидывает next предыдущего узла, сам удалённый узел не меняется,
+    //   поэтому читатель, стоящий на нём, дойдёт до конца цепочки;
+    // - перенос копирует узлы в новую таблицу и не трогает цепочки старой,
+    //   а перенесённый бакет отправляет читателя в новую таблицу.
+    // Результат отражает состояние на момент чтения ссылки на таблицу или позже.
+    private ShakurEntry<K, V> findEntry(Object key) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.reads.increment();
+        }
+        int hash = hash(key);
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+
+        while (true) {
+            ShakurEntry<K, V> entry = buckets.get(indexFor(hash, buckets.length()));
+            if (entry != null && entry.hash == MOVED) {
+                buckets = ((ForwardingEntry<K, V>) entry).transfer.to;
+                continue;
+            }
+            if (entry != null && entry.hash == TREEBIN) {
+                return ((TreeBin<K, V>) entry).find(hash, key);
+            }
+
+            while (entry != null) {
+                if (entry.hash == hash && entry.key.equals(key)) {
+                    return entry;
+                }
+                entry = entry.next;
+            }
+            return null;
+        }
+    }
 
-        for (int i = 0; i < arrayBuckets.length; i++) {
-            locks[i].lock();
+    @Override
+    public V put(K key, V value) {
+        V oldValue = putValue(key, value);
+        awaitDurable();
+        return oldValue;
+    }
+
+    private V putValue(K key, V value) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.writes.increment();
+        }
+        if (key == null) {
+            nullKeyLock.lock();
             try {
-                ShakurEntry<K, V> entry = arrayBuckets[i].get();
-                while (entry != null) {
-                    entries.add(entry);
-                    entry = entry.next;
+                if (nullKeyEntry != null) {
+                    V oldValue = nullKeyEntry.value;
+                    logPut(null, oldValue, value);
+                    nullKeyEntry.value = value;
+                    return oldValue;
+                } else {
+                    logPut(null, null, value);
+                    nullKeyEntry = new ShakurEntry<>(0, null, value, null);
+                    size.increment();
+                    return null;
+                }
+            } finally {
+                nullKeyLock.unlock();
+            }
+        }
+
+        int hash = hash(key);
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        boolean collided;
+
+        while (true) {
+            int index = indexFor(hash, buckets.length());
+            ShakurEntry<K, V> head = buckets.get(index);
+            if (head != null && head.hash == MOVED) {
+                buckets = helpTransfer(((ForwardingEntry<K, V>) head).transfer);
+                continue;
+            }
+
+            ReentrantLock lock = lockBucket(index);
+            try {
+                head = buckets.get(index);
+                // бакет успели перенести, пока ждали блокировку
+                if (head != null && head.hash == MOVED) {
+                    buckets = ((ForwardingEntry<K, V>) head).transfer.to;
+                    continue;
+                }
+                preserve(buckets, index);
+
+                if (head != null && head.hash == TREEBIN) {
+                    TreeBin<K, V> bin = (TreeBin<K, V>) head;
+                    TreeNode<K, V> node = bin.find(hash, key);
+                    if (node != null) {
+                        V oldValue = node.value;
+                        logPut(key, oldValue, value);
+                        node.value = value;
+                        return oldValue;
+                    }
+                    logPut(key, null, value);
+                    bin.insert(hash, key, value);
+                    size.increment();
+                    collided = true;
+                    break;
+                }
+
+                int chainLength = 0;
+                for (ShakurEntry<K, V> currentEntry = head; currentEntry != null; currentEntry = currentEntry.next) {
+                    if (currentEntry.hash == hash && currentEntry.key.equals(key)) {
+                        V oldValue = currentEntry.value;
+                        logPut(key, oldValue, value);
+                        currentEntry.value = value;
+                        return oldValue;
+                    }
+                    chainLength++;
+                }
+
+                logPut(key, null, value);
+                ShakurEntry<K, V> newHead = new ShakurEntry<>(hash, key, value, head);
+                if (chainLength + 1 >= TREEIFY_THRESHOLD && buckets.length() >= MIN_TREEIFY_CAPACITY) {
+                    buckets.set(index, new TreeBin<>(newHead));
+                } else {
+                    buckets.set(index, newHead);
                 }
+                size.increment();
+                collided = chainLength > 0;
+                break;
             } finally {
-                locks[i].unlock();
+                lock.unlock();
+            }
+        }
+
+        // сумма полос стоит O(число полос), поэтому считается не на каждой вставке:
+        // при заполнении к порогу большая часть вставок уже попадает в занятые бакеты
+        if ((collided || (hash & SIZE_CHECK_MASK) == 0) && size.sum() > threshold) {
+            resizeOrHelp(buckets);
+        }
+
+        return null;
+    }
+
+    // Запускает ресайз таблицы или помогает уже идущему
+    private void resizeOrHelp(AtomicReferenceArray<ShakurEntry<K, V>> buckets) {
+        Transfer<K, V> current = transfer.get();
+        if (current == null) {
+            current = startResize(buckets);
+        }
+        if (current != null) {
+            helpTransfer(current);
+        }
+    }
+
+    // Публикует новый перенос. Стартует только один поток, остальные не ждут
+    private Transfer<K, V> startResize(AtomicReferenceArray<ShakurEntry<K, V>> buckets) {
+        if (!resizeLock.tryLock()) {
+            return transfer.get();
+        }
+        try {
+            Transfer<K, V> current = transfer.get();
+            if (current != null || buckets != arrayBuckets || size.sum() <= threshold
+                    || buckets.length() >= MAXIMUM_CAPACITY) {
+                return current;
+            }
+
+            current = new Transfer<>(buckets, new AtomicReferenceArray<>(buckets.length() * 2));
+            transfer.set(current);
+            return current;
+        } finally {
+            resizeLock.unlock();
+        }
+    }
+
+    // Запускает сжатие таблицы или помогает уже идущему ресайзу
+    private void shrinkOrHelp(AtomicReferenceArray<ShakurEntry<K, V>> buckets) {
+        Transfer<K, V> current = transfer.get();
+        if (current == null) {
+            current = startShrink(buckets);
+        }
+        if (current != null) {
+            helpTransfer(current);
+        }
+    }
+
+    // Публикует перенос в меньшую таблицу, если элементов стало меньше порога сжатия.
+    // Transfer не различает направления: при сжатии единица переноса - бакет новой таблицы,
+    // в неё сходятся бакеты старой с тем же остатком, и все они под той же полосой
+    private Transfer<K, V> startShrink(AtomicReferenceArray<ShakurEntry<K, V>> buckets) {
+        if (!resizeLock.tryLock()) {
+            return transfer.get();
+        }
+        try {
+            Transfer<K, V> current = transfer.get();
+            if (current != null || buckets != arrayBuckets) {
+                return current;
+            }
+            long count = size.sum();
+            if (count >= shrinkThreshold) {
+                return null;
+            }
+            int wanted = shrinkTarget(count, 2, minShrinkCapacity());
+            if (wanted >= buckets.length()) {
+                return null;
+            }
+
+            current = new Transfer<>(buckets, new AtomicReferenceArray<>(wanted));
+            transfer.set(current);
+            return current;
+        } finally {
+            resizeLock.unlock();
+        }
+    }
+
+    // Забирает и переносит не больше MAX_HELP_STRIDES диапазонов, чтобы ни одна операция
+    // не оплачивала весь ресайз целиком. Возвращает таблицу, в которую идёт перенос
+    private AtomicReferenceArray<ShakurEntry<K, V>> helpTransfer(Transfer<K, V> current) {
+        ShakurMapStatistics stats = statistics;
+        long helpStarted = stats == null ? 0 : System.nanoTime();
+        int strides = 0;
+        while (strides < MAX_HELP_STRIDES) {
+            int next = current.transferIndex.get();
+            if (next <= 0) {
+                break;
+            }
+            int bound = Math.max(0, next - TRANSFER_STRIDE);
+            if (!current.transferIndex.compareAndSet(next, bound)) {
+                continue;
+            }
+
+            for (int unit = bound; unit < next; unit++) {
+                moveUnit(current, unit);
+            }
+            if (current.movedUnits.addAndGet(next - bound) == current.units) {
+                finishResize(current);
             }
+            strides++;
         }
+        if (stats != null) {
+            stats.recordResizeWait(System.nanoTime() - helpStarted);
+        }
+        return current.to;
+    }
 
-        return entries;
+    // Копирует узлы единицы переноса в новую таблицу и закрывает старые бакеты перенаправлением.
+    // Старые цепочки не меняются, поэтому читатели на них доходят до конца
+    private void moveUnit(Transfer<K, V> current, int unit) {
+        AtomicReferenceArray<ShakurEntry<K, V>> from = current.from;
+        AtomicReferenceArray<ShakurEntry<K, V>> to = current.to;
+
+        ReentrantLock lock = lockBucket(unit);
+        try {
+            ShakurEntry<K, V> first = from.get(unit);
+            if (to.length() == from.length() << 1 && (first == null || first.hash >= 0)) {
+                splitChain(first, unit, from.length(), to);
+            } else {
+                moveAll(current, unit);
+            }
+            // новые бакеты единицы до этого были пусты, длинные цепочки сразу становятся деревьями
+            for (int newIndex = unit; newIndex < to.length(); newIndex += current.units) {
+                ShakurEntry<K, V> chain = to.get(newIndex);
+                int chainLength = 0;
+                for (ShakurEntry<K, V> entry = chain; entry != null; entry = entry.next) {
+                    chainLength++;
+                }
+                if (chainLength >= TREEIFY_THRESHOLD && to.length() >= MIN_TREEIFY_CAPACITY) {
+                    to.set(newIndex, new TreeBin<>(chain));
+                }
+            }
+            for (int index = unit; index < from.length(); index += current.units) {
+                preserve(from, index);
+                from.set(index, current.forwarding);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Удвоение: бит hash & n делит цепочку на младшую (бакет i) и старшую (бакет i + n) половины.
+    // Хвост цепочки, целиком уходящий в одну половину, переиспользуется без копирования:
+    // его узлы не меняются, и читатели старой таблицы проходят по нему как раньше
+    private void splitChain(ShakurEntry<K, V> head, int index, int n, AtomicReferenceArray<ShakurEntry<K, V>> to) {
+        if (head == null) {
+            return;
+        }
+
+        ShakurEntry<K, V> lastRun = head;
+        int runBit = head.hash & n;
+        for (ShakurEntry<K, V> entry = head.next; entry != null; entry = entry.next) {
+            int bit = entry.hash & n;
+            if (bit != runBit) {
+                runBit = bit;
+                lastRun = entry;
+            }
+        }
+
+        ShakurEntry<K, V> lo = runBit == 0 ? lastRun : null;
+        ShakurEntry<K, V> hi = runBit == 0 ? null : lastRun;
+        for (ShakurEntry<K, V> entry = head; entry != lastRun; entry = entry.next) {
+            if ((entry.hash & n) == 0) {
+                lo = new ShakurEntry<>(entry.hash, entry.key, entry.value, lo);
+            } else {
+                hi = new ShakurEntry<>(entry.hash, entry.key, entry.value, hi);
+            }
+        }
+        to.set(index, lo);
+        to.set(index + n, hi);
+    }
+
+    // Общий случай: деревья и таблицы, отличающиеся больше чем вдвое.
+    // Каждый узел копируется в бакет, вычисленный заново
+    private void moveAll(Transfer<K, V> current, int unit) {
+        AtomicReferenceArray<ShakurEntry<K, V>> from = current.from;
+        AtomicReferenceArray<ShakurEntry<K, V>> to = current.to;
+
+        for (int index = unit; index < from.length(); index += current.units) {
+            ShakurEntry<K, V> head = from.get(index);
+            if (head != null && head.hash == TREEBIN) {
+                for (ShakurEntry<K, V> entry : ((TreeBin<K, V>) head).entries()) {
+                    moveEntry(entry, to);
+                }
+                continue;
+            }
+            for (ShakurEntry<K, V> entry = head; entry != null; entry = entry.next) {
+                moveEntry(entry, to);
+            }
+        }
+    }
+
+    private void moveEntry(ShakurEntry<K, V> entry, AtomicReferenceArray<ShakurEntry<K, V>> to) {
+        int newIndex = indexFor(entry.hash, to.length());
+        to.set(newIndex, new ShakurEntry<>(entry.hash, entry.key, entry.value, to.get(newIndex)));
+    }
+
+    private void finishResize(Transfer<K, V> current) {
+        resizeLock.lock();
+        try {
+            arrayBuckets = current.to;
+            threshold = thresholdFor(current.to.length());
+            shrinkThreshold = shrinkThresholdFor(current.to.length());
+            transfer.set(null);
+            ShakurMapStatistics stats = statistics;
+            if (stats != null) {
+                stats.recordResize(System.nanoTime() - current.started);
+            }
+        } finally {
+            resizeLock.unlock();
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        V oldValue = removeValue(key);
+        awaitDurable();
+        return oldValue;
+    }
+
+    private V removeValue(Object key) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.removes.increment();
+        }
+        if (key == null) {
+            nullKeyLock.lock();
+            try {
+                if (nullKeyEntry != null) {
+                    V oldValue = nullKeyEntry.value;
+                    logRemove(null, oldValue);
+                    nullKeyEntry = null;
+                    size.decrement();
+                    return oldValue;
+                }
+            } finally {
+                nullKeyLock.unlock();
+            }
+            return null;
+        }
+
+        int hash = hash(key);
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        V oldValue;
+        boolean checkShrink;
+
+        while (true) {
+            int index = indexFor(hash, buckets.length());
+            ShakurEntry<K, V> head = buckets.get(index);
+            if (head == null) {
+                return null;
+            }
+            if (head.hash == MOVED) {
+                buckets = helpTransfer(((ForwardingEntry<K, V>) head).transfer);
+                continue;
+            }
+
+            ReentrantLock lock = lockBucket(index);
+            try {
+                head = buckets.get(index);
+                if (head == null) {
+                    return null;
+                }
+                if (head.hash == MOVED) {
+                    buckets = ((ForwardingEntry<K, V>) head).transfer.to;
+                    continue;
+                }
+
+                if (head.hash == TREEBIN) {
+                    TreeBin<K, V> bin = (TreeBin<K, V>) head;
+                    TreeNode<K, V> node = bin.find(hash, key);
+                    if (node == null) {
+                        return null;
+                    }
+                    preserve(buckets, index);
+                    logRemove(key, node.value);
+                    bin.remove(node);
+                    if (bin.count <= UNTREEIFY_THRESHOLD) {
+                        buckets.set(index, bin.toChain());
+                    }
+                    size.decrement();
+                    oldValue = node.value;
+                    checkShrink = sampleRemoval(index);
+                    break;
+                }
+
+                ShakurEntry<K, V> previous = null;
+                ShakurEntry<K, V> current = head;
+                while (current != null && !(current.hash == hash && current.key.equals(key))) {
+                    previous = current;
+                    current = current.next;
+                }
+                if (current == null) {
+                    return null;
+                }
+                preserve(buckets, index);
+                logRemove(key, current.value);
+                if (previous == null) {
+                    buckets.set(index, current.next);
+                } else {
+                    previous.next = current.next;
+                }
+                size.decrement();
+                oldValue = current.value;
+                checkShrink = sampleRemoval(index);
+                break;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // как и рост, сжатие сверяет размер с порогом не на каждом удалении
+        if (checkShrink && size.sum() < shrinkThreshold) {
+            shrinkOrHelp(buckets);
+        }
+        return oldValue;
+    }
+
+    // Пересчёт значения для update. Вызывается под блокировкой полосы:
+    // получает текущее значение и возвращает новое, KEEP или REMOVE
+    private interface Remapping<K, V> {
+        Object apply(K key, V oldValue, boolean present);
+    }
+
+    // Общее ядро атомарных операций: один проход по бакету под одной блокировкой.
+    // Возвращает новое значение (returnNew) или прежнее, а при отсутствии ключа - ABSENT.
+    // Функции пользователя выполняются под блокировкой полосы и не должны менять эту карту
+    private Object update(K key, Remapping<K, V> remapping, boolean returnNew) {
+        Object result = doUpdate(key, remapping, returnNew);
+        awaitDurable();
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object doUpdate(K key, Remapping<K, V> remapping, boolean returnNew) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.updates.increment();
+        }
+        if (key == null) {
+            nullKeyLock.lock();
+            try {
+                ShakurEntry<K, V> entry = nullKeyEntry;
+                boolean present = entry != null;
+                V oldValue = present ? entry.value : null;
+                Object result = remapping.apply(null, oldValue, present);
+                if (result == REMOVE) {
+                    if (present) {
+                        logRemove(null, oldValue);
+                        nullKeyEntry = null;
+                        size.decrement();
+                    }
+                } else if (result != KEEP) {
+                    logPut(null, oldValue, (V) result);
+                    if (present) {
+                        entry.value = (V) result;
+                    } else {
+                        nullKeyEntry = new ShakurEntry<>(0, null, (V) result, null);
+                        size.increment();
+                    }
+                }
+                return outcome(present, oldValue, result, returnNew);
+            } finally {
+                nullKeyLock.unlock();
+            }
+        }
+
+        int hash = hash(key);
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        boolean inserted = false;
+        boolean collided = false;
+        boolean checkShrink = false;
+        Object returned;
+
+        while (true) {
+            int index = indexFor(hash, buckets.length());
+            ShakurEntry<K, V> head = buckets.get(index);
+            if (head != null && head.hash == MOVED) {
+                buckets = helpTransfer(((ForwardingEntry<K, V>) head).transfer);
+                continue;
+            }
+
+            ReentrantLock lock = lockBucket(index);
+            try {
+                head = buckets.get(index);
+                if (head != null && head.hash == MOVED) {
+                    buckets = ((ForwardingEntry<K, V>) head).transfer.to;
+                    continue;
+                }
+
+                if (head != null && head.hash == TREEBIN) {
+                    TreeBin<K, V> bin = (TreeBin<K, V>) head;
+                    TreeNode<K, V> node = bin.find(hash, key);
+                    if (node != null) {
+                        V oldValue = node.value;
+                        Object result = remapping.apply(key, oldValue, true);
+                        if (result != KEEP) {
+                            preserve(buckets, index);
+                        }
+                        if (result == REMOVE) {
+                            logRemove(key, oldValue);
+                            bin.remove(node);
+                            if (bin.count <= UNTREEIFY_THRESHOLD) {
+                                buckets.set(index, bin.toChain());
+                            }
+                            size.decrement();
+                            checkShrink = sampleRemoval(index);
+                        } else if (result != KEEP) {
+                            logPut(key, oldValue, (V) result);
+                            node.value = (V) result;
+                        }
+                        returned = outcome(true, oldValue, result, returnNew);
+                        break;
+                    }
+
+                    Object result = remapping.apply(key, null, false);
+                    if (result == KEEP || result == REMOVE) {
+                        return outcome(false, null, result, returnNew);
+                    }
+                    preserve(buckets, index);
+                    logPut(key, null, (V) result);
+                    bin.insert(hash, key, (V) result);
+                    size.increment();
+                    inserted = true;
+                    collided = true;
+                    returned = outcome(false, null, result, returnNew);
+                    break;
+                }
+
+                int chainLength = 0;
+                ShakurEntry<K, V> previous = null;
+                ShakurEntry<K, V> current = head;
+                while (current != null && !(current.hash == hash && current.key.equals(key))) {
+                    previous = current;
+                    current = current.next;
+                    chainLength++;
+                }
+                if (current != null) {
+                    V oldValue = current.value;
+                    Object result = remapping.apply(key, oldValue, true);
+                    if (result != KEEP) {
+                        preserve(buckets, index);
+                    }
+                    if (result == REMOVE) {
+                        logRemove(key, oldValue);
+                        if (previous == null) {
+                            buckets.set(index, current.next);
+                        } else {
+                            previous.next = current.next;
+                        }
+                        size.decrement();
+                        checkShrink = sampleRemoval(index);
+                    } else if (result != KEEP) {
+                        logPut(key, oldValue, (V) result);
+                        current.value = (V) result;
+                    }
+                    returned = outcome(true, oldValue, result, returnNew);
+                    break;
+                }
+
+                Object result = remapping.apply(key, null, false);
+                if (result == KEEP || result == REMOVE) {
+                    return outcome(false, null, result, returnNew);
+                }
+                preserve(buckets, index);
+                logPut(key, null, (V) result);
+                ShakurEntry<K, V> newHead = new ShakurEntry<>(hash, key, (V) result, head);
+                if (chainLength + 1 >= TREEIFY_THRESHOLD && buckets.length() >= MIN_TREEIFY_CAPACITY) {
+                    buckets.set(index, new TreeBin<>(newHead));
+                } else {
+                    buckets.set(index, newHead);
+                }
+                size.increment();
+                inserted = true;
+                collided = chainLength > 0;
+                returned = outcome(false, null, result, returnNew);
+                break;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (checkShrink) {
+            if (size.sum() < shrinkThreshold) {
+                shrinkOrHelp(buckets);
+            }
+        } else if (inserted && (collided || (hash & SIZE_CHECK_MASK) == 0) && size.sum() > threshold) {
+            resizeOrHelp(buckets);
+        }
+        return returned;
+    }
+
+    private static Object outcome(boolean present, Object oldValue, Object result, boolean returnNew) {
+        if (!returnNew) {
+            return present ? oldValue : ABSENT;
+        }
+        if (result == KEEP) {
+            return oldValue;
+        }
+        return result == REMOVE ? null : result;
+    }
+
+    // Семантика null-значений как у HashMap: ключ с null-значением считается отсутствующим
+    // для putIfAbsent, computeIfAbsent, computeIfPresent и merge
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        Object previous = update(key, (k, oldValue, present) -> oldValue == null ? value : KEEP, false);
+        return previous == ABSENT ? null : (V) previous;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object key, Object value) {
+        Object previous = update((K) key,
+                (k, oldValue, present) -> present && Objects.equals(oldValue, value) ? REMOVE : KEEP, false);
+        return previous != ABSENT && Objects.equals(previous, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Object previous = update(key,
+                (k, current, present) -> present && Objects.equals(current, oldValue) ? newValue : KEEP, false);
+        return previous != ABSENT && Objects.equals(previous, oldValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        Object previous = update(key, (k, oldValue, present) -> present ? value : KEEP, false);
+        return previous == ABSENT ? null : (V) previous;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        return (V) update(key, (k, oldValue, present) -> {
+            if (oldValue != null) {
+                return KEEP;
+            }
+            V newValue = mappingFunction.apply(k);
+            return newValue == null ? KEEP : newValue;
+        }, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return (V) update(key, (k, oldValue, present) -> {
+            if (oldValue == null) {
+                return KEEP;
+            }
+            V newValue = remappingFunction.apply(k, oldValue);
+            return newValue == null ? REMOVE : newValue;
+        }, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return (V) update(key, (k, oldValue, present) -> {
+            V newValue = remappingFunction.apply(k, oldValue);
+            return newValue == null ? REMOVE : newValue;
+        }, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return (V) update(key, (k, oldValue, present) -> {
+            V newValue = oldValue == null ? value : remappingFunction.apply(oldValue, value);
+            return newValue == null ? REMOVE : newValue;
+        }, true);
+    }
+
+    // Значение ключа или результат loader, если ключа нет. Одновременные промахи по одному
+    // ключу делят одну загрузку: её выполняет первый поток, остальные ждут результата.
+    // В отличие от computeIfAbsent, loader выполняется без блокировки полосы и может быть
+    // медленным. null от loader возвращается, но не кэшируется; исключение loader получают
+    // все ждавшие его потоки, и следующий промах загружает ключ заново. loader, который
+    // сам загружает тот же ключ, ждал бы себя вечно: такой вызов бросает IllegalStateException
+    public V getOrLoad(K key, Function<? super K, ? extends V> loader) {
+        Objects.requireNonNull(loader);
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        ShakurMap<K, Load<V>> inFlight = loads();
+        Load<V> load = new Load<>();
+        Load<V> shared = inFlight.putIfAbsent(key, load);
+        if (shared != null) {
+            if (shared.owner == Thread.currentThread()) {
+                throw new IllegalStateException("Recursive load of key " + key);
+            }
+            return await(shared);
+        }
+        try {
+            // ключ могли загрузить между промахом и регистрацией загрузки
+            value = get(key);
+            if (value == null) {
+                value = cacheLoaded(key, loader.apply(key));
+            }
+        } catch (Throwable t) {
+            inFlight.remove(key, load);
+            load.completeExceptionally(t);
+            throw t;
+        }
+        inFlight.remove(key, load);
+        load.complete(value);
+        return value;
+    }
+
+    // Асинхронный вариант getOrLoad: asyncLoader только запускает загрузку, результат
+    // попадает в карту по её завершении. Каждый вызов получает свою копию общей загрузки,
+    // так что отмена одной копии не отменяет загрузку для остальных
+    public CompletableFuture<V> getOrLoadAsync(K key,
+                                               Function<? super K, ? extends CompletionStage<? extends V>> asyncLoader) {
+        Objects.requireNonNull(asyncLoader);
+        V value = get(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        ShakurMap<K, Load<V>> inFlight = loads();
+        Load<V> load = new Load<>();
+        Load<V> shared = inFlight.putIfAbsent(key, load);
+        if (shared != null) {
+            return shared.copy();
+        }
+        value = get(key);
+        if (value != null) {
+            inFlight.remove(key, load);
+            load.complete(value);
+            return load.copy();
+        }
+
+        CompletionStage<? extends V> stage;
+        try {
+            stage = Objects.requireNonNull(asyncLoader.apply(key), "asyncLoader returned null");
+        } catch (Throwable t) {
+            inFlight.remove(key, load);
+            load.completeExceptionally(t);
+            return load.copy();
+        } finally {
+            // дальше загрузку завершает чужой поток: getOrLoad из этого потока может её ждать
+            load.owner = null;
+        }
+        stage.whenComplete((loaded, error) -> {
+            V result = null;
+            if (error == null) {
+                try {
+                    result = cacheLoaded(key, loaded);
+                } catch (Throwable t) {
+                    error = t;
+                }
+            }
+            // загрузка снимается до того, как её увидят ждущие: после ошибки следующий промах грузит заново
+            inFlight.remove(key, load);
+            if (error != null) {
+                load.completeExceptionally(error);
+            } else {
+                load.complete(result);
+            }
+        });
+        return load.copy();
+    }
+
+    // Кладёт загруженное значение, если ключ за время загрузки не записали иначе, и возвращает то, что в карте
+    private V cacheLoaded(K key, V loaded) {
+        if (loaded == null) {
+            return null;
+        }
+        V previous = putIfAbsent(key, loaded);
+        return previous != null ? previous : loaded;
+    }
+
+    // Загрузка в полёте. owner - поток, выполняющий loader: getOrLoad того же ключа из него - рекурсия
+    private static final class Load<V> extends CompletableFuture<V> {
+        volatile Thread owner = Thread.currentThread();
+    }
+
+    private ShakurMap<K, Load<V>> loads() {
+        ShakurMap<K, Load<V>> inFlight = loads;
+        if (inFlight == null) {
+            resizeLock.lock();
+            try {
+                inFlight = loads;
+                if (inFlight == null) {
+                    inFlight = new ShakurMap<>();
+                    loads = inFlight;
+                }
+            } finally {
+                resizeLock.unlock();
+            }
+        }
+        return inFlight;
+    }
+
+    // Ждёт чужую загрузку; непроверяемое исключение загрузчика пробрасывается как есть
+    private static <V> V await(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    // Пакетная запись: таблица один раз вырастает под весь пакет, ключи группируются
+    // по участкам таблицы и полосам, и блокировка-полоса берётся раз на группу, а не на ключ.
+    // Полоса ключа - hash & (locks.length - 1) в любой таблице (таблица не меньше числа полос),
+    // поэтому параллельный ресайз портит разве что порядок обхода, но не выбор замка.
+    // Атомарна только в пределах полосы: читатели могут увидеть пакет частично
+    @Override
+    @SuppressWarnings("unchecked")
+    public void putAll(Map<? extends K, ? extends V> m) {
+        int count = m.size();
+        if (count <= 1) {
+            for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        presize(mappingCount() + count);
+        int[] hashes = new int[count];
+        Object[] keys = new Object[count];
+        Object[] values = new Object[count];
+        int n = 0;
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            K key = entry.getKey();
+            if (key == null) {
+                putValue(null, entry.getValue());
+                continue;
+            }
+            if (n == keys.length) { // источник вырос, пока его обходили
+                hashes = Arrays.copyOf(hashes, n * 2);
+                keys = Arrays.copyOf(keys, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            hashes[n] = hash(key);
+            keys[n] = key;
+            values[n] = entry.getValue();
+            n++;
+        }
+
+        int[] groups = new int[n];
+        int[] bounds = groupBounds(hashes, n, groups);
+        int[] order = groupOrder(groups, n, bounds);
+        for (int group = 0; group < bounds.length - 1; group++) {
+            int from = bounds[group];
+            int to = bounds[group + 1];
+            if (from == to) {
+                continue;
+            }
+            int inserted = 0;
+            ReentrantLock lock = lockBucket(group);
+            try {
+                for (int i = from; i < to; i++) {
+                    int j = order[i];
+                    if (putLocked(hashes[j], (K) keys[j], (V) values[j])) {
+                        inserted++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            size.add(inserted);
+        }
+
+        // параллельные вставки могли перерасти заготовленную таблицу
+        if (size.sum() > threshold) {
+            resizeOrHelp(arrayBuckets);
+        }
+        awaitDurable(); // один group commit на пакет
+    }
+
+    // Пакетное чтение: найденные ключи и их значения, отсутствующие в результат не попадают.
+    // Чтение и так идёт без блокировок, поэтому группировать ключи по полосам незачем
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<>((int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(keys.size() / 0.75)));
+        for (K key : keys) {
+            if (key == null) {
+                ShakurEntry<K, V> entry = nullKeyEntry;
+                if (entry != null) {
+                    result.put(null, entry.value);
+                }
+                continue;
+            }
+            ShakurEntry<K, V> entry = findEntry(key);
+            if (entry != null) {
+                result.put(key, entry.value);
+            }
+        }
+        return result;
+    }
+
+    // Пакетное удаление с группировкой по полосам, как в putAll. Возвращает число удалённых ключей
+    public int removeAll(Collection<?> keys) {
+        int count = keys.size();
+        int[] hashes = new int[count];
+        Object[] keyArray = new Object[count];
+        int n = 0;
+        int removed = 0;
+        for (Object key : keys) {
+            if (key == null) {
+                nullKeyLock.lock();
+                try {
+                    if (nullKeyEntry != null) {
+                        V oldValue = nullKeyEntry.value;
+                        logRemove(null, oldValue);
+                        nullKeyEntry = null;
+                        size.decrement();
+                        removed++;
+                    }
+                } finally {
+                    nullKeyLock.unlock();
+                }
+                continue;
+            }
+            if (n == keyArray.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(1, n * 2));
+                keyArray = Arrays.copyOf(keyArray, Math.max(1, n * 2));
+            }
+            hashes[n] = hash(key);
+            keyArray[n] = key;
+            n++;
+        }
+
+        int[] groups = new int[n];
+        int[] bounds = groupBounds(hashes, n, groups);
+        int[] order = groupOrder(groups, n, bounds);
+        for (int group = 0; group < bounds.length - 1; group++) {
+            int from = bounds[group];
+            int to = bounds[group + 1];
+            if (from == to) {
+                continue;
+            }
+            int stripeRemoved = 0;
+            ReentrantLock lock = lockBucket(group);
+            try {
+                for (int i = from; i < to; i++) {
+                    int j = order[i];
+                    if (removeLocked(hashes[j], keyArray[j])) {
+                        stripeRemoved++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            size.add(-stripeRemoved);
+            removed += stripeRemoved;
+        }
+
+        if (size.sum() < shrinkThreshold) {
+            shrinkOrHelp(arrayBuckets);
+        }
+        awaitDurable();
+        return removed;
+    }
+
+    // Раскладывает пакет по группам: участок таблицы в старших разрядах номера группы,
+    // полоса - в младших; groups получает группу каждого элемента, результат - границы групп
+    // в порядке groupOrder (группа g - [bounds[g], bounds[g + 1])).
+    // Группы только по полосам дали бы locks.length проходов через всю таблицу с шагом
+    // в число полос, где каждый бакет в своей строке кэша; участками по BATCH_REGION бакетов
+    // обход идёт по таблице подряд, а замок полосы берётся раз на полосу в участке.
+    // Участков - степень двойки и не больше размера пакета, полоса группы g - g & (locks.length - 1)
+    private int[] groupBounds(int[] hashes, int n, int[] groups) {
+        int length = arrayBuckets.length();
+        int regions = Math.max(1, Math.min(length / BATCH_REGION, tableSizeFor(n) / locks.length));
+        int regionShift = Integer.numberOfTrailingZeros(length) - Integer.numberOfTrailingZeros(regions);
+        int stripeBits = Integer.numberOfTrailingZeros(locks.length);
+        int[] bounds = new int[regions * locks.length + 1];
+        for (int i = 0; i < n; i++) {
+            int region = indexFor(hashes[i], length) >>> regionShift;
+            groups[i] = region << stripeBits | hashes[i] & (locks.length - 1);
+            bounds[groups[i] + 1]++;
+        }
+        for (int group = 0; group < bounds.length - 1; group++) {
+            bounds[group + 1] += bounds[group];
+        }
+        return bounds;
+    }
+
+    // Сортировка подсчётом по группе: индексы элементов пакета, сгруппированные по участкам и полосам
+    private static int[] groupOrder(int[] groups, int n, int[] bounds) {
+        int[] next = Arrays.copyOf(bounds, bounds.length - 1);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[next[groups[i]]++] = i;
+        }
+        return order;
+    }
+
+    // Вставка или замена под уже взятой блокировкой полосы ключа; true - ключ добавлен.
+    // Размер не трогает: пакет прибавляет его один раз на полосу. Перенесённый бакет
+    // ведёт в новую таблицу, и там ключ защищён той же полосой
+    private boolean putLocked(int hash, K key, V value) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.writes.increment();
+        }
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        while (true) {
+            int index = indexFor(hash, buckets.length());
+            ShakurEntry<K, V> head = buckets.get(index);
+            if (head != null && head.hash == MOVED) {
+                buckets = ((ForwardingEntry<K, V>) head).transfer.to;
+                continue;
+            }
+            preserve(buckets, index);
+
+            if (head != null && head.hash == TREEBIN) {
+                TreeBin<K, V> bin = (TreeBin<K, V>) head;
+                TreeNode<K, V> node = bin.find(hash, key);
+                if (node != null) {
+                    V oldValue = node.value;
+                    logPut(key, oldValue, value);
+                    node.value = value;
+                    return false;
+                }
+                logPut(key, null, value);
+                bin.insert(hash, key, value);
+                return true;
+            }
+
+            int chainLength = 0;
+            for (ShakurEntry<K, V> current = head; current != null; current = current.next) {
+                if (current.hash == hash && current.key.equals(key)) {
+                    V oldValue = current.value;
+                    logPut(key, oldValue, value);
+                    current.value = value;
+                    return false;
+                }
+                chainLength++;
+            }
+            logPut(key, null, value);
+            ShakurEntry<K, V> newHead = new ShakurEntry<>(hash, key, value, head);
+            if (chainLength + 1 >= TREEIFY_THRESHOLD && buckets.length() >= MIN_TREEIFY_CAPACITY) {
+                buckets.set(index, new TreeBin<>(newHead));
+            } else {
+                buckets.set(index, newHead);
+            }
+            return true;
+        }
+    }
+
+    // Удаление под уже взятой блокировкой полосы ключа; true - ключ был
+    private boolean removeLocked(int hash, Object key) {
+        ShakurMapStatistics stats = statistics;
+        if (stats != null) {
+            stats.removes.increment();
+        }
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        while (true) {
+            int index = indexFor(hash, buckets.length());
+            ShakurEntry<K, V> head = buckets.get(index);
+            if (head == null) {
+                return false;
+            }
+            if (head.hash == MOVED) {
+                buckets = ((ForwardingEntry<K, V>) head).transfer.to;
+                continue;
+            }
+
+            if (head.hash == TREEBIN) {
+                TreeBin<K, V> bin = (TreeBin<K, V>) head;
+                TreeNode<K, V> node = bin.find(hash, key);
+                if (node == null) {
+                    return false;
+                }
+                preserve(buckets, index);
+                logRemove(key, node.value);
+                bin.remove(node);
+                if (bin.count <= UNTREEIFY_THRESHOLD) {
+                    buckets.set(index, bin.toChain());
+                }
+                return true;
+            }
+
+            ShakurEntry<K, V> previous = null;
+            for (ShakurEntry<K, V> current = head; current != null; current = current.next) {
+                if (current.hash == hash && current.key.equals(key)) {
+                    preserve(buckets, index);
+                    logRemove(key, current.value);
+                    if (previous == null) {
+                        buckets.set(index, current.next);
+                    } else {
+                        previous.next = current.next;
+                    }
+                    return true;
+                }
+                previous = current;
+            }
+            return false;
+        }
+    }
+
+    // Растит таблицу сразу до размера под expectedSize элементов одним переносом вместо серии
+    // удвоений по ходу пакета. Начатый чужой перенос приходится довести до конца - второй
+    // не стартует, пока идёт первый; свой перенос, как и обычный ресайз, дальше делят писатели,
+    // а вставки пакета до его конца идут по перенаправлениям
+    private void presize(long expectedSize) {
+        int wanted = tableSizeFor((long) Math.ceil(expectedSize / (double) loadFactor));
+        while (true) {
+            Transfer<K, V> current = transfer.get();
+            if (current != null) {
+                helpTransfer(current);
+                if (current.transferIndex.get() <= 0) {
+                    Thread.yield(); // остаток переносят другие потоки
+                }
+                continue;
+            }
+            AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+            if (buckets.length() >= wanted) {
+                return;
+            }
+            resizeLock.lock();
+            try {
+                if (transfer.get() == null && buckets == arrayBuckets) {
+                    current = new Transfer<>(buckets, new AtomicReferenceArray<>(wanted));
+                    transfer.set(current);
+                }
+            } finally {
+                resizeLock.unlock();
+            }
+            if (current != null) {
+                helpTransfer(current);
+                return;
+            }
+        }
+    }
+
+    // Сжимает таблицу до наименьшего размера, при котором текущие элементы не вызывают
+    // ресайз, но не меньше числа полос. Сжатие - обычный кооперативный перенос: читатели
+    // не ждут, писатели помогают. Метод возвращается, когда перенос завершён
+    public void trimToSize() {
+        compact(1, locks.length);
+    }
+
+    // Доводит идущий перенос до конца и сжимает таблицу до shrinkTarget(size, slack, floor),
+    // как presize, но до победного: возвращается, только когда таблица уже не больше нужной
+    private void compact(int slack, int floor) {
+        while (true) {
+            Transfer<K, V> current = transfer.get();
+            if (current != null) {
+                helpTransfer(current);
+                if (current.transferIndex.get() <= 0) {
+                    Thread.yield(); // остаток переносят другие потоки
+                }
+                continue;
+            }
+            AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+            int wanted = shrinkTarget(size.sum(), slack, floor);
+            if (buckets.length() <= wanted) {
+                return;
+            }
+            resizeLock.lock();
+            try {
+                if (transfer.get() == null && buckets == arrayBuckets) {
+                    transfer.set(new Transfer<>(buckets, new AtomicReferenceArray<>(wanted)));
+                }
+            } finally {
+                resizeLock.unlock();
+            }
+        }
+    }
+
+    // Массовые операции в духе ConcurrentHashMap. parallelismThreshold - сколько элементов
+    // должно приходиться на одну задачу: Long.MAX_VALUE - последовательно в текущем потоке,
+    // 1 - максимально дробно в ForkJoinPool.commonPool(). Задачи делят таблицу на диапазоны
+    // бакетов и обходят их без блокировок, видя карту так же, как итераторы представлений
+    public void forEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        ShakurEntry<K, V> nullEntry = nullKeyEntry;
+        if (nullEntry != null) {
+            action.accept(null, nullEntry.value);
+        }
+        bulk(parallelismThreshold, traverser -> {
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                action.accept(entry.key, entry.value);
+            }
+            return null;
+        }, (a, b) -> null);
+    }
+
+    // Первый найденный ненулевой результат функции; остальные задачи после этого останавливаются
+    public <U> U search(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        Objects.requireNonNull(searchFunction);
+        ShakurEntry<K, V> nullEntry = nullKeyEntry;
+        if (nullEntry != null) {
+            U found = searchFunction.apply(null, nullEntry.value);
+            if (found != null) {
+                return found;
+            }
+        }
+        AtomicReference<U> result = new AtomicReference<>();
+        bulk(parallelismThreshold, traverser -> {
+            ShakurEntry<K, V> entry;
+            while (result.get() == null && (entry = traverser.advance()) != null) {
+                U found = searchFunction.apply(entry.key, entry.value);
+                if (found != null) {
+                    result.compareAndSet(null, found);
+                }
+            }
+            return null;
+        }, (a, b) -> null);
+        return result.get();
+    }
+
+    // Свёртка преобразованных элементов; null от transformer пропускается, пустая карта даёт null
+    public <U> U reduce(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> transformer,
+                        BiFunction<? super U, ? super U, ? extends U> reducer) {
+        Objects.requireNonNull(transformer);
+        Objects.requireNonNull(reducer);
+        BinaryOperator<U> combine = (a, b) -> a == null ? b : b == null ? a : reducer.apply(a, b);
+        U result = bulk(parallelismThreshold, traverser -> {
+            U partial = null;
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                partial = combine.apply(partial, transformer.apply(entry.key, entry.value));
+            }
+            return partial;
+        }, combine);
+        ShakurEntry<K, V> nullEntry = nullKeyEntry;
+        return nullEntry == null ? result : combine.apply(result, transformer.apply(null, nullEntry.value));
+    }
+
+    // basis должен быть нейтральным элементом reducer: с него начинается каждая задача
+    public long reduceToLong(long parallelismThreshold, ToLongBiFunction<? super K, ? super V> transformer,
+                             long basis, LongBinaryOperator reducer) {
+        Objects.requireNonNull(transformer);
+        Objects.requireNonNull(reducer);
+        long result = bulk(parallelismThreshold, traverser -> {
+            long partial = basis;
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                partial = reducer.applyAsLong(partial, transformer.applyAsLong(entry.key, entry.value));
+            }
+            return partial;
+        }, (a, b) -> reducer.applyAsLong(a, b));
+        ShakurEntry<K, V> nullEntry = nullKeyEntry;
+        return nullEntry == null ? result
+                : reducer.applyAsLong(result, transformer.applyAsLong(null, nullEntry.value));
+    }
+
+    // Каждое удаление - remove(key, value): элемент, изменённый после проверки, не удаляется
+    public boolean removeIf(long parallelismThreshold, BiPredicate<? super K, ? super V> filter) {
+        Objects.requireNonNull(filter);
+        boolean removed = false;
+        ShakurEntry<K, V> nullEntry = nullKeyEntry;
+        if (nullEntry != null && filter.test(null, nullEntry.value)) {
+            removed = remove(null, nullEntry.value);
+        }
+        return bulk(parallelismThreshold, traverser -> {
+            boolean any = false;
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                if (filter.test(entry.key, entry.value) && remove(entry.key, entry.value)) {
+                    any = true;
+                }
+            }
+            return any;
+        }, (a, b) -> a || b) | removed;
+    }
+
+    // Функция применяется к текущему значению под блокировкой полосы, атомарно для каждого ключа
+    public void replaceAll(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends V> function) {
+        Objects.requireNonNull(function);
+        Remapping<K, V> remapping = (k, oldValue, present) -> present ? function.apply(k, oldValue) : KEEP;
+        if (nullKeyEntry != null) {
+            update(null, remapping, false);
+        }
+        bulk(parallelismThreshold, traverser -> {
+            ShakurEntry<K, V> entry;
+            while ((entry = traverser.advance()) != null) {
+                update(entry.key, remapping, false);
+            }
+            return null;
+        }, (a, b) -> null);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(Long.MAX_VALUE, action);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        replaceAll(Long.MAX_VALUE, function);
+    }
+
+    // Обходит все бакеты текущей таблицы: в этом потоке или деревом задач ForkJoin.
+    // Ключ null обрабатывают сами массовые операции
+    private <R> R bulk(long parallelismThreshold, Function<Traverser, R> leaf, BinaryOperator<R> combine) {
+        AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+        int batch = batchFor(parallelismThreshold);
+        if (batch <= 0) {
+            return leaf.apply(new Traverser(buckets));
+        }
+        return ForkJoinPool.commonPool().invoke(new BulkTask<>(buckets, 0, buckets.length(), batch, leaf, combine));
+    }
+
+    // на сколько задач ещё можно делить работу; 0 - выполнять в текущем потоке
+    private int batchFor(long parallelismThreshold) {
+        long n = mappingCount();
+        if (parallelismThreshold == Long.MAX_VALUE || n <= 1L || n < parallelismThreshold) {
+            return 0;
+        }
+        int maxTasks = ForkJoinPool.getCommonPoolParallelism() << 2;
+        long tasks = parallelismThreshold <= 0L ? maxTasks : n / parallelismThreshold;
+        return (int) Math.min(tasks, maxTasks);
+    }
+
+    // Делит диапазон бакетов пополам, пока не исчерпан batch, и сводит результаты половин
+    private final class BulkTask<R> extends RecursiveTask<R> {
+        private final AtomicReferenceArray<ShakurEntry<K, V>> buckets;
+        private final int lo;
+        private final int hi;
+        private final int batch;
+        private final Function<Traverser, R> leaf;
+        private final BinaryOperator<R> combine;
+
+        BulkTask(AtomicReferenceArray<ShakurEntry<K, V>> buckets, int lo, int hi, int batch,
+                 Function<Traverser, R> leaf, BinaryOperator<R> combine) {
+            this.buckets = buckets;
+            this.lo = lo;
+            this.hi = hi;
+            this.batch = batch;
+            this.leaf = leaf;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (batch > 1 && hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                BulkTask<R> left = new BulkTask<>(buckets, lo, mid, batch >>> 1, leaf, combine);
+                BulkTask<R> right = new BulkTask<>(buckets, mid, hi, batch >>> 1, leaf, combine);
+                left.fork();
+                R rightResult = right.compute();
+                return combine.apply(left.join(), rightResult);
+            }
+            return leaf.apply(new Traverser(buckets, lo, hi));
+        }
+    }
+
+    // Берёт все блокировки-полосы по возрастанию: писатели и перенос стоят,
+    // поэтому очищаются и текущая таблица, и таблица незавершённого переноса
+    @Override
+    public void clear() {
+        globalLock.lock();
+        try {
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+            }
+            nullKeyLock.lock();
+            try {
+                // под всеми блокировками: ни одна запись не окажется в журнале по другую сторону от очистки.
+                // Журнал, как в putValue, раньше самой очистки: если запись не удалась, карта не тронута
+                MutationListener<K, V> l = listener;
+                if (l != null) {
+                    l.onClear();
+                }
+
+                // перенос читается раньше таблицы: если он успел завершиться,
+                // в таблице уже будет его новая половина
+                Transfer<K, V> current = transfer.get();
+                AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+                int removed = clearBuckets(buckets);
+                if (current != null && current.to != buckets) {
+                    removed += clearBuckets(current.to);
+                }
+                size.add(-removed);
+
+                if (nullKeyEntry != null) {
+                    nullKeyEntry = null;
+                    size.decrement();
+                }
+                ShakurValueIndex<K, V> index = valueIndex;
+                if (index != null) {
+                    index.clear();
+                }
+                ShakurChangeFeed<K, V> f = feed;
+                if (f != null) {
+                    f.publish(ShakurChangeFeed.Change.Type.CLEAR, null, null);
+                }
+            } finally {
+                nullKeyLock.unlock();
+                for (ReentrantLock lock : locks) {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            globalLock.unlock();
+        }
+        // пустая таблица пиковой длины не нужна: сжимается тем же переносом, что и ресайз
+        compact(2, minShrinkCapacity());
+        awaitDurable();
+    }
+
+    private int clearBuckets(AtomicReferenceArray<ShakurEntry<K, V>> buckets) {
+        int removed = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            ShakurEntry<K, V> head = buckets.get(i);
+            if (head == null || head.hash == MOVED) {
+                continue;
+            }
+            if (head.hash == TREEBIN) {
+                removed += ((TreeBin<K, V>) head).count;
+            } else {
+                for (ShakurEntry<K, V> entry = head; entry != null; entry = entry.next) {
+                    removed++;
+                }
+            }
+            preserve(buckets, i);
+            buckets.set(i, null);
+        }
+        return removed;
+    }
+
+    // Неизменяемый снимок карты на момент вызова. Стоит O(числа полос), а не O(размера):
+    // под всеми блокировками, как в clear, запоминаются только ссылки на таблицы. Дальше
+    // писатель перед первым после снимка изменением бакета копирует в снимок его прежнее
+    // содержимое, так что память снимка растёт с числом изменённых бакетов. Ресайз при
+    // открытом снимке меняет все бакеты и копирует их все. Снимок нужно закрыть; забытый
+    // перестаёт стоить писателям копий, когда его соберёт сборщик мусора
+    public Snapshot<K, V> snapshot() {
+        globalLock.lock();
+        try {
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+            }
+            nullKeyLock.lock();
+            try {
+                // перенос читается раньше таблицы, как в clear
+                Transfer<K, V> current = transfer.get();
+                AtomicReferenceArray<ShakurEntry<K, V>> buckets = arrayBuckets;
+                ShakurEntry<K, V> nullEntry = nullKeyEntry;
+                Snapshot<K, V> snapshot = new Snapshot<>(this, buckets,
+                        current != null && current.to != buckets ? current.to : null,
+                        nullEntry != null, nullEntry == null ? null : nullEntry.value);
+                List<WeakReference<Snapshot<K, V>>> open = openSnapshots();
+                open.add(new WeakReference<>(snapshot));
+                setSnapshots(open);
+                return snapshot;
+            } finally {
+                nullKeyLock.unlock();
+                for (ReentrantLock lock : locks) {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            globalLock.unlock();
+        }
+    }
+
+    private void closeSnapshot(Snapshot<K, V> snapshot) {
+        globalLock.lock();
+        try {
+            List<WeakReference<Snapshot<K, V>>> open = openSnapshots();
+            open.removeIf(ref -> ref.get() == snapshot);
+            setSnapshots(open);
+        } finally {
+            globalLock.unlock();
+        }
+    }
+
+    // снимки реестра, которые ещё не собраны; вызывается под globalLock
+    private List<WeakReference<Snapshot<K, V>>> openSnapshots() {
+        List<WeakReference<Snapshot<K, V>>> open = new ArrayList<>();
+        WeakReference<Snapshot<K, V>>[] refs = snapshots;
+        if (refs != null) {
+            for (WeakReference<Snapshot<K, V>> ref : refs) {
+                if (ref.get() != null) {
+                    open.add(ref);
+                }
+            }
+        }
+        return open;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setSnapshots(List<WeakReference<Snapshot<K, V>>> open) {
+        snapshots = open.isEmpty() ? null : open.toArray(new WeakReference[0]);
+    }
+
+    // Представления живые и слабо согласованные: читают таблицу напрямую через Traverser,
+    // без копирования и без блокировок, а изменения через них уходят в саму карту
+    @Override
+    public Set<K> keySet() {
+        KeySetView view = keySet;
+        return view != null ? view : (keySet = new KeySetView());
+    }
+
+    @Override
+    public Collection<V> values() {
+        ValuesView view = values;
+        return view != null ? view : (values = new ValuesView());
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        EntrySetView view = entrySet;
+        return view != null ? view : (entrySet = new EntrySetView());
+    }
+
+    // удаляет ключ и сообщает, был ли он; remove(key) не различает отсутствие и null-значение
+    private boolean removeKey(Object key) {
+        @SuppressWarnings("unchecked")
+        Object previous = update((K) key, (k, oldValue, present) -> present ? REMOVE : KEEP, false);
+        return previous != ABSENT;
+    }
+
+    private final class KeySetView extends AbstractSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        @Override
+        public Spliterator<K> spliterator() {
+            return new BucketSpliterator<>(entry -> entry.key, Spliterator.DISTINCT);
+        }
+
+        @Override
+        public int size() {
+            return ShakurMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ShakurMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return removeKey(o);
+        }
+
+        @Override
+        public void clear() {
+            ShakurMap.this.clear();
+        }
+    }
+
+    private final class ValuesView extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        @Override
+        public Spliterator<V> spliterator() {
+            return new BucketSpliterator<>(entry -> entry.value, 0);
+        }
+
+        @Override
+        public int size() {
+            return ShakurMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ShakurMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            ShakurMap.this.clear();
+        }
+    }
+
+    private final class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> spliterator() {
+            return new BucketSpliterator<>(entry -> new MapEntry(entry.key, entry.value),
+                    Spliterator.DISTINCT | Spliterator.NONNULL);
+        }
+
+        @Override
+        public int size() {
+            return ShakurMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return ShakurMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            ShakurEntry<K, V> entry = e.getKey() == null ? nullKeyEntry : findEntry(e.getKey());
+            return entry != null && Objects.equals(entry.value, e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return ShakurMap.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            ShakurMap.this.clear();
+        }
+    }
+
+    // Ключ null отдаётся первым, дальше бакеты по порядку. Видит все элементы, которые были
+    // в карте на момент создания и не удалены за время обхода; параллельные изменения
+    // может увидеть, а может и нет. ConcurrentModificationException не бросает
+    private abstract class BaseIterator<T> implements Iterator<T> {
+        private final Traverser traverser = new Traverser(arrayBuckets);
+        private ShakurEntry<K, V> next;
+        private ShakurEntry<K, V> lastReturned;
+
+        BaseIterator() {
+            next = nullKeyEntry;
+            if (next == null) {
+                next = traverser.advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        ShakurEntry<K, V> nextEntry() {
+            ShakurEntry<K, V> entry = next;
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+            next = traverser.advance();
+            lastReturned = entry;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            ShakurEntry<K, V> entry = lastReturned;
+            if (entry == null) {
+                throw new IllegalStateException();
+            }
+            lastReturned = null;
+            ShakurMap.this.remove(entry.key);
+        }
+    }
+
+    private final class KeyIterator extends BaseIterator<K> {
+        @Override
+        public K next() {
+            return nextEntry().key;
+        }
+    }
+
+    private final class ValueIterator extends BaseIterator<V> {
+        @Override
+        public V next() {
+            return nextEntry().value;
+        }
+    }
+
+    private final class EntryIterator extends BaseIterator<Map.Entry<K, V>> {
+        @Override
+        public Map.Entry<K, V> next() {
+            ShakurEntry<K, V> entry = nextEntry();
+            return new MapEntry(entry.key, entry.value);
+        }
+    }
+
+    // Делится пополам по диапазонам бакетов таблицы, пока обход не начат. Размер - оценка
+    // по mappingCount на момент создания: SIZED при параллельных изменениях не гарантируется,
+    // и по контракту Spliterator вместе с CONCURRENT не заявляется
+    private final class BucketSpliterator<T> implements Spliterator<T> {
+        private final AtomicReferenceArray<ShakurEntry<K, V>> buckets;
+        private final Function<ShakurEntry<K, V>, T> mapper;
+        private final int characteristics;
+        private ShakurEntry<K, V> nullEntry; // только у исходного сплитератора
+        private Traverser traverser; // создаётся при первом шаге, после этого деление запрещено
+        private int lo;
+        private final int hi;
+        private long estimate;
+
+        BucketSpliterator(Function<ShakurEntry<K, V>, T> mapper, int characteristics) {
+            this(arrayBuckets, 0, -1, mappingCount(), mapper, characteristics);
+            this.nullEntry = nullKeyEntry;
+        }
+
+        private BucketSpliterator(AtomicReferenceArray<ShakurEntry<K, V>> buckets, int lo, int hi, long estimate,
+                                  Function<ShakurEntry<K, V>, T> mapper, int characteristics) {
+            this.buckets = buckets;
+            this.lo = lo;
+            this.hi = hi < 0 ? buckets.length() : hi;
+            this.estimate = estimate;
+            this.mapper = mapper;
+            this.characteristics = characteristics | Spliterator.CONCURRENT;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int mid = (lo + hi) >>> 1;
+            if (traverser != null || mid <= lo) {
+                return null;
+            }
+            estimate >>>= 1;
+            BucketSpliterator<T> prefix = new BucketSpliterator<>(buckets, lo, mid, estimate, mapper, characteristics);
+            lo = mid;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            ShakurEntry<K, V> entry = nullEntry;
+            if (entry != null) {
+                nullEntry = null;
+            } else {
+                if (traverser == null) {
+                    traverser = new Traverser(buckets, lo, hi);
+                }
+                entry = traverser.advance();
+                if (entry == null) {
+                    return false;
+                }
+            }
+            action.accept(mapper.apply(entry));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            ShakurEntry<K, V> entry = nullEntry;
+            if (entry != null) {
+                nullEntry = null;
+                action.accept(mapper.apply(entry));
+            }
+            if (traverser == null) {
+                traverser = new Traverser(buckets, lo, hi);
+            }
+            while ((entry = traverser.advance()) != null) {
+                action.accept(mapper.apply(entry));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics;
+        }
+    }
+
+    // Снимок из snapshot(). Бакет читается из копии, если писатели её уже сделали, иначе
+    // из живой таблицы, после чего копия проверяется ещё раз: писатель сохраняет её до
+    // изменения, поэтому читатель, заметивший изменение, найдёт и копию. Бакеты, которые
+    // на момент снимка уже были перенесены незавершённым ресайзом, читаются из next так же.
+    // Изменять снимок нельзя; после close() чтение бросает IllegalStateException
+    public static final class Snapshot<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+        private final ShakurMap<K, V> map;
+        private final AtomicReferenceArray<ShakurEntry<K, V>> table;
+        private final AtomicReferenceArray<ShakurEntry<K, V>> next; // куда шёл перенос, null - не шёл
+        private final Map<Integer, ShakurEntry<K, V>[]> saved = new ConcurrentHashMap<>(); // копии бакетов table
+        private final Map<Integer, ShakurEntry<K, V>[]> savedNext = new ConcurrentHashMap<>(); // копии бакетов next
+        private final boolean hasNullKey;
+        private final V nullValue;
+        private volatile int size = -1; // считается обходом при первом запросе
+        private volatile boolean closed;
+        private Set<Map.Entry<K, V>> entrySet;
+
+        private Snapshot(ShakurMap<K, V> map, AtomicReferenceArray<ShakurEntry<K, V>> table,
+                         AtomicReferenceArray<ShakurEntry<K, V>> next, boolean hasNullKey, V nullValue) {
+            this.map = map;
+            this.table = table;
+            this.next = next;
+            this.hasNullKey = hasNullKey;
+            this.nullValue = nullValue;
+        }
+
+        // под блокировкой полосы бакета: копию одного бакета делает один поток
+        private void preserve(AtomicReferenceArray<ShakurEntry<K, V>> buckets, int index) {
+            Map<Integer, ShakurEntry<K, V>[]> store = buckets == table ? saved : buckets == next ? savedNext : null;
+            if (store != null && !store.containsKey(index)) {
+                store.put(index, copy(buckets.get(index)));
+            }
+        }
+
+        // копии узлов бакета: значения живых узлов меняются на месте
+        @SuppressWarnings("unchecked")
+        private static <K, V> ShakurEntry<K, V>[] copy(ShakurEntry<K, V> head) {
+            List<ShakurEntry<K, V>> copies = new ArrayList<>();
+            if (head != null && head.hash == TREEBIN) {
+                for (ShakurEntry<K, V> entry : ((TreeBin<K, V>) head).entries()) {
+                    copies.add(new ShakurEntry<>(entry.hash, entry.key, entry.value, null));
+                }
+            } else {
+                for (ShakurEntry<K, V> entry = head; entry != null; entry = entry.next) {
+                    copies.add(new ShakurEntry<>(entry.hash, entry.key, entry.value, null));
+                }
+            }
+            return copies.toArray(new ShakurEntry[0]);
+        }
+
+        // Содержимое бакета на момент снимка; null - бакет уже тогда был перенесён в next
+        private ShakurEntry<K, V>[] bucket(AtomicReferenceArray<ShakurEntry<K, V>> buckets,
+                                           Map<Integer, ShakurEntry<K, V>[]> store, int index) {
+            ShakurEntry<K, V>[] entries = store.get(index);
+            if (entries != null) {
+                return entries;
+            }
+            ShakurEntry<K, V> head = buckets.get(index);
+            ShakurEntry<K, V>[] live = head != null && head.hash == MOVED ? null : copy(head);
+            entries = store.get(index);
+            return entries != null ? entries : live;
+        }
+
+        // узлы, лежавшие на момент снимка в бакете index таблицы table
+        private void collect(int index, List<ShakurEntry<K, V>> out) {
+            ShakurEntry<K, V>[] entries = bucket(table, saved, index);
+            if (entries != null) {
+                Collections.addAll(out, entries);
+            } else if (next.length() > table.length()) {
+                for (int newIndex = index; newIndex < next.length(); newIndex += table.length()) {
+                    Collections.addAll(out, bucket(next, savedNext, newIndex));
+                }
+            } else {
+                for (ShakurEntry<K, V> entry : bucket(next, savedNext, index & (next.length() - 1))) {
+                    if (indexFor(entry.hash, table.length()) == index) {
+                        out.add(entry);
+                    }
+                }
+            }
+        }
+
+        private ShakurEntry<K, V> find(Object key) {
+            int hash = hash(key);
+            ShakurEntry<K, V>[] entries = bucket(table, saved, indexFor(hash, table.length()));
+            if (entries == null) {
+                entries = bucket(next, savedNext, indexFor(hash, next.length()));
+            }
+            for (ShakurEntry<K, V> entry : entries) {
+                if (entry.hash == hash && entry.key.equals(key)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            checkOpen();
+            if (key == null) {
+                return nullValue;
+            }
+            ShakurEntry<K, V> entry = find(key);
+            return entry == null ? null : entry.value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            checkOpen();
+            return key == null ? hasNullKey : find(key) != null;
+        }
+
+        @Override
+        public int size() {
+            checkOpen();
+            int count = size;
+            if (count < 0) {
+                count = 0;
+                for (Iterator<Map.Entry<K, V>> it = new SnapshotIterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                size = count;
+            }
+            return count;
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            Set<Map.Entry<K, V>> es = entrySet;
+            if (es == null) {
+                es = new AbstractSet<>() {
+                    @Override
+                    public Iterator<Map.Entry<K, V>> iterator() {
+                        checkOpen();
+                        return new SnapshotIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return Snapshot.this.size();
+                    }
+                };
+                entrySet = es;
+            }
+            return es;
+        }
+
+        // Снимает снимок с учёта: писатели больше не копируют для него бакеты
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                map.closeSnapshot(this);
+                saved.clear();
+                savedNext.clear();
+            }
+        }
+
+        // Обходит бакеты table по порядку, ключ null - первым
+        private final class SnapshotIterator implements Iterator<Map.Entry<K, V>> {
+            private final List<ShakurEntry<K, V>> entries = new ArrayList<>();
+            private int bucketIndex;
+            private int position;
+            private boolean nullKeyPending = hasNullKey;
+
+            @Override
+            public boolean hasNext() {
+                if (nullKeyPending) {
+                    return true;
+                }
+                while (position == entries.size() && bucketIndex < table.length()) {
+                    entries.clear();
+                    position = 0;
+                    collect(bucketIndex++, entries);
+                }
+                return position < entries.size();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                checkOpen();
+                if (nullKeyPending) {
+                    nullKeyPending = false;
+                    return new SimpleImmutableEntry<>(null, nullValue);
+                }
+                ShakurEntry<K, V> entry = entries.get(position++);
+                return new SimpleImmutableEntry<>(entry.key, entry.value);
+            }
+        }
+    }
+
+    // Элемент, отданный наружу: setValue пишет в карту через put, а не в узел таблицы в обход блокировок
+    private final class MapEntry implements Map.Entry<K, V> {
+        private final K key;
+        private V value;
+
+        MapEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            put(key, value);
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    // Обход бакетов [baseIndex, baseLimit) без блокировок. Перенаправленный бакет
+    // обходится через бакеты новой таблицы, куда могли уйти его ключи; из них берутся только
+    // ключи исходного бакета, так что каждый ключ встречается не больше одного раза
+    private final class Traverser {
+        private final AtomicReferenceArray<ShakurEntry<K, V>> base;
+        private final int baseLimit;
+        private int baseIndex;
+        private int visiting; // исходный бакет, который обходится сейчас
+        private boolean forwarded; // текущая цепочка взята из новой таблицы
+        private ShakurEntry<K, V> current;
+        private ShakurEntry<K, V>[] treeEntries; // узлы текущего бакета-дерева
+        private int treeIndex;
+
+        // отложенные бакеты новых таблиц
+        @SuppressWarnings("unchecked")
+        private AtomicReferenceArray<ShakurEntry<K, V>>[] pendingBuckets = new AtomicReferenceArray[4];
+        private int[] pendingIndexes = new int[4];
+        private int pending;
+
+        Traverser(AtomicReferenceArray<ShakurEntry<K, V>> base) {
+            this(base, 0, base.length());
+        }
+
+        Traverser(AtomicReferenceArray<ShakurEntry<K, V>> base, int baseIndex, int baseLimit) {
+            this.base = base;
+            this.baseIndex = baseIndex;
+            this.baseLimit = baseLimit;
+        }
+
+        ShakurEntry<K, V> advance() {
+            ShakurEntry<K, V> entry = current == null ? null : current.next;
+
+            while (true) {
+                if (entry == null && treeEntries != null) {
+                    if (treeIndex < treeEntries.length) {
+                        entry = treeEntries[treeIndex++];
+                    } else {
+                        treeEntries = null;
+                    }
+                }
+                if (entry != null) {
+                    if (!forwarded || indexFor(entry.hash, base.length()) == visiting) {
+                        current = entry;
+                        return entry;
+                    }
+                    entry = entry.next;
+                    continue;
+                }
+
+                AtomicReferenceArray<ShakurEntry<K, V>> buckets;
+                int index;
+                if (pending > 0) {
+                    pending--;
+                    buckets = pendingBuckets[pending];
+                    index = pendingIndexes[pending];
+                    forwarded = true;
+                } else if (baseIndex < baseLimit) {
+                    buckets = base;
+                    index = baseIndex++;
+                    visiting = index;
+                    forwarded = false;
+                } else {
+                    current = null;
+                    return null;
+                }
+
+                entry = buckets.get(index);
+                if (entry != null && entry.hash == MOVED) {
+                    AtomicReferenceArray<ShakurEntry<K, V>> to = ((ForwardingEntry<K, V>) entry).transfer.to;
+                    if (to.length() > buckets.length()) {
+                        for (int newIndex = index; newIndex < to.length(); newIndex += buckets.length()) {
+                            push(to, newIndex);
+                        }
+                    } else {
+                        push(to, index & (to.length() - 1));
+                    }
+                    entry = null;
+                } else if (entry != null && entry.hash == TREEBIN) {
+                    treeEntries = ((TreeBin<K, V>) entry).entries();
+                    treeIndex = 0;
+                    entry = null;
+                }
+            }
+        }
+
+        private void push(AtomicReferenceArray<ShakurEntry<K, V>> buckets, int index) {
+            if (pending == pendingIndexes.length) {
+                pendingBuckets = Arrays.copyOf(pendingBuckets, pending * 2);
+                pendingIndexes = Arrays.copyOf(pendingIndexes, pending * 2);
+            }
+            pendingBuckets[pending] = buckets;
+            pendingIndexes[pending] = index;
+            pending++;
+        }
     }
 }
@@ -0,0 +1,43 @@
+package ru.shakur;
+
+// Статистика ShakurMap для JMX, включается через ShakurMap.enableStatistics.
+// Счётчики считаются с момента включения или последнего reset
+public interface ShakurMapMXBean {
+
+    long getSize();
+
+    int getTableLength();
+
+    // операции: чтения без блокировок, вставки и замены, удаления, атомарные пересчёты (compute, merge ...)
+    long getReads();
+
+    long getWrites();
+
+    long getRemoves();
+
+    long getUpdates();
+
+    // захваты блокировок-полос, элемент i - полоса i; contended - захваты, которым пришлось ждать
+    long[] getLockAcquisitions();
+
+    long[] getContendedAcquisitions();
+
+    long getTotalLockAcquisitions();
+
+    long getTotalContendedAcquisitions();
+
+    // элемент i - число бакетов текущей таблицы из i узлов, последний - из стольких и больше.
+    // Считается обходом таблицы при каждом запросе
+    long[] getChainLengthHistogram();
+
+    long getResizeCount();
+
+    long getResizeTimeNanos();
+
+    long getLastResizeTimeNanos();
+
+    // сколько операции провели в помощи переносу таблицы вместо своей работы
+    long getResizeWaitNanos();
+
+    void reset();
+}
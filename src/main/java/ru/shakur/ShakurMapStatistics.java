@@ -0,0 +1,167 @@
+package ru.shakur;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счётчики режима статистики ShakurMap. Операции считаются полосатыми LongAdder, захваты
+// блокировок - в ячейках своей полосы: они пишутся под самой блокировкой, поэтому обычные
+// инкременты без CAS, а каждая полоса занимает отдельную строку кэша. Ячейки пишутся opaque,
+// читаются acquire: MXBean из другого потока видит свежие значения, а не закэшированные
+final class ShakurMapStatistics implements ShakurMapMXBean {
+
+    static final int CHAIN_HISTOGRAM_SIZE = 10; // бакеты из 0..8 узлов и из 9 и больше
+    private static final int STRIPE_PADDING = 8; // long на полосу: 64 байта, соседние полосы не делят строку кэша
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final ShakurMap<?, ?> map;
+    private final int stripes;
+    // [(s + 1) * STRIPE_PADDING] - захваты, [+ 1] - захваты с ожиданием. Пустые блоки в начале
+    // и в конце отделяют крайние полосы от заголовка массива и от соседних объектов
+    private final long[] stripeCounters;
+    final LongAdder reads = new LongAdder();
+    final LongAdder writes = new LongAdder();
+    final LongAdder removes = new LongAdder();
+    final LongAdder updates = new LongAdder();
+    private final LongAdder resizes = new LongAdder();
+    private final LongAdder resizeNanos = new LongAdder();
+    private final LongAdder resizeWaitNanos = new LongAdder();
+    private volatile long lastResizeNanos;
+
+    ShakurMapStatistics(ShakurMap<?, ?> map, int stripes) {
+        this.map = map;
+        this.stripes = stripes;
+        this.stripeCounters = new long[(stripes + 2) * STRIPE_PADDING];
+    }
+
+    // вызывается с уже взятой блокировкой полосы stripe
+    void recordLock(int stripe, boolean contended) {
+        int slot = (stripe + 1) * STRIPE_PADDING;
+        increment(slot);
+        if (contended) {
+            increment(slot + 1);
+        }
+    }
+
+    // писатели ячейки упорядочены блокировкой полосы, поэтому чтение и запись без CAS
+    private void increment(int slot) {
+        COUNTERS.setOpaque(stripeCounters, slot, (long) COUNTERS.getOpaque(stripeCounters, slot) + 1);
+    }
+
+    void recordResize(long nanos) {
+        resizes.increment();
+        resizeNanos.add(nanos);
+        lastResizeNanos = nanos;
+    }
+
+    void recordResizeWait(long nanos) {
+        resizeWaitNanos.add(nanos);
+    }
+
+    @Override
+    public long getSize() {
+        return map.mappingCount();
+    }
+
+    @Override
+    public int getTableLength() {
+        return map.tableLength();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long[] getLockAcquisitions() {
+        return stripeColumn(0);
+    }
+
+    @Override
+    public long[] getContendedAcquisitions() {
+        return stripeColumn(1);
+    }
+
+    @Override
+    public long getTotalLockAcquisitions() {
+        return sum(stripeColumn(0));
+    }
+
+    @Override
+    public long getTotalContendedAcquisitions() {
+        return sum(stripeColumn(1));
+    }
+
+    @Override
+    public long[] getChainLengthHistogram() {
+        return map.chainLengthHistogram(CHAIN_HISTOGRAM_SIZE);
+    }
+
+    @Override
+    public long getResizeCount() {
+        return resizes.sum();
+    }
+
+    @Override
+    public long getResizeTimeNanos() {
+        return resizeNanos.sum();
+    }
+
+    @Override
+    public long getLastResizeTimeNanos() {
+        return lastResizeNanos;
+    }
+
+    @Override
+    public long getResizeWaitNanos() {
+        return resizeWaitNanos.sum();
+    }
+
+    // Счётчики полос обнуляются без блокировок: захват, идущий в этот момент, может пережить сброс
+    @Override
+    public void reset() {
+        reads.reset();
+        writes.reset();
+        removes.reset();
+        updates.reset();
+        resizes.reset();
+        resizeNanos.reset();
+        resizeWaitNanos.reset();
+        lastResizeNanos = 0;
+        for (int slot = 0; slot < stripeCounters.length; slot++) {
+            COUNTERS.setRelease(stripeCounters, slot, 0L);
+        }
+    }
+
+    private long[] stripeColumn(int column) {
+        long[] result = new long[stripes];
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            result[stripe] = (long) COUNTERS.getAcquire(stripeCounters, (stripe + 1) * STRIPE_PADDING + column);
+        }
+        return result;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,474 @@
+package ru.shakur;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+// Карта, хранящая ключи и значения вне кучи, в прямых ByteBuffer-плитах (slab).
+// На куче остаются только массивы адресов голов бакетов: long[] сборщик не сканирует,
+// поэтому стоимость сборки мусора не растёт вместе с объёмом данных.
+// Ключи делятся на сегменты, у каждого своя блокировка, свои бакеты и свои плиты (как полосы ShakurMap);
+// читатели одного сегмента идут параллельно под блокировкой чтения, писатели - под блокировкой записи.
+// Запись: [next 8][hash 4][длина ключа 4][длина значения 4][ключ][значение] в блоке размером
+// степень двойки. Освобождённые блоки уходят в список свободных своего класса размера и
+// переиспользуются следующими записями того же класса. Ключи сравниваются по сериализованным байтам
+public class ShakurOffHeapMap<K, V> {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16; // число сегментов по умолчанию
+    private static final int DEFAULT_SLAB_SIZE = 1 << 20; // размер плиты, в которую нарезаются блоки
+    private static final int INITIAL_BUCKETS = 16; // бакетов в новом сегменте
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int MIN_BLOCK_SHIFT = 5; // самый маленький блок - 32 байта
+    private static final int MAX_BLOCK_SHIFT = 30;
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int MAX_SCRATCH = 1 << 16; // больше буфер потока не держит, крупные значения - разовым буфером
+
+    // смещения полей записи внутри блока
+    private static final int NEXT = 0;
+    private static final int HASH = 8;
+    private static final int KEY_LENGTH = 12;
+    private static final int VALUE_LENGTH = 16;
+    private static final int HEADER = 20;
+
+    private final ShakurSerializer<K> keySerializer;
+    private final ShakurSerializer<V> valueSerializer;
+    private final LongAdder size = new LongAdder(); // количество элементов, полосатый счётчик
+    private final Segment[] segments;
+    private final int segmentShift; // сегмент берётся по старшим битам перемешанного хэша
+    private final int slabSize;
+    // ключ кодируется в буфер потока: поиск не создаёт на куче ни массива, ни срезов
+    private final ThreadLocal<ByteBuffer> keyScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64));
+    // значение кодируется сюда до блокировки и только потом копируется в плиту
+    private final ThreadLocal<ByteBuffer> valueScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    public ShakurOffHeapMap(ShakurSerializer<K> keySerializer, ShakurSerializer<V> valueSerializer) {
+        this(keySerializer, valueSerializer, DEFAULT_CONCURRENCY_LEVEL, DEFAULT_SLAB_SIZE);
+    }
+
+    // slabSize - сколько прямой памяти сегмент выделяет за раз; блоки больше половины плиты
+    // получают отдельную плиту своего размера
+    public ShakurOffHeapMap(ShakurSerializer<K> keySerializer, ShakurSerializer<V> valueSerializer,
+                            int concurrencyLevel, int slabSize) {
+        this.keySerializer = Objects.requireNonNull(keySerializer);
+        this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+        }
+        if (slabSize < (1 << MIN_BLOCK_SHIFT)) {
+            throw new IllegalArgumentException("Illegal slab size: " + slabSize);
+        }
+
+        int count = Math.min(concurrencyLevel, MAX_SEGMENTS);
+        count = count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+        this.slabSize = slabSize;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    // Сегмент: бакеты на куче, записи в плитах, свои списки свободных блоков.
+    // Все поля меняются только под блокировкой записи сегмента
+    private static final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long[] heads = new long[INITIAL_BUCKETS]; // адрес первой записи бакета, 0 - пусто
+        int count;
+        ByteBuffer[] slabs = new ByteBuffer[4];
+        int slabCount;
+        int bumpSlab = -1; // плита, из которой сейчас нарезаются новые блоки
+        int bumpOffset;
+        final long[] freeHeads = new long[MAX_BLOCK_SHIFT + 1]; // списки свободных блоков по классам
+        long capacityBytes;
+        long usedBytes;
+
+        // адрес = (номер плиты + 1) << 32 | смещение, поэтому 0 никогда не бывает адресом
+        ByteBuffer slab(long address) {
+            return slabs[(int) (address >>> 32) - 1];
+        }
+
+        static int offset(long address) {
+            return (int) address;
+        }
+
+        long next(long address) {
+            return slab(address).getLong(offset(address) + NEXT);
+        }
+
+        void setNext(long address, long next) {
+            slab(address).putLong(offset(address) + NEXT, next);
+        }
+
+        long allocate(int shift, int slabSize) {
+            int blockSize = 1 << shift;
+            usedBytes += blockSize;
+            long free = freeHeads[shift];
+            if (free != 0) {
+                freeHeads[shift] = next(free);
+                return free;
+            }
+            if (blockSize > slabSize / 2) {
+                return ((long) (addSlab(blockSize) + 1) << 32);
+            }
+            if (bumpSlab < 0 || bumpOffset + blockSize > slabs[bumpSlab].capacity()) {
+                bumpSlab = addSlab(slabSize);
+                bumpOffset = 0;
+            }
+            long address = ((long) (bumpSlab + 1) << 32) | bumpOffset;
+            bumpOffset += blockSize;
+            return address;
+        }
+
+        // блок кладётся в голову списка своего класса, ссылка на следующий - в поле next
+        void free(long address, int shift) {
+            setNext(address, freeHeads[shift]);
+            freeHeads[shift] = address;
+            usedBytes -= 1 << shift;
+        }
+
+        int addSlab(int capacity) {
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, slabCount * 2);
+            }
+            slabs[slabCount] = ByteBuffer.allocateDirect(capacity);
+            capacityBytes += capacity;
+            return slabCount++;
+        }
+
+        // удвоение бакетов перевешивает записи, сами записи не двигаются
+        void resize() {
+            long[] fresh = new long[heads.length * 2];
+            for (long head : heads) {
+                long address = head;
+                while (address != 0) {
+                    long next = next(address);
+                    int index = slab(address).getInt(offset(address) + HASH) & (fresh.length - 1);
+                    setNext(address, fresh[index]);
+                    fresh[index] = address;
+                    address = next;
+                }
+            }
+            heads = fresh;
+        }
+    }
+
+    private static int blockShift(long recordSize) {
+        if (recordSize > 1 << MAX_BLOCK_SHIFT) {
+            throw new IllegalArgumentException("Record too large: " + recordSize + " bytes");
+        }
+        return Math.max(MIN_BLOCK_SHIFT, 64 - Long.numberOfLeadingZeros(recordSize - 1));
+    }
+
+    // как Arrays.hashCode по байтам ключа
+    private static int hash(ByteBuffer keyBytes) {
+        byte[] bytes = keyBytes.array();
+        int h = 1;
+        for (int i = 0; i < keyBytes.limit(); i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : (hash * 0x9E3779B9) >>> segmentShift];
+    }
+
+    // Байты ключа в буфере потока, позиции [0, limit); годны до следующего вызова в этом потоке
+    private ByteBuffer encodeKey(K key) {
+        Objects.requireNonNull(key);
+        int length = keySerializer.sizeOf(key);
+        return encode(keySerializer, key, length, keyScratch);
+    }
+
+    private static <T> ByteBuffer encode(ShakurSerializer<T> serializer, T value, int length,
+                                         ThreadLocal<ByteBuffer> scratch) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+            if (length <= MAX_SCRATCH) {
+                scratch.set(buffer);
+            }
+        }
+        buffer.clear().limit(length);
+        serializer.write(value, buffer);
+        checkWritten(buffer, length);
+        return buffer.flip();
+    }
+
+    private static void checkWritten(ByteBuffer buffer, int expected) {
+        if (buffer.position() != expected) {
+            throw new IllegalStateException("Serializer wrote " + buffer.position() + " bytes, expected " + expected);
+        }
+    }
+
+    // сравнение абсолютными чтениями плиты, по 8 байт, без срезов
+    private static boolean matches(Segment segment, long address, int hash, ByteBuffer keyBytes) {
+        ByteBuffer slab = segment.slab(address);
+        int offset = Segment.offset(address);
+        int length = keyBytes.limit();
+        if (slab.getInt(offset + HASH) != hash || slab.getInt(offset + KEY_LENGTH) != length) {
+            return false;
+        }
+        int start = offset + HEADER;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (slab.getLong(start + i) != keyBytes.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (slab.get(start + i) != keyBytes.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // адрес записи с таким ключом или 0; вызывается под блокировкой сегмента
+    private static long find(Segment segment, int hash, ByteBuffer keyBytes) {
+        for (long address = segment.heads[hash & (segment.heads.length - 1)]; address != 0;
+             address = segment.next(address)) {
+            if (matches(segment, address, hash, keyBytes)) {
+                return address;
+            }
+        }
+        return 0;
+    }
+
+    private static int recordShift(Segment segment, long address) {
+        ByteBuffer slab = segment.slab(address);
+        int offset = Segment.offset(address);
+        return blockShift((long) HEADER + slab.getInt(offset + KEY_LENGTH) + slab.getInt(offset + VALUE_LENGTH));
+    }
+
+    private V readValue(Segment segment, long address) {
+        ByteBuffer slab = segment.slab(address);
+        int offset = Segment.offset(address);
+        int keyLength = slab.getInt(offset + KEY_LENGTH);
+        int valueLength = slab.getInt(offset + VALUE_LENGTH);
+        return valueSerializer.read(slab.slice(offset + HEADER + keyLength, valueLength), valueLength);
+    }
+
+    private K readKey(Segment segment, long address) {
+        ByteBuffer slab = segment.slab(address);
+        int offset = Segment.offset(address);
+        int keyLength = slab.getInt(offset + KEY_LENGTH);
+        return keySerializer.read(slab.slice(offset + HEADER, keyLength), keyLength);
+    }
+
+    // Сериализатор пишет в буфер потока, а не в плиту: исключение или неверная длина
+    // не оставляют ни полузаписанной живой записи, ни занятого блока
+    private ByteBuffer encodeValue(V value, int valueLength) {
+        return encode(valueSerializer, value, valueLength, valueScratch);
+    }
+
+    private static void writeValue(ByteBuffer slab, int offset, int keyLength, ByteBuffer value) {
+        slab.put(offset + HEADER + keyLength, value, 0, value.limit());
+        slab.putInt(offset + VALUE_LENGTH, value.limit());
+    }
+
+    private long writeRecord(Segment segment, int shift, int hash, ByteBuffer keyBytes, ByteBuffer value) {
+        long address = segment.allocate(shift, slabSize);
+        ByteBuffer slab = segment.slab(address);
+        int offset = Segment.offset(address);
+        slab.putInt(offset + HASH, hash);
+        slab.putInt(offset + KEY_LENGTH, keyBytes.limit());
+        slab.put(offset + HEADER, keyBytes, 0, keyBytes.limit());
+        writeValue(slab, offset, keyBytes.limit(), value);
+        return address;
+    }
+
+    public int size() {
+        long n = size.sum();
+        return n < 0 ? 0 : n > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
+    }
+
+    public long mappingCount() {
+        long n = size.sum();
+        return n < 0 ? 0 : n;
+    }
+
+    public boolean isEmpty() {
+        return mappingCount() == 0;
+    }
+
+    public boolean containsKey(K key) {
+        ByteBuffer keyBytes = encodeKey(key);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            return find(segment, hash, keyBytes) != 0;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    // Значение каждый раз десериализуется в новый объект на куче
+    public V get(K key) {
+        ByteBuffer keyBytes = encodeKey(key);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            long address = find(segment, hash, keyBytes);
+            return address == 0 ? null : readValue(segment, address);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    // Значение кодируется до блокировки; того же класса размера - копируется на место старого,
+    // иначе запись переезжает в новый блок, а старый уходит в список свободных
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        ByteBuffer keyBytes = encodeKey(key);
+        int hash = hash(keyBytes);
+        int valueLength = valueSerializer.sizeOf(value);
+        int shift = blockShift((long) HEADER + keyBytes.limit() + valueLength);
+        ByteBuffer encoded = encodeValue(value, valueLength);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.writeLock().lock();
+        try {
+            int index = hash & (segment.heads.length - 1);
+            long previous = 0;
+            for (long address = segment.heads[index]; address != 0; address = segment.next(address)) {
+                if (!matches(segment, address, hash, keyBytes)) {
+                    previous = address;
+                    continue;
+                }
+
+                V oldValue = readValue(segment, address);
+                int oldShift = recordShift(segment, address);
+                if (oldShift == shift) {
+                    writeValue(segment.slab(address), Segment.offset(address), keyBytes.limit(), encoded);
+                    return oldValue;
+                }
+
+                long moved = writeRecord(segment, shift, hash, keyBytes, encoded);
+                segment.setNext(moved, segment.next(address));
+                if (previous == 0) {
+                    segment.heads[index] = moved;
+                } else {
+                    segment.setNext(previous, moved);
+                }
+                segment.free(address, oldShift);
+                return oldValue;
+            }
+
+            long address = writeRecord(segment, shift, hash, keyBytes, encoded);
+            segment.setNext(address, segment.heads[index]);
+            segment.heads[index] = address;
+            segment.count++;
+            size.increment();
+            if (segment.count > segment.heads.length * LOAD_FACTOR) {
+                segment.resize();
+            }
+            return null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    public V remove(K key) {
+        ByteBuffer keyBytes = encodeKey(key);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.writeLock().lock();
+        try {
+            int index = hash & (segment.heads.length - 1);
+            long previous = 0;
+            for (long address = segment.heads[index]; address != 0; address = segment.next(address)) {
+                if (!matches(segment, address, hash, keyBytes)) {
+                    previous = address;
+                    continue;
+                }
+
+                V oldValue = readValue(segment, address);
+                if (previous == 0) {
+                    segment.heads[index] = segment.next(address);
+                } else {
+                    segment.setNext(previous, segment.next(address));
+                }
+                segment.free(address, recordShift(segment, address));
+                segment.count--;
+                size.decrement();
+                return oldValue;
+            }
+            return null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    // Плиты отпускаются целиком: прямую память вернёт сборщик вместе с ByteBuffer
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                size.add(-segment.count);
+                segment.heads = new long[INITIAL_BUCKETS];
+                segment.count = 0;
+                segment.slabs = new ByteBuffer[4];
+                segment.slabCount = 0;
+                segment.bumpSlab = -1;
+                segment.bumpOffset = 0;
+                Arrays.fill(segment.freeHeads, 0);
+                segment.capacityBytes = 0;
+                segment.usedBytes = 0;
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Обход сегментов по очереди, каждый под блокировкой чтения; ключи и значения десериализуются
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                for (long head : segment.heads) {
+                    for (long address = head; address != 0; address = segment.next(address)) {
+                        action.accept(readKey(segment, address), readValue(segment, address));
+                    }
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    // Выделено прямой памяти под плиты
+    public long offHeapCapacity() {
+        long total = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                total += segment.capacityBytes;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return total;
+    }
+
+    // Занято живыми блоками; остальное - свободные списки и недорезанные хвосты плит
+    public long offHeapUsed() {
+        long total = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                total += segment.usedBytes;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,599 @@
+package ru.shakur;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Репликация ShakurMap по TCP: основная карта (Primary) рассылает изменения репликам (Replica),
+// реплики отвечают на get из своей локальной карты без сети.
+// Для каждой реплики у основной карты свой поток отправки: он подписывается на ленту изменений
+// (ShakurChangeFeed), отправляет snapshot() карты и дальше шлёт изменения из подписки пачками.
+// Подписка берётся до снимка, поэтому снимок содержит все изменения до её начала, а записи
+// после - полное состояние ключа, и повтор уже попавших в снимок изменений безвреден.
+// Отставшая реплика получает от ленты переполнение, и поток отправки начинает с нового снимка;
+// основная карта реплик не ждёт.
+// Кадр: [длина 4][тип 1][тело]. Поля - varint длины + 1 и байты, как в снимке и журнале;
+// число записей в кадре - int, который вписывается на зарезервированное место после записей.
+// Номера изменений - номера ленты: position реплики - номер следующего ещё не применённого
+// изменения, sequence основной карты - номер следующего изменения; разница - отставание
+public final class ShakurReplication {
+
+    private static final byte SNAPSHOT_BEGIN = 1;
+    private static final byte SNAPSHOT_ENTRIES = 2; // [число 4]([ключ][значение])*
+    private static final byte SNAPSHOT_END = 3; // [position 8]
+    private static final byte CHANGES = 4; // [sequence основной 8][номер первого 8][число 4](запись)*
+    private static final byte HEARTBEAT = 5; // [sequence основной 8]
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+
+    private static final int FRAME_HEADER = 5;
+    private static final int FRAME_TARGET = 1 << 16; // кадр закрывается, когда набрал столько байт
+    private static final int MAX_FRAME = 1 << 30;
+    private static final int BATCH_RECORDS = 1024; // изменений за один разбор подписки
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // пауза, когда изменений нет
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private ShakurReplication() {
+    }
+
+    // Начинает раздавать map репликам на address (порт 0 - любой свободный). Включает на карте
+    // ленту изменений на feedCapacity записей, если она ещё не включена: это запас на отставание реплик.
+    // Включённую здесь ленту close() выключает, чужую оставляет
+    public static <K, V> Primary<K, V> startPrimary(ShakurMap<K, V> map, InetSocketAddress address,
+                                                    ShakurSerializer<K> keySerializer,
+                                                    ShakurSerializer<V> valueSerializer) throws IOException {
+        return startPrimary(map, address, keySerializer, valueSerializer, ShakurChangeFeed.DEFAULT_CAPACITY);
+    }
+
+    public static <K, V> Primary<K, V> startPrimary(ShakurMap<K, V> map, InetSocketAddress address,
+                                                    ShakurSerializer<K> keySerializer,
+                                                    ShakurSerializer<V> valueSerializer,
+                                                    int feedCapacity) throws IOException {
+        boolean ownsFeed = map.changeFeed() == null;
+        ShakurChangeFeed<K, V> feed = map.enableChangeFeed(feedCapacity);
+        Primary<K, V> primary;
+        try {
+            primary = new Primary<>(map, feed, ownsFeed, address, keySerializer, valueSerializer);
+        } catch (IOException e) {
+            if (ownsFeed) {
+                map.disableChangeFeed(feed);
+            }
+            throw e;
+        }
+        primary.acceptor.start();
+        return primary;
+    }
+
+    // Подключает новую реплику к основной карте; реплика догоняет её в фоне, начиная со снимка
+    public static <K, V> Replica<K, V> connect(InetSocketAddress primary, ShakurSerializer<K> keySerializer,
+                                               ShakurSerializer<V> valueSerializer) throws IOException {
+        SocketChannel channel = SocketChannel.open(primary);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Replica<K, V> replica = new Replica<>(channel, keySerializer, valueSerializer);
+        replica.receiver.start();
+        return replica;
+    }
+
+    public static final class Primary<K, V> implements AutoCloseable {
+        private final ShakurMap<K, V> map;
+        private final ShakurChangeFeed<K, V> feed;
+        private final boolean ownsFeed; // лента включена startPrimary и выключается при close
+        private final ShakurSerializer<K> keySerializer;
+        private final ShakurSerializer<V> valueSerializer;
+        private final ServerSocketChannel server;
+        private final Thread acceptor;
+        private final List<Sender> senders = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        private Primary(ShakurMap<K, V> map, ShakurChangeFeed<K, V> feed, boolean ownsFeed, InetSocketAddress address,
+                        ShakurSerializer<K> keySerializer, ShakurSerializer<V> valueSerializer) throws IOException {
+            this.map = map;
+            this.feed = feed;
+            this.ownsFeed = ownsFeed;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.server = ServerSocketChannel.open().bind(address);
+            this.acceptor = new Thread(this::acceptLoop, "shakur-replication-acceptor");
+            acceptor.setDaemon(true);
+        }
+
+        public InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) server.getLocalAddress();
+        }
+
+        // номер следующего изменения карты
+        public long sequence() {
+            return feed.sequence();
+        }
+
+        public int replicaCount() {
+            return senders.size();
+        }
+
+        // наибольшее отставание подключённых реплик в изменениях, ещё не отправленных им
+        public long maxLag() {
+            long lag = 0;
+            for (Sender sender : senders) {
+                lag = Math.max(lag, sender.lag());
+            }
+            return lag;
+        }
+
+        // Закрывает соединения и дожидается потоков приёма и отправки: после возврата
+        // основная карта не шлёт ничего, а запись в карту снова не платит за ленту
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            server.close();
+            if (ownsFeed) {
+                map.disableChangeFeed(feed);
+            }
+            boolean interrupted = join(acceptor); // после него список отправителей больше не пополняется
+            List<Sender> open = new ArrayList<>(senders);
+            for (Sender sender : open) {
+                sender.close();
+            }
+            for (Sender sender : open) {
+                interrupted |= join(sender.thread);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // true - ожидание прервано, флаг прерывания нужно вернуть вызывающему
+        private static boolean join(Thread thread) {
+            try {
+                thread.join();
+                return false;
+            } catch (InterruptedException e) {
+                return true;
+            }
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    SocketChannel channel = server.accept();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Sender sender = new Sender(channel);
+                    senders.add(sender);
+                    sender.thread.start();
+                } catch (IOException e) {
+                    if (!closed) {
+                        LockSupport.parkNanos(POLL_NANOS); // accept не удался, сервер ещё открыт
+                    }
+                }
+            }
+        }
+
+        // Поток отправки одной реплике
+        private final class Sender {
+            private final SocketChannel channel;
+            private final Thread thread;
+            private final FrameWriter out;
+            private volatile ShakurChangeFeed<K, V>.Subscription subscription;
+
+            Sender(SocketChannel channel) {
+                this.channel = channel;
+                this.out = new FrameWriter(channel);
+                this.thread = new Thread(this::run, "shakur-replication-sender");
+                thread.setDaemon(true);
+            }
+
+            long lag() {
+                ShakurChangeFeed<K, V>.Subscription s = subscription;
+                return s == null ? feed.sequence() : s.lag();
+            }
+
+            void close() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // соединение и так рвётся
+                }
+            }
+
+            private void run() {
+                try {
+                    while (!closed) {
+                        sendSnapshot();
+                        streamChanges(); // возвращается при переполнении подписки
+                    }
+                } catch (IOException e) {
+                    // реплика отключилась; подключённая заново, она начнёт со снимка
+                } finally {
+                    senders.remove(this);
+                    close();
+                }
+            }
+
+            private void sendSnapshot() throws IOException {
+                ShakurChangeFeed<K, V>.Subscription s = feed.subscribe();
+                subscription = s;
+                try (ShakurMap.Snapshot<K, V> snapshot = map.snapshot()) {
+                    out.begin(SNAPSHOT_BEGIN);
+                    out.send();
+                    ByteBuffer entries = out.beginCounted(SNAPSHOT_ENTRIES);
+                    int count = 0;
+                    for (Map.Entry<K, V> entry : snapshot.entrySet()) {
+                        entries = out.ensure(2 * 5 + size(entry.getKey(), keySerializer)
+                                + size(entry.getValue(), valueSerializer));
+                        writeField(entries, entry.getKey(), keySerializer);
+                        writeField(entries, entry.getValue(), valueSerializer);
+                        count++;
+                        if (entries.position() >= FRAME_TARGET) {
+                            out.sendCounted(count);
+                            entries = out.beginCounted(SNAPSHOT_ENTRIES);
+                            count = 0;
+                        }
+                    }
+                    out.sendCounted(count);
+                }
+                out.begin(SNAPSHOT_END).putLong(s.position());
+                out.send();
+            }
+
+            private void streamChanges() throws IOException {
+                ShakurChangeFeed<K, V>.Subscription s = subscription;
+                boolean[] overflow = new boolean[1];
+                long lastSent = System.nanoTime();
+                while (!closed) {
+                    long first = s.position();
+                    out.begin(CHANGES).putLong(0).putLong(first); // sequence основной - перед отправкой
+                    out.reserveCount();
+                    int count = s.drain(change -> {
+                        if (overflow[0] || change.getType() == ShakurChangeFeed.Change.Type.OVERFLOW) {
+                            overflow[0] = true;
+                            return;
+                        }
+                        encode(change);
+                    }, BATCH_RECORDS);
+                    if (overflow[0]) {
+                        return;
+                    }
+                    if (count > 0) {
+                        out.frame().putLong(FRAME_HEADER, feed.sequence());
+                        out.sendCounted(count);
+                        lastSent = System.nanoTime();
+                    } else if (System.nanoTime() - lastSent >= HEARTBEAT_NANOS) {
+                        out.begin(HEARTBEAT).putLong(feed.sequence());
+                        out.send();
+                        lastSent = System.nanoTime();
+                    } else {
+                        LockSupport.parkNanos(POLL_NANOS);
+                    }
+                }
+            }
+
+            private void encode(ShakurChangeFeed.Change<K, V> change) {
+                K key = change.getKey();
+                V value = change.getValue();
+                switch (change.getType()) {
+                    case PUT -> {
+                        ByteBuffer frame = out.ensure(1 + 2 * 5 + size(key, keySerializer) + size(value, valueSerializer));
+                        frame.put(PUT);
+                        writeField(frame, key, keySerializer);
+                        writeField(frame, value, valueSerializer);
+                    }
+                    case REMOVE -> {
+                        ByteBuffer frame = out.ensure(1 + 5 + size(key, keySerializer));
+                        frame.put(REMOVE);
+                        writeField(frame, key, keySerializer);
+                    }
+                    case CLEAR -> out.ensure(1).put(CLEAR);
+                    default -> throw new IllegalStateException("Unexpected change " + change);
+                }
+            }
+        }
+    }
+
+    public static final class Replica<K, V> implements AutoCloseable {
+        private final ShakurMap<K, V> map = new ShakurMap<>();
+        private final SocketChannel channel;
+        private final ShakurSerializer<K> keySerializer;
+        private final ShakurSerializer<V> valueSerializer;
+        private final Thread receiver;
+        private final ReentrantLock progressLock = new ReentrantLock();
+        private final Condition progress = progressLock.newCondition();
+        private volatile long position = -1; // -1 - первый снимок ещё не получен
+        private volatile long primarySequence = -1;
+        private volatile boolean connected = true;
+        private volatile IOException failure;
+        private Set<K> snapshotKeys; // ключи снимка, который сейчас принимается; только поток приёма
+
+        private Replica(SocketChannel channel, ShakurSerializer<K> keySerializer,
+                        ShakurSerializer<V> valueSerializer) {
+            this.channel = channel;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.receiver = new Thread(this::receiveLoop, "shakur-replication-receiver");
+            receiver.setDaemon(true);
+        }
+
+        // Локальная копия для чтения. Менять её может только репликация
+        public ShakurMap<K, V> map() {
+            return map;
+        }
+
+        // номер следующего ещё не применённого изменения основной карты; -1 - снимок ещё не получен
+        public long position() {
+            return position;
+        }
+
+        // последний известный реплике номер следующего изменения основной карты
+        public long primarySequence() {
+            return primarySequence;
+        }
+
+        // на сколько изменений реплика отстаёт от того, что последним сообщила основная карта;
+        // пока снимок не получен - Long.MAX_VALUE
+        public long lag() {
+            long applied = position;
+            return applied < 0 ? Long.MAX_VALUE : Math.max(0L, primarySequence - applied);
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        // причина разрыва соединения, null - не было или закрыто через close(); сбой разбора кадра
+        // или сериализатора приходит завёрнутым в IOException
+        public IOException failure() {
+            return failure;
+        }
+
+        // Ждёт, пока реплика применит все изменения с номерами меньше sequence; false - не дождалась
+        public boolean awaitPosition(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            progressLock.lock();
+            try {
+                while (position < sequence) {
+                    if (remaining <= 0 || !connected) {
+                        return false;
+                    }
+                    remaining = progress.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                progressLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            connected = false;
+            channel.close();
+        }
+
+        private void receiveLoop() {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            ByteBuffer body = ByteBuffer.allocate(FRAME_TARGET * 2);
+            try {
+                while (true) {
+                    header.clear();
+                    readFully(header);
+                    int length = header.flip().getInt();
+                    if (length < 1 || length > MAX_FRAME) {
+                        throw new IOException("Corrupted replication frame, length " + length);
+                    }
+                    if (body.capacity() < length) {
+                        body = ByteBuffer.allocate(length);
+                    }
+                    body.clear().limit(length);
+                    readFully(body);
+                    body.flip();
+                    apply(body);
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                // короткий кадр (BufferUnderflowException) или ошибка сериализатора: поток приёма
+                // остановлен, и у разрыва должна быть причина, а не вид чистого отключения
+                if (connected) {
+                    failure = new IOException("Replication stream failed: " + e, e);
+                }
+            } finally {
+                connected = false;
+                signalProgress();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // уже закрыто
+                }
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Primary closed the connection");
+                }
+            }
+        }
+
+        private void apply(ByteBuffer frame) throws IOException {
+            byte type = frame.get();
+            switch (type) {
+                case SNAPSHOT_BEGIN -> snapshotKeys = new HashSet<>();
+                case SNAPSHOT_ENTRIES -> {
+                    int count = frame.getInt();
+                    for (int i = 0; i < count; i++) {
+                        K key = readField(frame, keySerializer);
+                        map.put(key, readField(frame, valueSerializer));
+                        snapshotKeys.add(key);
+                    }
+                }
+                case SNAPSHOT_END -> {
+                    // при пересинхронизации копия не очищалась заранее, чтобы get не видел пустую карту:
+                    // лишние ключи удаляются только теперь
+                    Set<K> keys = snapshotKeys;
+                    map.keySet().removeIf(key -> !keys.contains(key));
+                    if (map.containsKey(null) && !keys.contains(null)) {
+                        map.remove(null);
+                    }
+                    snapshotKeys = null;
+                    advance(frame.getLong(), Math.max(primarySequence, 0));
+                }
+                case CHANGES -> {
+                    long sequence = frame.getLong();
+                    long first = frame.getLong();
+                    int count = frame.getInt();
+                    for (int i = 0; i < count; i++) {
+                        applyChange(frame);
+                    }
+                    advance(first + count, sequence);
+                }
+                case HEARTBEAT -> advance(position, frame.getLong());
+                default -> throw new IOException("Unknown replication frame type " + type);
+            }
+        }
+
+        private void applyChange(ByteBuffer frame) throws IOException {
+            byte type = frame.get();
+            switch (type) {
+                case PUT -> {
+                    K key = readField(frame, keySerializer);
+                    map.put(key, readField(frame, valueSerializer));
+                }
+                case REMOVE -> map.remove(readField(frame, keySerializer));
+                case CLEAR -> map.clear();
+                default -> throw new IOException("Unknown replication record type " + type);
+            }
+        }
+
+        private void advance(long newPosition, long newPrimarySequence) {
+            progressLock.lock();
+            try {
+                position = newPosition;
+                primarySequence = Math.max(newPrimarySequence, newPosition);
+                progress.signalAll();
+            } finally {
+                progressLock.unlock();
+            }
+        }
+
+        private void signalProgress() {
+            progressLock.lock();
+            try {
+                progress.signalAll();
+            } finally {
+                progressLock.unlock();
+            }
+        }
+    }
+
+    // Собирает кадр в растущем буфере и отправляет его целиком; буфер один на поток отправки
+    private static final class FrameWriter {
+        private final SocketChannel channel;
+        private ByteBuffer frame = ByteBuffer.allocate(FRAME_TARGET * 2);
+        private int countPosition; // место под число записей кадра
+
+        FrameWriter(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer begin(byte type) {
+            frame.clear();
+            frame.position(4);
+            frame.put(type);
+            return frame;
+        }
+
+        ByteBuffer beginCounted(byte type) {
+            begin(type);
+            return reserveCount();
+        }
+
+        // число записей известно только после них, поэтому под него оставляется место
+        ByteBuffer reserveCount() {
+            countPosition = frame.position();
+            frame.putInt(0);
+            return frame;
+        }
+
+        ByteBuffer frame() {
+            return frame;
+        }
+
+        ByteBuffer ensure(int bytes) {
+            if (frame.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + bytes));
+                frame.flip();
+                larger.put(frame);
+                frame = larger;
+            }
+            return frame;
+        }
+
+        void sendCounted(int count) throws IOException {
+            frame.putInt(countPosition, count);
+            send();
+        }
+
+        void send() throws IOException {
+            frame.putInt(0, frame.position() - 4);
+            frame.flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+    }
+
+    private static <T> int size(T value, ShakurSerializer<T> serializer) {
+        return value == null ? 0 : serializer.sizeOf(value);
+    }
+
+    private static <T> void writeField(ByteBuffer buffer, T value, ShakurSerializer<T> serializer) {
+        if (value == null) {
+            ShakurSnapshot.writeVarint(buffer, 0);
+            return;
+        }
+        int size = serializer.sizeOf(value);
+        ShakurSnapshot.writeVarint(buffer, size + 1);
+        int start = buffer.position();
+        serializer.write(value, buffer);
+        if (buffer.position() - start != size) {
+            throw new IllegalStateException("Serializer wrote " + (buffer.position() - start)
+                    + " bytes, expected " + size);
+        }
+    }
+
+    private static <T> T readField(ByteBuffer buffer, ShakurSerializer<T> serializer) {
+        int length = readVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer field = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return serializer.read(field, length);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ru.shakur;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Превращение ключей и значений в байты для хранения вне кучи.
+// write пишет ровно sizeOf(value) байт с текущей позиции target,
+// read читает length байт с текущей позиции source
+public interface ShakurSerializer<T> {
+
+    int sizeOf(T value);
+
+    void write(T value, ByteBuffer target);
+
+    T read(ByteBuffer source, int length);
+
+    ShakurSerializer<byte[]> BYTES = new ShakurSerializer<>() {
+        @Override
+        public int sizeOf(byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        public void write(byte[] value, ByteBuffer target) {
+            target.put(value);
+        }
+
+        @Override
+        public byte[] read(ByteBuffer source, int length) {
+            byte[] value = new byte[length];
+            source.get(value);
+            return value;
+        }
+    };
+
+    // UTF-8; кодируется прямо в буфер посимвольно, без промежуточного массива, длина считается
+    // тем же проходом. Непарный суррогат пишется как '?', как у String.getBytes
+    ShakurSerializer<String> STRING = new ShakurSerializer<>() {
+        @Override
+        public int sizeOf(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 3;
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public void write(String value, ByteBuffer target) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    target.put((byte) c);
+                } else if (c < 0x800) {
+                    target.put((byte) (0xC0 | c >> 6));
+                    target.put((byte) (0x80 | c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    target.put((byte) (0xE0 | c >> 12));
+                    target.put((byte) (0x80 | c >> 6 & 0x3F));
+                    target.put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    target.put((byte) (0xF0 | codePoint >> 18));
+                    target.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                    target.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                    target.put((byte) (0x80 | codePoint & 0x3F));
+                } else {
+                    target.put((byte) '?');
+                }
+            }
+        }
+
+        // из буфера в куче строка декодируется прямо из его массива
+        @Override
+        public String read(ByteBuffer source, int length) {
+            if (source.hasArray()) {
+                int position = source.position();
+                String value = new String(source.array(), source.arrayOffset() + position, length, StandardCharsets.UTF_8);
+                source.position(position + length);
+                return value;
+            }
+            byte[] bytes = new byte[length];
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    ShakurSerializer<Long> LONG = new ShakurSerializer<>() {
+        @Override
+        public int sizeOf(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(Long value, ByteBuffer target) {
+            target.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer source, int length) {
+            return source.getLong();
+        }
+    };
+
+    ShakurSerializer<Integer> INTEGER = new ShakurSerializer<>() {
+        @Override
+        public int sizeOf(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(Integer value, ByteBuffer target) {
+            target.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer source, int length) {
+            return source.getInt();
+        }
+    };
+}
@@ -0,0 +1,359 @@
+package ru.shakur;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+// Двоичный образ карты: заголовок [magic 4][версия 4][число записей 8], затем записи
+// [varint длина ключа + 1][ключ][varint длина значения + 1][значение]; длина 0 означает null.
+// Число записей в заголовке позволяет при загрузке сразу создать таблицу нужного размера.
+// Потоковый вариант (версия 2) тот же заголовок, но записи идут блоками [varint длина блока][записи],
+// последний блок нулевой длины: читатель берёт из канала ровно образ карты и ни байта сверх
+final class ShakurSnapshot {
+
+    static final int MAGIC = 0x53484B4D; // "SHKM"
+    static final int VERSION = 1;
+    static final int STREAM_VERSION = 2;
+    static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAX_WINDOW = 1L << 30; // файл отображается окнами, чтобы не упираться в 2 ГБ
+    private static final int MAX_VARINT = 5;
+    private static final int MAX_STREAM_PRESIZE = 1 << 20; // длина потока неизвестна, заголовку верим до этого предела
+
+    private ShakurSnapshot() {
+    }
+
+    // Пишет во временный файл рядом и атомарно подменяет им target: незаконченный снимок
+    // никогда не окажется на месте старого. Возвращает число записанных элементов
+    static <K, V> long write(Map<K, V> map, Path target, ShakurSerializer<? super K> keySerializer,
+                             ShakurSerializer<? super V> valueSerializer) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.position(HEADER_SIZE); // заголовок дописывается в конце, когда известно число записей
+
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                K key = entry.getKey();
+                V value = entry.getValue();
+                int keySize = key == null ? 0 : keySerializer.sizeOf(key);
+                int valueSize = value == null ? 0 : valueSerializer.sizeOf(value);
+                int recordSize = 2 * MAX_VARINT + keySize + valueSize;
+                if (buffer.remaining() < recordSize) {
+                    flush(channel, buffer);
+                    if (buffer.capacity() < recordSize) {
+                        buffer = ByteBuffer.allocate(recordSize);
+                    }
+                }
+                writeField(buffer, key, keySize, keySerializer);
+                writeField(buffer, value, valueSize, valueSerializer);
+                count++;
+            }
+            flush(channel, buffer);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    // Отображает файл в память и заполняет карту, заранее рассчитанную на всё число записей
+    static <K, V> ShakurMap<K, V> read(Path source, ShakurSerializer<? extends K> keySerializer,
+                                       ShakurSerializer<? extends V> valueSerializer) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            MappedInput input = new MappedInput(channel);
+            ByteBuffer header = input.require(HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a ShakurMap snapshot: " + source);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + source);
+            }
+            long count = header.getLong();
+            // запись занимает хотя бы два байта (две пустые длины): больше записей файл вместить не может,
+            // а таблица под такое число создаётся раньше, чем прочитана первая запись
+            if (count < 0 || count > Integer.MAX_VALUE || count > (input.fileSize - HEADER_SIZE) / 2) {
+                throw new IOException("Corrupted snapshot header, count " + count + ": " + source);
+            }
+
+            ShakurMap<K, V> map = new ShakurMap<>((int) count);
+            for (long i = 0; i < count; i++) {
+                K key = readField(input, keySerializer);
+                V value = readField(input, valueSerializer);
+                map.put(key, value);
+            }
+            return map;
+        }
+    }
+
+    // Пишет count записей entries в канал блоками не больше BUFFER_SIZE; count должен совпадать
+    // с числом элементов при обходе, поэтому entries - неизменяемый снимок. Канал не закрывается
+    static <K, V> long writeStream(Map<K, V> entries, long count, WritableByteChannel channel,
+                                   ShakurSerializer<? super K> keySerializer,
+                                   ShakurSerializer<? super V> valueSerializer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(STREAM_VERSION).putLong(count).flip();
+        send(channel, header);
+
+        // первые MAX_VARINT байт буфера оставлены под длину блока: она известна, только когда блок набран
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.position(MAX_VARINT);
+        long written = 0;
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            K key = entry.getKey();
+            V value = entry.getValue();
+            int keySize = key == null ? 0 : keySerializer.sizeOf(key);
+            int valueSize = value == null ? 0 : valueSerializer.sizeOf(value);
+            int recordSize = 2 * MAX_VARINT + keySize + valueSize;
+            if (buffer.remaining() < recordSize) {
+                sendBlock(channel, buffer);
+                if (buffer.remaining() < recordSize) {
+                    buffer = ByteBuffer.allocate(MAX_VARINT + recordSize);
+                    buffer.position(MAX_VARINT);
+                }
+            }
+            writeField(buffer, key, keySize, keySerializer);
+            writeField(buffer, value, valueSize, valueSerializer);
+            written++;
+        }
+        if (written != count) {
+            throw new IllegalStateException("Expected " + count + " entries, got " + written);
+        }
+        if (buffer.position() > MAX_VARINT) {
+            sendBlock(channel, buffer);
+        }
+        sendBlock(channel, buffer); // пустой блок - конец образа
+        return written;
+    }
+
+    // Читает образ, записанный writeStream, в карту, сразу рассчитанную на число записей из заголовка
+    // (до MAX_STREAM_PRESIZE). Из канала берутся только байты образа, за ним могут идти другие данные
+    static <K, V> ShakurMap<K, V> readStream(ReadableByteChannel channel, ShakurSerializer<? extends K> keySerializer,
+                                             ShakurSerializer<? extends V> valueSerializer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        receive(channel, header);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a ShakurMap stream");
+        }
+        int version = header.getInt();
+        if (version != STREAM_VERSION) {
+            throw new IOException("Unsupported stream version " + version);
+        }
+        long count = header.getLong();
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Corrupted stream header, count " + count);
+        }
+
+        // сверить число с длиной нельзя, поэтому заранее создаётся не больше MAX_STREAM_PRESIZE,
+        // дальше карта растёт обычными ресайзами
+        ShakurMap<K, V> map = new ShakurMap<>((int) Math.min(count, MAX_STREAM_PRESIZE));
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer single = ByteBuffer.allocate(1);
+        long read = 0;
+        while (true) {
+            int length = readBlockLength(channel, single);
+            if (length == 0) {
+                break;
+            }
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+            buffer.clear().limit(length);
+            receive(channel, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                K key = readField(buffer, keySerializer);
+                V value = readField(buffer, valueSerializer);
+                map.put(key, value);
+                read++;
+            }
+        }
+        if (read != count) {
+            throw new IOException("Corrupted stream: header promises " + count + " entries, got " + read);
+        }
+        return map;
+    }
+
+    private static <T> void writeField(ByteBuffer buffer, T value, int size, ShakurSerializer<? super T> serializer) {
+        if (value == null) {
+            writeVarint(buffer, 0);
+            return;
+        }
+        writeVarint(buffer, size + 1);
+        int start = buffer.position();
+        serializer.write(value, buffer);
+        if (buffer.position() - start != size) {
+            throw new IllegalStateException("Serializer wrote " + (buffer.position() - start)
+                    + " bytes, expected " + size);
+        }
+    }
+
+    private static <T> T readField(MappedInput input, ShakurSerializer<? extends T> serializer) throws IOException {
+        int length = readVarint(input) - 1;
+        if (length < 0) {
+            return null;
+        }
+        return readValue(input.require(length), length, serializer);
+    }
+
+    // Сериализатор читает прямо из общего буфера, без среза на каждое поле:
+    // limit не даёт ему выйти за поле, позиция после чтения выставляется по длине
+    private static <T> T readValue(ByteBuffer buffer, int length, ShakurSerializer<? extends T> serializer) {
+        int limit = buffer.limit();
+        int end = buffer.position() + length;
+        buffer.limit(end);
+        T value = serializer.read(buffer, length);
+        buffer.limit(limit).position(end);
+        return value;
+    }
+
+    private static <T> T readField(ByteBuffer buffer, ShakurSerializer<? extends T> serializer) throws IOException {
+        int length = readVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Corrupted stream: field of " + length + " bytes crosses block end");
+        }
+        return readValue(buffer, length, serializer);
+    }
+
+    // Длина блока дописывается перед ним вплотную к записям, блок уходит в канал одним куском
+    private static void sendBlock(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int end = buffer.position();
+        int length = end - MAX_VARINT;
+        int start = MAX_VARINT - varintSize(length);
+        buffer.position(start);
+        writeVarint(buffer, length);
+        buffer.position(start).limit(end);
+        send(channel, buffer);
+        buffer.clear().position(MAX_VARINT);
+    }
+
+    private static void send(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Блокирующий канал отдаёт хотя бы байт за вызов; -1 до конца образа - обрыв
+    private static void receive(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Stream truncated");
+            }
+        }
+    }
+
+    // длина блока читается по байту: лишнее из канала забирать нельзя
+    private static int readBlockLength(ReadableByteChannel channel, ByteBuffer single) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT; shift += 7) {
+            single.clear();
+            receive(channel, single);
+            byte b = single.get(0);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in stream");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // беззнаковый LEB128: по 7 бит, старший бит байта - продолжение
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in stream");
+    }
+
+    private static int readVarint(MappedInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT; shift += 7) {
+            byte b = input.require(1).get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    // Окно отображения файла; сдвигается, когда следующее поле в него не помещается
+    private static final class MappedInput {
+        private final FileChannel channel;
+        private final long fileSize;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            map(0, 0);
+        }
+
+        ByteBuffer require(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                map(windowStart + window.position(), bytes);
+            }
+            return window;
+        }
+
+        private void map(long position, int bytes) throws IOException {
+            long size = Math.min(Math.max(MAX_WINDOW, bytes), fileSize - position);
+            if (size < bytes) {
+                throw new EOFException("Snapshot truncated at byte " + position);
+            }
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.shakur;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Обратный индекс значение -> ключи с этим значением. Меняется из logPut/logRemove под
+// блокировкой изменённого ключа, непосредственно перед изменением бакета; записи разных ключей с одним
+// значением упорядочивает compute по значению. Пустые множества удаляются, поэтому наличие
+// значения - одна проверка containsKey. null-ключи и null-значения хранятся под заменителем.
+// Цена записи: одна-две операции compute в ConcurrentHashMap; если значение не поменялось -
+// одна, и та без изменений
+final class ShakurValueIndex<K, V> {
+
+    private static final Object NULL = new Object();
+
+    private final ConcurrentHashMap<Object, Set<Object>> keys = new ConcurrentHashMap<>();
+
+    // Сначала ключ добавляется к новому значению, потом убирается из старого:
+    // значение, которое есть в карте, не пропадает из индекса ни на миг.
+    // Для нового ключа oldValue - null; убирать его из множества null безопасно, его там нет
+    void put(K key, V oldValue, V value) {
+        Object k = mask(key);
+        Object v = mask(value);
+        Object old = mask(oldValue);
+        Set<Object> current = keys.get(v);
+        if (current == null || !current.contains(k)) {
+            keys.compute(v, (ignored, set) -> {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                }
+                set.add(k);
+                return set;
+            });
+        }
+        if (!old.equals(v)) {
+            unlink(k, old);
+        }
+    }
+
+    void remove(Object key, V value) {
+        unlink(mask(key), mask(value));
+    }
+
+    private void unlink(Object k, Object v) {
+        keys.computeIfPresent(v, (ignored, set) -> {
+            set.remove(k);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    void clear() {
+        keys.clear();
+    }
+
+    boolean contains(Object value) {
+        return keys.containsKey(mask(value));
+    }
+
+    // копия: множество в индексе меняется и заменяется, когда пустеет
+    @SuppressWarnings("unchecked")
+    Set<K> keysFor(Object value) {
+        Set<Object> set = keys.get(mask(value));
+        if (set == null) {
+            return Collections.emptySet();
+        }
+        Set<K> result = new HashSet<>();
+        for (Object k : set) {
+            result.add(k == NULL ? null : (K) k);
+        }
+        return result;
+    }
+
+    private static Object mask(Object o) {
+        return o == null ? NULL : o;
+    }
+}
@@ -217,4 +217,447 @@ public class ConcurrentTest {
 
         System.out.println("\nAll threads completed");
     }
+
+    @Test
+    public void testReadsDuringConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, String> map = new ShakurMap<>();
+
+        // стабильные ключи, которые читатели должны видеть всегда
+        for (int i = 0; i < ELEMENT_COUNT; i++) {
+            map.put(i, "Value " + i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    if (threadId % 2 == 0) {
+                        // писатели добавляют и удаляют свои ключи, провоцируя ресайзы
+                        for (int j = 0; j < ELEMENT_COUNT; j++) {
+                            int key = (threadId + 1) * ELEMENT_COUNT + j;
+                            map.put(key, "Value " + key);
+                            if (j % 2 == 0) {
+                                map.remove(key);
+                            }
+                        }
+                    } else {
+                        for (int j = 0; j < ELEMENT_COUNT; j++) {
+                            assertEquals("Value " + j, map.get(j), "Value mismatch for key: " + j);
+                            assertTrue(map.containsKey(j), "Key not found: " + j);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testSizeAfterConcurrentResizes() throws InterruptedException {
+        ShakurMap<Integer, String> map = new ShakurMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        map.put(threadId * ELEMENT_COUNT + j, "Value " + j);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        assertEquals(THREAD_COUNT * ELEMENT_COUNT, map.size());
+        assertEquals(THREAD_COUNT * ELEMENT_COUNT, map.values().size());
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testBatchOperationsThreadSafety() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    // пакеты разных потоков растят таблицу одновременно с одиночными put
+                    java.util.Map<Integer, Integer> batch = new java.util.HashMap<>();
+                    java.util.List<Integer> odd = new java.util.ArrayList<>();
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        int key = threadId * ELEMENT_COUNT + j;
+                        if (threadId % 2 == 0) {
+                            batch.put(key, j);
+                        } else {
+                            map.put(key, j);
+                        }
+                        if (j % 2 == 1) {
+                            odd.add(key);
+                        }
+                    }
+                    map.putAll(batch);
+                    java.util.Map<Integer, Integer> found = map.getAll(odd);
+                    if (found.size() != odd.size()) {
+                        throw new AssertionError("Missing keys of thread " + threadId);
+                    }
+                    if (map.removeAll(odd) != odd.size()) {
+                        throw new AssertionError("Removed less than written by thread " + threadId);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+        assertTrue(failures.isEmpty(), () -> "Batch failed: " + failures.peek());
+        assertEquals(THREAD_COUNT * ELEMENT_COUNT / 2, map.size());
+        for (int key = 0; key < THREAD_COUNT * ELEMENT_COUNT; key++) {
+            assertEquals(key % 2 == 0, map.containsKey(key));
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testMergeCountingThreadSafety() throws InterruptedException {
+        ShakurMap<Integer, Integer> counters = new ShakurMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        counters.merge(j % 10, 1, Integer::sum);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        for (int key = 0; key < 10; key++) {
+            assertEquals(THREAD_COUNT * ELEMENT_COUNT / 10, counters.get(key), "Lost update for key: " + key);
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testComputeIfAbsentCalledOnce() throws InterruptedException {
+        ShakurMap<Integer, String> map = new ShakurMap<>();
+        ConcurrentHashMap<Integer, Integer> calls = new ConcurrentHashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        map.computeIfAbsent(j, key -> {
+                            calls.merge(key, 1, Integer::sum);
+                            return "Value " + key;
+                        });
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        assertEquals(ELEMENT_COUNT, map.size());
+        for (int j = 0; j < ELEMENT_COUNT; j++) {
+            assertEquals(1, calls.get(j), "Mapping function called more than once for key: " + j);
+            assertEquals("Value " + j, map.get(j));
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testIterationDuringConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        // постоянные ключи: итератор обязан увидеть каждый ровно один раз
+        for (int i = 0; i < ELEMENT_COUNT; i++) {
+            map.put(-i - 1, i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    if (threadId % 4 == 0) {
+                        for (int round = 0; round < 10; round++) {
+                            java.util.Set<Integer> seen = new java.util.HashSet<>();
+                            for (Integer key : map.keySet()) {
+                                if (key < 0 && !seen.add(key)) {
+                                    throw new AssertionError("Key seen twice: " + key);
+                                }
+                            }
+                            if (seen.size() != ELEMENT_COUNT) {
+                                throw new AssertionError("Missing stable keys: " + seen.size());
+                            }
+                        }
+                    } else {
+                        for (int j = 0; j < ELEMENT_COUNT; j++) {
+                            map.put(threadId * ELEMENT_COUNT + j, j);
+                        }
+                        for (int j = 0; j < ELEMENT_COUNT; j += 2) {
+                            map.remove(threadId * ELEMENT_COUNT + j);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+        assertTrue(failures.isEmpty(), () -> "Iteration failed: " + failures.peek());
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testShrinkDuringConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    // каждый поток дважды заливает свои ключи и удаляет их, оставляя один:
+                    // таблица растёт и сжимается, пока другие потоки пишут и читают
+                    for (int round = 0; round < 2; round++) {
+                        for (int j = 0; j < ELEMENT_COUNT; j++) {
+                            map.put(threadId * ELEMENT_COUNT + j, j);
+                        }
+                        for (int j = 1; j < ELEMENT_COUNT; j++) {
+                            int key = threadId * ELEMENT_COUNT + j;
+                            if (map.remove(key) == null) {
+                                throw new AssertionError("Lost key " + key);
+                            }
+                        }
+                        if (map.get(threadId * ELEMENT_COUNT) == null) {
+                            throw new AssertionError("Lost key " + threadId * ELEMENT_COUNT);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+        assertTrue(failures.isEmpty(), () -> "Shrink failed: " + failures.peek());
+        assertEquals(THREAD_COUNT, map.size());
+        map.trimToSize();
+        assertEquals(THREAD_COUNT, map.size());
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            assertEquals(0, map.get(i * ELEMENT_COUNT));
+        }
+        assertEquals(THREAD_COUNT, map.keySet().stream().count());
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testSnapshotsDuringConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        int writers = 8;
+        int perWriter = 20000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        CountDownLatch latch = new CountDownLatch(writers);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < writers; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    // каждый поток пишет свои ключи по порядку, а потом удаляет их с начала
+                    for (int j = 0; j < perWriter; j++) {
+                        map.put(threadId * perWriter + j, j);
+                    }
+                    for (int j = 0; j < perWriter / 2; j++) {
+                        map.remove(threadId * perWriter + j);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        executor.submit(() -> {
+            try {
+                while (latch.getCount() > 0) {
+                    try (ShakurMap.Snapshot<Integer, Integer> snapshot = map.snapshot()) {
+                        java.util.Map<Integer, Integer> first = new java.util.HashMap<>(snapshot);
+                        // ключи потока в снимке - непрерывный отрезок: снимок видит его записи
+                        // и удаления только до какого-то момента
+                        for (int t = 0; t < writers; t++) {
+                            int lo = perWriter;
+                            int hi = -1;
+                            int count = 0;
+                            for (int j = 0; j < perWriter; j++) {
+                                if (first.containsKey(t * perWriter + j)) {
+                                    lo = Math.min(lo, j);
+                                    hi = j;
+                                    count++;
+                                }
+                            }
+                            if (count > 0 && count != hi - lo + 1) {
+                                throw new AssertionError("Torn snapshot for thread " + t);
+                            }
+                        }
+                        Thread.yield();
+                        if (!first.equals(new java.util.HashMap<>(snapshot))) {
+                            throw new AssertionError("Snapshot changed after later writes");
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        });
+
+        latch.await();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        assertTrue(failures.isEmpty(), () -> "Snapshot failed: " + failures.peek());
+        assertEquals(writers * perWriter / 2, map.size());
+    }
+
+    @Test
+    public void testGetOrLoadSharesOneLoad() throws InterruptedException {
+        ShakurMap<Integer, String> map = new ShakurMap<>();
+        java.util.concurrent.atomic.AtomicInteger loads = new java.util.concurrent.atomic.AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    String value = map.getOrLoad(42, key -> {
+                        loads.incrementAndGet();
+                        try {
+                            Thread.sleep(200); // медленный источник
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return "Value " + key;
+                    });
+                    if (!"Value 42".equals(value)) {
+                        throw new AssertionError("Unexpected value " + value);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        start.countDown();
+        latch.await();
+        assertTrue(failures.isEmpty(), () -> "Load failed: " + failures.peek());
+        assertEquals(1, loads.get());
+        assertEquals(1, map.size());
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testValueIndexMatchesScanUnderConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        for (int i = 0; i < ELEMENT_COUNT; i++) {
+            map.put(i, i % 10);
+        }
+        map.enableValueIndex();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    // ключи пересекаются между потоками, таблица растёт и сжимается
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        int key = (threadId * 31 + j) % (ELEMENT_COUNT * 4);
+                        switch (j % 4) {
+                            case 0 -> map.put(key, j % 10);
+                            case 1 -> map.merge(key, 1, (a, b) -> (a + b) % 10);
+                            case 2 -> map.remove(key);
+                            default -> map.computeIfAbsent(key, k -> k % 10);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        java.util.Map<Integer, java.util.Set<Integer>> expected = new java.util.HashMap<>();
+        map.forEach((key, value) -> expected.computeIfAbsent(value, v -> new java.util.HashSet<>()).add(key));
+        for (int value = 0; value < 10; value++) {
+            assertEquals(expected.getOrDefault(value, java.util.Set.of()), map.keysForValue(value));
+            assertEquals(expected.containsKey(value), map.containsValue(value));
+        }
+    }
 }
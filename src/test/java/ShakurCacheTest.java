@@ -0,0 +1,215 @@
+import org.junit.jupiter.api.Test;
+import ru.shakur.ShakurCache;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurCacheTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int ELEMENT_COUNT = 20_000;
+
+    @Test
+    public void testBasicOperations() {
+        ShakurCache<String, Integer> cache = new ShakurCache<>(100);
+        assertNull(cache.put("one", 1));
+        assertEquals(1, cache.put("one", 11));
+        assertEquals(11, cache.get("one"));
+        assertEquals(11, cache.putIfAbsent("one", 111));
+        assertNull(cache.putIfAbsent("two", 2));
+        assertTrue(cache.containsKey("two"));
+        assertEquals(2, cache.remove("two"));
+        assertNull(cache.get("two"));
+        assertNull(cache.remove("missing"));
+
+        cache.cleanUp();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weightedSize());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    public void testMaximumSizeIsEnforced() {
+        ShakurCache<Integer, Integer> cache = new ShakurCache<>(1_000);
+        for (int i = 0; i < 100_000; i++) {
+            cache.put(i, i);
+        }
+        cache.cleanUp();
+        assertEquals(1_000, cache.size());
+        assertEquals(1_000, cache.weightedSize());
+    }
+
+    @Test
+    public void testMaximumWeightIsEnforced() {
+        ShakurCache<Integer, byte[]> cache = new ShakurCache<>(10_000, (k, v) -> v.length);
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(i, new byte[i % 100]);
+        }
+        cache.cleanUp();
+        assertTrue(cache.weightedSize() <= 10_000);
+
+        // вес больше ограничения: такая запись не задерживается в кэше
+        cache.put(-1, new byte[20_000]);
+        cache.cleanUp();
+        assertNull(cache.get(-1));
+        assertTrue(cache.weightedSize() <= 10_000);
+
+        // перезапись меняет учтённый вес
+        cache.clear();
+        cache.put(1, new byte[10]);
+        cache.put(1, new byte[500]);
+        cache.cleanUp();
+        assertEquals(500, cache.weightedSize());
+        assertThrows(IllegalArgumentException.class,
+                () -> new ShakurCache<Integer, Integer>(10, (k, v) -> -1).put(1, 1));
+    }
+
+    @Test
+    public void testFrequentKeysSurviveScan() {
+        ShakurCache<Integer, Integer> cache = new ShakurCache<>(1_000);
+        for (int round = 0; round < 20; round++) {
+            for (int key = 0; key < 500; key++) {
+                if (cache.get(key) == null) {
+                    cache.put(key, key);
+                }
+            }
+        }
+        // однократный проход по новым ключам, который вытеснил бы всё из LRU
+        for (int key = 1_000_000; key < 1_050_000; key++) {
+            cache.put(key, key);
+        }
+        cache.cleanUp();
+
+        int survived = 0;
+        for (int key = 0; key < 500; key++) {
+            if (cache.containsKey(key)) {
+                survived++;
+            }
+        }
+        assertTrue(survived > 450, "hot keys survived: " + survived);
+    }
+
+    @Test
+    public void testExpireAfterWrite() {
+        AtomicLong time = new AtomicLong();
+        ShakurCache<String, Integer> cache = new ShakurCache<>(ShakurCache.UNBOUNDED, null,
+                Duration.ofMinutes(5), null, time::get);
+        cache.put("session", 1);
+        time.addAndGet(TimeUnit.MINUTES.toNanos(4));
+        assertEquals(1, cache.get("session"));
+        assertTrue(cache.containsKey("session"));
+
+        time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        assertNull(cache.get("session"));
+        assertFalse(cache.containsKey("session"));
+        // просроченная запись считается отсутствующей и для putIfAbsent
+        assertNull(cache.putIfAbsent("session", 2));
+        assertEquals(2, cache.get("session"));
+    }
+
+    @Test
+    public void testExpireAfterAccessIsExtendedByReads() {
+        AtomicLong time = new AtomicLong();
+        ShakurCache<String, Integer> cache = new ShakurCache<>(ShakurCache.UNBOUNDED, null,
+                Duration.ofHours(1), Duration.ofSeconds(30), time::get);
+        cache.put("read", 1);
+        cache.put("idle", 2);
+        for (int i = 0; i < 10; i++) {
+            time.addAndGet(TimeUnit.SECONDS.toNanos(20));
+            assertEquals(1, cache.get("read"));
+        }
+        assertNull(cache.get("idle"));
+
+        // обращения не продлевают жизнь дольше expireAfterWrite
+        time.addAndGet(TimeUnit.MINUTES.toNanos(57));
+        assertNull(cache.get("read"));
+    }
+
+    @Test
+    public void testPerEntryTimeToLiveAndReclamation() {
+        AtomicLong time = new AtomicLong();
+        ShakurCache<Integer, Integer> cache = new ShakurCache<>(ShakurCache.UNBOUNDED, null, null, null, time::get);
+        for (int i = 0; i < 1_000; i++) {
+            cache.put(i, i, Duration.ofSeconds(10 + i % 3 * 3600)); // 10 с, 1 ч и 2 ч
+        }
+        cache.put(-1, -1); // без срока
+        cache.cleanUp();
+        assertEquals(1_001, cache.size());
+
+        // колесо освобождает просроченное при разборе, без обхода таблицы
+        time.addAndGet(TimeUnit.SECONDS.toNanos(15));
+        cache.cleanUp();
+        assertEquals(667, cache.size());
+        assertEquals(667, cache.weightedSize());
+        time.addAndGet(TimeUnit.MINUTES.toNanos(61));
+        cache.cleanUp();
+        assertEquals(334, cache.size());
+        time.addAndGet(TimeUnit.DAYS.toNanos(30));
+        cache.cleanUp();
+        assertEquals(1, cache.size());
+        assertEquals(-1, cache.get(-1));
+
+        // перезапись задаёт новый срок
+        cache.put(5, 5, Duration.ofSeconds(1));
+        cache.put(5, 6);
+        time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        cache.cleanUp();
+        assertEquals(6, cache.get(5));
+        assertThrows(IllegalArgumentException.class, () -> cache.put(7, 7, Duration.ZERO));
+    }
+
+    @Test
+    public void testReclamationPiggybacksOnWrites() {
+        AtomicLong time = new AtomicLong();
+        ShakurCache<Integer, Integer> cache = new ShakurCache<>(ShakurCache.UNBOUNDED, null,
+                Duration.ofSeconds(1), null, time::get);
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(i, i);
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        // в живых не больше записей, чем за секунду срока и шаг колеса, без единого cleanUp
+        assertTrue(cache.size() < 2_500, "size " + cache.size());
+    }
+
+    @Test
+    public void testConcurrentAccessKeepsBoundAndWeight() throws InterruptedException {
+        ShakurCache<Integer, Integer> cache = new ShakurCache<>(1_000);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            executor.submit(() -> {
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < ELEMENT_COUNT; i++) {
+                        int key = random.nextInt(5_000);
+                        int op = random.nextInt(10);
+                        if (op < 6) {
+                            cache.get(key);
+                        } else if (op < 9) {
+                            cache.put(key, i);
+                        } else {
+                            cache.remove(key);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        executor.shutdown();
+
+        cache.cleanUp();
+        assertTrue(cache.size() <= 1_000, "size " + cache.size());
+        assertEquals(cache.size(), cache.weightedSize());
+    }
+}
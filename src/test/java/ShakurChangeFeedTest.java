@@ -0,0 +1,123 @@
+import org.junit.jupiter.api.Test;
+import ru.shakur.ShakurChangeFeed;
+import ru.shakur.ShakurChangeFeed.Change;
+import ru.shakur.ShakurMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurChangeFeedTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int ELEMENT_COUNT = 10_000;
+
+    @Test
+    public void testPublishesChanges() {
+        ShakurMap<String, Integer> map = new ShakurMap<>();
+        map.put("before", 0); // до подписки - не видно
+        ShakurChangeFeed<String, Integer> feed = map.enableChangeFeed(16);
+        ShakurChangeFeed<String, Integer>.Subscription subscription = feed.subscribe();
+
+        map.put("one", 1);
+        map.merge("one", 10, Integer::sum);
+        map.remove("one");
+        map.remove("missing");
+        map.clear();
+
+        List<Change<String, Integer>> changes = new ArrayList<>();
+        assertEquals(2, subscription.drain(changes::add, 2));
+        assertEquals(2, subscription.drain(changes::add, 100));
+        assertEquals(0, subscription.drain(changes::add, 100));
+
+        assertEquals(Change.Type.PUT, changes.get(0).getType());
+        assertEquals("one", changes.get(0).getKey());
+        assertEquals(1, changes.get(0).getValue());
+        assertEquals(11, changes.get(1).getValue());
+        assertEquals(Change.Type.REMOVE, changes.get(2).getType());
+        assertEquals(Change.Type.CLEAR, changes.get(3).getType());
+        for (int i = 1; i < changes.size(); i++) {
+            assertEquals(changes.get(i - 1).getSequence() + 1, changes.get(i).getSequence());
+        }
+
+        map.disableChangeFeed();
+        map.put("after", 2);
+        assertEquals(0, subscription.drain(changes::add, 100));
+    }
+
+    @Test
+    public void testSlowSubscriberGetsOverflow() {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        ShakurChangeFeed<Integer, Integer> feed = map.enableChangeFeed(8);
+        ShakurChangeFeed<Integer, Integer>.Subscription subscription = feed.subscribe();
+
+        for (int i = 0; i < 20; i++) {
+            map.put(i, i);
+        }
+        assertEquals(20, subscription.lag());
+
+        List<Change<Integer, Integer>> changes = new ArrayList<>();
+        subscription.drain(changes::add, 100);
+        assertEquals(Change.Type.OVERFLOW, changes.get(0).getType());
+        assertEquals(1, changes.size()); // курсор перенесён в конец ленты
+
+        map.put(100, 100);
+        changes.clear();
+        subscription.drain(changes::add, 100);
+        assertEquals(1, changes.size());
+        assertEquals(100, changes.get(0).getKey());
+    }
+
+    @Test
+    public void testMirrorConvergesUnderConcurrentWrites() throws InterruptedException {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        ShakurChangeFeed<Integer, Integer> feed = map.enableChangeFeed(ELEMENT_COUNT * THREAD_COUNT * 4);
+        ShakurChangeFeed<Integer, Integer>.Subscription subscription = feed.subscribe();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    // потоки пишут пересекающиеся ключи: порядок записей одного ключа важен
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        int key = j % 1000;
+                        if (j % 7 == threadId % 7) {
+                            map.remove(key);
+                        } else {
+                            map.put(key, threadId * ELEMENT_COUNT + j);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        Map<Integer, Integer> mirror = new HashMap<>();
+        List<Change<Integer, Integer>> overflows = new ArrayList<>();
+        while (latch.getCount() > 0 || subscription.lag() > 0) {
+            subscription.drain(change -> {
+                switch (change.getType()) {
+                    case PUT -> mirror.put(change.getKey(), change.getValue());
+                    case REMOVE -> mirror.remove(change.getKey());
+                    case CLEAR -> mirror.clear();
+                    case OVERFLOW -> overflows.add(change);
+                }
+            }, 256);
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        assertTrue(overflows.isEmpty());
+        assertEquals(new HashMap<>(map), mirror);
+    }
+}
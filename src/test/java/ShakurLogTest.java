@@ -0,0 +1,396 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurSerializer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurLogTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int ELEMENT_COUNT = 2_000;
+
+    @TempDir
+    Path dir;
+
+    private ShakurMap<String, Long> open(ShakurMap.SyncPolicy policy) throws IOException {
+        return ShakurMap.openDurable(dir, ShakurSerializer.STRING, ShakurSerializer.LONG, policy, 5);
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.ALWAYS);
+        for (long i = 0; i < 1_000; i++) {
+            map.put("key" + i, i);
+        }
+        map.remove("key0");
+        map.merge("key1", 100L, Long::sum);
+        map.computeIfAbsent("computed", k -> 7L);
+        map.computeIfPresent("key2", (k, v) -> null);
+        map.put(null, -1L);
+        map.put("empty", null);
+        map.closeLog();
+
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.ALWAYS);
+        assertEquals(map.size(), reopened.size());
+        assertNull(reopened.get("key0"));
+        assertFalse(reopened.containsKey("key2"));
+        assertEquals(101L, reopened.get("key1"));
+        assertEquals(7L, reopened.get("computed"));
+        assertEquals(-1L, reopened.get(null));
+        assertTrue(reopened.containsKey("empty"));
+        assertEquals(999L, reopened.get("key999"));
+        reopened.closeLog();
+    }
+
+    @Test
+    public void testClearIsReplayed() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.INTERVAL);
+        map.put("before", 1L);
+        map.put(null, 2L);
+        map.clear();
+        map.put("after", 3L);
+        map.closeLog();
+
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.INTERVAL);
+        assertEquals(1, reopened.size());
+        assertEquals(3L, reopened.get("after"));
+        assertFalse(reopened.containsKey(null));
+        reopened.closeLog();
+    }
+
+    @Test
+    public void testSyncLogMakesWritesDurableUnderNonePolicy() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.NONE);
+        map.put("key", 1L);
+        map.syncLog();
+        assertTrue(logBytes() > 0);
+        map.closeLog();
+
+        // после closeLog карта работает только в памяти
+        map.put("ignored", 2L);
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.NONE);
+        assertEquals(1, reopened.size());
+        reopened.closeLog();
+    }
+
+    @Test
+    public void testConcurrentWritersAreAllDurable() throws Exception {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.ALWAYS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int threadId = t;
+            executor.submit(() -> {
+                try {
+                    for (long i = 0; i < ELEMENT_COUNT; i++) {
+                        map.put("t" + threadId + ":" + i, i);
+                        map.merge("counter", 1L, Long::sum);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        executor.shutdown();
+        map.closeLog();
+
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.ALWAYS);
+        assertEquals(THREAD_COUNT * ELEMENT_COUNT + 1, reopened.size());
+        assertEquals((long) THREAD_COUNT * ELEMENT_COUNT, reopened.get("counter"));
+        reopened.closeLog();
+    }
+
+    @Test
+    public void testTornTailIsDiscarded() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.ALWAYS);
+        map.put("first", 1L);
+        map.put("second", 2L);
+        map.closeLog();
+
+        // обрываем последнюю запись, как при падении посреди write
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.ALWAYS);
+        assertEquals(1, reopened.size());
+        assertEquals(1L, reopened.get("first"));
+        // новые записи после восстановления тоже читаются
+        reopened.put("third", 3L);
+        reopened.closeLog();
+
+        ShakurMap<String, Long> again = open(ShakurMap.SyncPolicy.ALWAYS);
+        assertEquals(2, again.size());
+        assertEquals(3L, again.get("third"));
+        again.closeLog();
+    }
+
+    @Test
+    public void testCorruptionInSealedSegmentIsAnError() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.ALWAYS);
+        map.put("first", 1L);
+        map.put("second", 2L);
+        map.closeLog();
+
+        // следующий сегмент с теми же записями; в первом портится первая запись
+        Path first = segments().get(0);
+        Files.copy(first, dir.resolve(first.getFileName().toString().replace("00000000000000000000", "00000000000000000001")));
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[]{0x7F}), 10);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> open(ShakurMap.SyncPolicy.ALWAYS));
+        assertTrue(e.getMessage().contains(first.getFileName().toString()), e.getMessage());
+        assertTrue(e.getMessage().contains("offset 0"), e.getMessage());
+    }
+
+    @Test
+    public void testSerializerFailureLeavesMapUnchanged() throws IOException {
+        // LONG, который отказывается кодировать отрицательные значения
+        ShakurSerializer<Long> picky = new ShakurSerializer<>() {
+            @Override
+            public int sizeOf(Long value) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("negative " + value);
+                }
+                return ShakurSerializer.LONG.sizeOf(value);
+            }
+
+            @Override
+            public void write(Long value, java.nio.ByteBuffer target) {
+                ShakurSerializer.LONG.write(value, target);
+            }
+
+            @Override
+            public Long read(java.nio.ByteBuffer source, int length) {
+                return ShakurSerializer.LONG.read(source, length);
+            }
+        };
+        ShakurMap<String, Long> map = ShakurMap.openDurable(dir, ShakurSerializer.STRING, picky,
+                ShakurMap.SyncPolicy.ALWAYS, 5);
+        map.put("a", 1L);
+        assertThrows(IllegalArgumentException.class, () -> map.put("b", -1L));
+        assertThrows(IllegalArgumentException.class, () -> map.put("a", -1L));
+        assertThrows(IllegalArgumentException.class, () -> map.merge("a", -5L, Long::sum));
+        assertThrows(IllegalArgumentException.class, () -> map.putAll(java.util.Map.of("c", -1L)));
+        assertFalse(map.containsKey("b"));
+        assertFalse(map.containsKey("c"));
+        assertEquals(1L, map.get("a"));
+        assertEquals(1, map.size());
+        map.closeLog();
+
+        ShakurMap<String, Long> reopened = ShakurMap.openDurable(dir, ShakurSerializer.STRING, picky,
+                ShakurMap.SyncPolicy.ALWAYS, 5);
+        assertEquals(java.util.Map.of("a", 1L), new java.util.HashMap<>(reopened));
+        reopened.closeLog();
+    }
+
+    @Test
+    public void testFailedClearLeavesMapUnchanged() throws IOException {
+        System.setProperty("ru.shakur.log.segmentSize", "64");
+        ShakurMap<String, Long> map;
+        try {
+            map = open(ShakurMap.SyncPolicy.ALWAYS);
+        } finally {
+            System.clearProperty("ru.shakur.log.segmentSize");
+        }
+        // на месте следующего сегмента каталог: переключение сегмента ломает журнал
+        Files.createDirectory(dir.resolve(String.format("wal-%020d.log", 1)));
+        assertThrows(java.io.UncheckedIOException.class, () -> {
+            for (long i = 0; i < 100; i++) {
+                map.put("key" + i, i);
+            }
+        });
+        int size = map.size();
+        assertTrue(size > 0);
+
+        assertThrows(java.io.UncheckedIOException.class, map::clear);
+        assertEquals(size, map.size());
+        assertEquals(0L, map.get("key0"));
+        assertThrows(IOException.class, map::closeLog);
+    }
+
+    @Test
+    public void testRestartStartsNewSegmentAndKeepsHistory() throws IOException {
+        for (int round = 0; round < 3; round++) {
+            ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.INTERVAL);
+            assertEquals(round, map.size());
+            map.put("round" + round, (long) round);
+            map.closeLog();
+        }
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.INTERVAL);
+        assertEquals(3, map.size());
+        map.closeLog();
+    }
+
+    @Test
+    public void testStartupCompactsReplayedSegments() throws IOException {
+        ShakurMap<String, Long> map = open(ShakurMap.SyncPolicy.INTERVAL);
+        for (long i = 0; i < 10_000; i++) {
+            map.put("key" + (i % 100), i);
+        }
+        map.closeLog();
+
+        // closeLog дожидается фоновой компактизации
+        ShakurMap<String, Long> reopened = open(ShakurMap.SyncPolicy.INTERVAL);
+        reopened.put("new", 1L);
+        reopened.closeLog();
+        assertEquals(1, segments().size());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.filter(p -> p.getFileName().toString().startsWith("checkpoint-")).count());
+        }
+
+        ShakurMap<String, Long> again = open(ShakurMap.SyncPolicy.INTERVAL);
+        assertEquals(101, again.size());
+        assertEquals(9_999L, again.get("key99"));
+        assertEquals(1L, again.get("new"));
+        again.closeLog();
+    }
+
+    @Test
+    public void testCompactionWaitsForLoggedWrites() throws Exception {
+        // сегменты по 256 байт: сотня записей переключает журнал много раз и запускает компактизацию
+        System.setProperty("ru.shakur.log.segmentSize", "256");
+        ShakurMap<String, Gated> map;
+        try {
+            map = ShakurMap.openDurable(dir, ShakurSerializer.STRING, Gated.SERIALIZER, ShakurMap.SyncPolicy.ALWAYS, 5);
+        } finally {
+            System.clearProperty("ru.shakur.log.segmentSize");
+        }
+        // индекс значений хэширует значение уже после записи в журнал, но до изменения бакета:
+        // Gated.HELD останавливает изменение в этом окне, пока журнал переключается и сворачивается
+        map.enableValueIndex();
+        // ключи вставляются заранее: ресайз под остановленной записью ждал бы её полосу
+        for (long i = 0; i < 200; i++) {
+            map.put("key" + i, new Gated(i));
+        }
+        // каждая перезапись в своём потоке: ключи с полосы "held" ждут её, остальные идут дальше
+        ExecutorService executor = Executors.newCachedThreadPool();
+        long heldSegment;
+        try {
+            Future<?> held = executor.submit(() -> map.put("held", Gated.HELD));
+            assertTrue(Gated.entered.await(10, TimeUnit.SECONDS));
+            // запись "held" уже в журнале: в текущем сегменте или, после переключения, в следующем
+            heldSegment = lastIndex("wal-") + 1;
+            List<Future<?>> others = new ArrayList<>();
+            for (long i = 0; i < 200; i++) {
+                String key = "key" + i;
+                Gated value = new Gated(i + 1);
+                others.add(executor.submit(() -> map.put(key, value)));
+            }
+            // исправная компактизация ждёт блокировку полосы "held", а с ней и писатели других полос
+            Thread.sleep(1_000);
+            Gated.release.countDown();
+            held.get(10, TimeUnit.SECONDS);
+            for (Future<?> other : others) {
+                other.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            Gated.release.countDown();
+            executor.shutdown();
+        }
+
+        // падение процесса после подтверждённой записи: closeLog сделал бы ещё один полный снимок
+        for (int i = 0; i < 1_000 && lastIndex("checkpoint-") <= heldSegment; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(lastIndex("checkpoint-") > heldSegment, "compaction never passed the held write");
+        Thread.sleep(200);
+        Path crashed = Files.createDirectory(dir.resolve("crashed"));
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        map.closeLog();
+
+        ShakurMap<String, Gated> reopened = ShakurMap.openDurable(crashed, ShakurSerializer.STRING, Gated.SERIALIZER,
+                ShakurMap.SyncPolicy.ALWAYS, 5);
+        assertEquals(Gated.HELD, reopened.get("held"));
+        assertEquals(201, reopened.size());
+        reopened.closeLog();
+    }
+
+    // значение, хэш которого для HELD вычисляется только после release
+    private record Gated(long value) {
+        static final Gated HELD = new Gated(-1);
+        static final CountDownLatch entered = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+        static final ShakurSerializer<Gated> SERIALIZER = new ShakurSerializer<>() {
+            @Override
+            public int sizeOf(Gated gated) {
+                return ShakurSerializer.LONG.sizeOf(gated.value);
+            }
+
+            @Override
+            public void write(Gated gated, java.nio.ByteBuffer target) {
+                ShakurSerializer.LONG.write(gated.value, target);
+            }
+
+            @Override
+            public Gated read(java.nio.ByteBuffer source, int length) {
+                return new Gated(ShakurSerializer.LONG.read(source, length));
+            }
+        };
+
+        @Override
+        public int hashCode() {
+            if (value == HELD.value) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Long.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Gated other && other.value == value;
+        }
+    }
+
+    // номер последнего файла журнала с этим префиксом, -1 если их нет
+    private long lastIndex(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && !name.endsWith(".tmp"))
+                    .mapToLong(name -> Long.parseLong(name.substring(prefix.length(), name.indexOf('.'))))
+                    .max().orElse(-1);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("wal-")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private long logBytes() throws IOException {
+        long total = 0;
+        for (Path segment : segments()) {
+            total += Files.size(segment);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.Test;
+import ru.shakur.ShakurLongLongMap;
+import ru.shakur.ShakurLongMap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurLongMapTest {
+
+    private static final int THREAD_COUNT = 16;
+    private static final int ELEMENT_COUNT = 10_000;
+
+    @Test
+    public void testPutGetRemove() {
+        ShakurLongMap<String> map = new ShakurLongMap<>();
+        assertNull(map.get(1L));
+        assertNull(map.put(1L, "one"));
+        assertEquals("one", map.put(1L, "uno"));
+        assertEquals("uno", map.get(1L));
+        assertTrue(map.containsKey(1L));
+        assertEquals("uno", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertFalse(map.containsKey(1L));
+        assertEquals("none", map.getOrDefault(1L, "none"));
+
+        // ключ снова занимает своё надгробие
+        assertNull(map.putIfAbsent(1L, "again"));
+        assertEquals("again", map.putIfAbsent(1L, "ignored"));
+        assertEquals(1, map.size());
+        assertThrows(NullPointerException.class, () -> map.put(2L, null));
+    }
+
+    @Test
+    public void testGrowthAndTombstones() {
+        ShakurLongMap<Long> map = new ShakurLongMap<>();
+        for (long i = 0; i < 100_000; i++) {
+            map.put(i << 32, i);
+        }
+        assertEquals(100_000, map.size());
+        for (long i = 0; i < 100_000; i += 2) {
+            assertEquals(i, map.remove(i << 32));
+        }
+        assertEquals(50_000, map.size());
+        // много удалений и вставок новых ключей: надгробия вычищаются пересборкой
+        for (long i = 100_000; i < 300_000; i++) {
+            map.put(i, i);
+            map.remove(i);
+        }
+        for (long i = 0; i < 100_000; i++) {
+            assertEquals(i % 2 == 0 ? null : i, map.get(i << 32));
+        }
+
+        LongAdder sum = new LongAdder();
+        map.forEach((key, value) -> sum.add(value));
+        assertEquals(2_500_000_000L, sum.sum());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L << 32));
+    }
+
+    @Test
+    public void testComputeIfAbsent() {
+        ShakurLongMap<String> map = new ShakurLongMap<>(100);
+        assertEquals("7", map.computeIfAbsent(7L, Long::toString));
+        assertEquals("7", map.computeIfAbsent(7L, key -> "other"));
+        assertNull(map.computeIfAbsent(8L, key -> null));
+        assertFalse(map.containsKey(8L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testInvalidConstructorArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new ShakurLongMap<String>(-1));
+        assertThrows(IllegalArgumentException.class, () -> new ShakurLongMap<String>(16, 1.0f, 16));
+        assertThrows(IllegalArgumentException.class, () -> new ShakurLongLongMap(16, 0.5f, 0));
+    }
+
+    @Test
+    public void testLongLongCounters() {
+        ShakurLongLongMap counters = new ShakurLongLongMap();
+        assertEquals(0L, counters.get(5L));
+        assertFalse(counters.containsKey(5L));
+        assertEquals(3L, counters.addTo(5L, 3L));
+        assertEquals(5L, counters.addTo(5L, 2L));
+        assertEquals(5L, counters.put(5L, 10L));
+        assertEquals(-1L, counters.getOrDefault(6L, -1L));
+        assertEquals(10L, counters.remove(5L));
+        assertFalse(counters.containsKey(5L));
+        assertEquals(1L, counters.addTo(5L, 1L));
+        assertEquals(1, counters.size());
+
+        for (long i = 0; i < 50_000; i++) {
+            counters.addTo(i * 31, i);
+        }
+        LongAdder sum = new LongAdder();
+        counters.forEach((key, value) -> sum.add(value));
+        assertEquals(1_249_975_000L + 1L, sum.sum());
+    }
+
+    @Test
+    public void testConcurrentCounters() throws InterruptedException {
+        ShakurLongLongMap counters = new ShakurLongLongMap();
+        ShakurLongMap<Long> map = new ShakurLongMap<>();
+        AtomicInteger readFailures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        counters.addTo(j % 100, 1L);
+                        long key = (long) threadId * ELEMENT_COUNT + j;
+                        map.put(key, key);
+                        // чтение без блокировок никогда не видит чужое значение
+                        Long seen = map.get(key - 1);
+                        if (seen != null && seen != key - 1) {
+                            readFailures.incrementAndGet();
+                        }
+                        if (j % 3 == 0) {
+                            map.remove(key);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        assertEquals(0, readFailures.get());
+        for (long key = 0; key < 100; key++) {
+            assertEquals((long) THREAD_COUNT * ELEMENT_COUNT / 100, counters.get(key));
+        }
+        int expected = THREAD_COUNT * (ELEMENT_COUNT - (ELEMENT_COUNT + 2) / 3);
+        assertEquals(expected, map.size());
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
@@ -110,4 +110,31 @@ public class ShakurMapNullTest {
         assertEquals(2, map.get(null));
         assertEquals(3, map.get("key"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAtomicOperationsWithNullKey() {
+        assertNull(map.putIfAbsent(null, 1));
+        assertEquals(1, map.putIfAbsent(null, 2));
+        assertEquals(3, map.merge(null, 2, Integer::sum));
+        assertTrue(map.replace(null, 3, 4));
+        assertFalse(map.remove(null, 3));
+        assertTrue(map.remove(null, 4));
+        assertFalse(map.containsKey(null));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testNullValueCountsAsAbsent() {
+        map.put("key", null);
+        assertNull(map.putIfAbsent("key", 1));
+        assertEquals(1, map.get("key"));
+
+        map.put("other", null);
+        assertEquals(5, map.computeIfAbsent("other", key -> 5));
+
+        map.put("gone", null);
+        assertTrue(map.remove("gone", null));
+        assertFalse(map.containsKey("gone"));
+        assertEquals(2, map.size());
+    }
+}
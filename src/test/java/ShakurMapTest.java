@@ -1,7 +1,11 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import ru.shakur.ShakurMap;
+import ru.shakur.ShakurMapMXBean;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,6 +37,18 @@ public class ShakurMapTest {
         assertEquals(2, map.size());
     }
 
+    @Test
+    public void testMappingCount() {
+        assertEquals(0L, map.mappingCount());
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, i);
+        }
+        map.remove("key0");
+        map.put(null, -1);
+        assertEquals(1000L, map.mappingCount());
+        assertEquals(1000, map.size());
+    }
+
     @Test
     public void testIsEmpty() {
         assertTrue(map.isEmpty());
@@ -73,6 +89,34 @@ public class ShakurMapTest {
         assertEquals(4, map.get("four"));
     }
 
+    @Test
+    public void testBatchOperations() {
+        Map<String, Integer> batch = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            batch.put("key" + i, i);
+        }
+        batch.put(null, -1);
+        map.put("key0", 100);
+        map.putAll(batch);
+        assertEquals(50_001, map.size());
+        assertEquals(0, map.get("key0"));
+        assertEquals(-1, map.get(null));
+        assertEquals(49_999, map.get("key49999"));
+
+        Map<String, Integer> found = map.getAll(Arrays.asList("key1", "key2", "missing", null));
+        assertEquals(3, found.size());
+        assertEquals(1, found.get("key1"));
+        assertEquals(2, found.get("key2"));
+        assertEquals(-1, found.get(null));
+        assertFalse(found.containsKey("missing"));
+
+        assertEquals(3, map.removeAll(Arrays.asList("key1", "key2", "missing", null)));
+        assertEquals(49_998, map.size());
+        assertFalse(map.containsKey("key1"));
+        assertFalse(map.containsKey(null));
+        assertEquals(0, map.removeAll(Collections.emptyList()));
+    }
+
     @Test
     public void testClear() {
         map.put("one", 1);
@@ -118,4 +162,575 @@ public class ShakurMapTest {
         assertEquals(20, map.size());
         assertNotNull(map.get("key19"));
     }
+
+    @Test
+    public void testManyResizesKeepAllEntries() {
+        for (int i = 0; i < 100_000; i++) {
+            map.put("key" + i, i);
+        }
+        assertEquals(100_000, map.size());
+        assertEquals(100_000, map.values().size());
+        for (int i = 0; i < 100_000; i += 2) {
+            assertEquals(i, map.remove("key" + i));
+        }
+        assertEquals(50_000, map.size());
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals(i % 2 == 0 ? null : i, map.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testKeysDifferingInHighBits() {
+        ShakurMap<Long, Long> longs = new ShakurMap<>();
+        for (long i = 0; i < 10_000; i++) {
+            longs.put(i << 32, i);
+        }
+        assertEquals(10_000, longs.size());
+        for (long i = 0; i < 10_000; i++) {
+            assertEquals(i, longs.get(i << 32));
+        }
+    }
+
+    @Test
+    public void testCollidingComparableKeys() {
+        ShakurMap<CollidingKey, Integer> colliding = new ShakurMap<>();
+        for (int i = 0; i < 1000; i++) {
+            colliding.put(new CollidingKey(i), i);
+        }
+        assertEquals(1000, colliding.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, colliding.get(new CollidingKey(i)));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(i, colliding.remove(new CollidingKey(i)));
+        }
+        assertEquals(500, colliding.size());
+        assertEquals(500, colliding.values().size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : i, colliding.get(new CollidingKey(i)));
+        }
+    }
+
+    @Test
+    public void testCollidingNonComparableKeys() {
+        ShakurMap<PlainCollidingKey, Integer> colliding = new ShakurMap<>();
+        for (int i = 0; i < 200; i++) {
+            colliding.put(new PlainCollidingKey(i), i);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, colliding.get(new PlainCollidingKey(i)));
+        }
+        // дерево сжимается обратно до списка
+        for (int i = 0; i < 198; i++) {
+            assertEquals(i, colliding.remove(new PlainCollidingKey(i)));
+        }
+        assertEquals(2, colliding.size());
+        assertEquals(198, colliding.get(new PlainCollidingKey(198)));
+        assertEquals(199, colliding.get(new PlainCollidingKey(199)));
+    }
+
+    @Test
+    public void testSizedConstructors() {
+        ShakurMap<Integer, Integer> sized = new ShakurMap<>(10_000, 0.5f, 64);
+        for (int i = 0; i < 10_000; i++) {
+            sized.put(i, i);
+        }
+        assertEquals(10_000, sized.size());
+        assertEquals(1234, sized.get(1234));
+
+        // полос больше, чем нужно бакетов: таблица подтягивается до числа полос
+        ShakurMap<Integer, Integer> tiny = new ShakurMap<>(0, 0.75f, 100);
+        for (int i = 0; i < 1000; i++) {
+            tiny.put(i, -i);
+        }
+        assertEquals(1000, tiny.size());
+        assertEquals(-999, tiny.get(999));
+
+        // коэффициент больше единицы допустим: длинные цепочки вместо частых ресайзов
+        ShakurMap<Integer, Integer> dense = new ShakurMap<>(100, 4.0f);
+        for (int i = 0; i < 5000; i++) {
+            dense.put(i, i);
+        }
+        assertEquals(5000, dense.size());
+        assertEquals(4321, dense.get(4321));
+    }
+
+    @Test
+    public void testInvalidConstructorArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new ShakurMap<String, Integer>(-1));
+        assertThrows(IllegalArgumentException.class, () -> new ShakurMap<String, Integer>(16, 0.0f));
+        assertThrows(IllegalArgumentException.class, () -> new ShakurMap<String, Integer>(16, Float.NaN));
+        assertThrows(IllegalArgumentException.class, () -> new ShakurMap<String, Integer>(16, 0.75f, 0));
+    }
+
+    @Test
+    public void testCopyOf() {
+        Map<String, Integer> source = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            source.put("key" + i, i);
+        }
+        source.put(null, -1);
+
+        ShakurMap<String, Integer> copy = ShakurMap.copyOf(source);
+        assertEquals(1001, copy.size());
+        assertEquals(500, copy.get("key500"));
+        assertEquals(-1, copy.get(null));
+
+        source.put("key0", 42);
+        assertEquals(0, copy.get("key0"));
+    }
+
+    @Test
+    public void testPutIfAbsentAndReplace() {
+        assertNull(map.putIfAbsent("key", 1));
+        assertEquals(1, map.putIfAbsent("key", 2));
+        assertEquals(1, map.get("key"));
+
+        assertNull(map.replace("missing", 1));
+        assertFalse(map.containsKey("missing"));
+        assertEquals(1, map.replace("key", 3));
+        assertFalse(map.replace("key", 1, 4));
+        assertTrue(map.replace("key", 3, 4));
+        assertEquals(4, map.get("key"));
+
+        assertFalse(map.remove("key", 3));
+        assertTrue(map.remove("key", 4));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testComputeFamily() {
+        assertEquals(1, map.computeIfAbsent("key", key -> 1));
+        assertEquals(1, map.computeIfAbsent("key", key -> 2));
+        assertNull(map.computeIfAbsent("none", key -> null));
+        assertFalse(map.containsKey("none"));
+
+        assertEquals(11, map.computeIfPresent("key", (key, value) -> value + 10));
+        assertNull(map.computeIfPresent("none", (key, value) -> 1));
+        assertNull(map.computeIfPresent("key", (key, value) -> null));
+        assertFalse(map.containsKey("key"));
+
+        assertEquals(7, map.compute("key", (key, value) -> value == null ? 7 : value + 1));
+        assertEquals(8, map.compute("key", (key, value) -> value == null ? 7 : value + 1));
+        assertNull(map.compute("key", (key, value) -> null));
+        assertEquals(0, map.size());
+
+        assertThrows(IllegalStateException.class, () -> map.compute("key", (key, value) -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testMerge() {
+        for (int i = 0; i < 100; i++) {
+            map.merge("word" + (i % 7), 1, Integer::sum);
+        }
+        assertEquals(7, map.size());
+        assertEquals(15, map.get("word0"));
+        assertEquals(14, map.get("word6"));
+        assertNull(map.merge("word0", 1, (oldValue, value) -> null));
+        assertFalse(map.containsKey("word0"));
+        assertThrows(NullPointerException.class, () -> map.merge("word1", null, Integer::sum));
+    }
+
+    @Test
+    public void testAtomicOperationsOnTreeBin() {
+        ShakurMap<CollidingKey, Integer> colliding = new ShakurMap<>();
+        for (int i = 0; i < 100; i++) {
+            colliding.merge(new CollidingKey(i % 20), 1, Integer::sum);
+        }
+        assertEquals(20, colliding.size());
+        assertEquals(5, colliding.get(new CollidingKey(3)));
+        assertEquals(5, colliding.putIfAbsent(new CollidingKey(3), 0));
+        for (int i = 0; i < 18; i++) {
+            assertTrue(colliding.remove(new CollidingKey(i), 5));
+        }
+        assertEquals(2, colliding.size());
+        assertEquals(6, colliding.computeIfPresent(new CollidingKey(19), (key, value) -> value + 1));
+    }
+
+    @Test
+    public void testViewsAreLive() {
+        Set<String> keys = map.keySet();
+        var values = map.values();
+        var entries = map.entrySet();
+        assertTrue(keys.isEmpty());
+
+        map.put("one", 1);
+        map.put(null, 0);
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("one"));
+        assertTrue(keys.contains(null));
+        assertTrue(values.contains(0));
+        assertTrue(entries.contains(Map.entry("one", 1)));
+        assertFalse(entries.contains(Map.entry("one", 2)));
+
+        assertTrue(keys.remove("one"));
+        assertFalse(keys.remove("one"));
+        assertFalse(map.containsKey("one"));
+        assertTrue(entries.remove(new java.util.AbstractMap.SimpleEntry<String, Integer>(null, 0)));
+        assertTrue(map.isEmpty());
+        assertSame(keys, map.keySet());
+    }
+
+    @Test
+    public void testIteratorRemoveAndSetValue() {
+        for (int i = 0; i < 10_000; i++) {
+            map.put("key" + i, i);
+        }
+        map.put(null, -1);
+
+        int seen = 0;
+        for (var iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            seen++;
+            if (entry.getValue() % 2 == 0) {
+                iterator.remove();
+            } else {
+                entry.setValue(entry.getValue() * 10);
+            }
+        }
+        assertEquals(10_001, seen);
+        assertEquals(5_001, map.size());
+        assertEquals(-10, map.get(null));
+        assertEquals(10, map.get("key1"));
+        assertNull(map.get("key2"));
+
+        var iterator = map.keySet().iterator();
+        assertThrows(IllegalStateException.class, iterator::remove);
+        map.values().removeIf(value -> value > 0);
+        assertEquals(1, map.size());
+        assertThrows(java.util.NoSuchElementException.class, () -> {
+            var it = map.values().iterator();
+            it.next();
+            it.next();
+        });
+    }
+
+    @Test
+    public void testIterateTreeBins() {
+        ShakurMap<CollidingKey, Integer> colliding = new ShakurMap<>();
+        for (int i = 0; i < 500; i++) {
+            colliding.put(new CollidingKey(i), i);
+        }
+        long sum = 0;
+        for (int value : colliding.values()) {
+            sum += value;
+        }
+        assertEquals(499 * 500 / 2, sum);
+        colliding.keySet().removeIf(key -> key.id >= 10);
+        assertEquals(10, colliding.size());
+    }
+
+    @Test
+    public void testBulkOperations() {
+        ShakurMap<Integer, Integer> numbers = new ShakurMap<>();
+        for (int i = 1; i <= 100_000; i++) {
+            numbers.put(i, i);
+        }
+        numbers.put(null, 0);
+
+        for (long threshold : new long[]{1, 1000, Long.MAX_VALUE}) {
+            java.util.concurrent.atomic.LongAdder sum = new java.util.concurrent.atomic.LongAdder();
+            numbers.forEach(threshold, (key, value) -> sum.add(value));
+            assertEquals(5_000_050_000L, sum.sum());
+
+            assertEquals(5_000_050_000L, numbers.reduceToLong(threshold, (key, value) -> value, 0L, Long::sum));
+            assertEquals(Integer.valueOf(100_000), numbers.<Integer>reduce(threshold, (key, value) -> value, Math::max));
+            assertEquals(Integer.valueOf(77_777), numbers.<Integer>search(threshold, (key, value) -> value == 77_777 ? key : null));
+            assertNull(numbers.search(threshold, (key, value) -> value < 0 ? key : null));
+        }
+
+        assertTrue(numbers.removeIf(1, (key, value) -> value % 2 == 1));
+        assertFalse(numbers.removeIf(1, (key, value) -> value % 2 == 1));
+        assertEquals(50_001, numbers.size());
+
+        numbers.replaceAll(1, (key, value) -> value * 2);
+        assertEquals(8, numbers.get(4));
+        assertEquals(0, numbers.get(null));
+        assertEquals(5_000_100_000L, numbers.reduceToLong(1, (key, value) -> value, 0L, Long::sum));
+        assertNull(new ShakurMap<Integer, Integer>().reduce(1, (key, value) -> value, Integer::sum));
+    }
+
+    @Test
+    public void testParallelStreams() {
+        for (int i = 0; i < 100_000; i++) {
+            map.put("key" + i, i);
+        }
+        map.put(null, -1);
+
+        assertEquals(100_001, map.keySet().parallelStream().count());
+        assertEquals(4_999_950_000L - 1, map.values().parallelStream().mapToLong(Integer::longValue).sum());
+        assertEquals(100_001, map.entrySet().parallelStream().map(Map.Entry::getKey).distinct().count());
+
+        var spliterator = map.keySet().spliterator();
+        assertTrue(spliterator.hasCharacteristics(java.util.Spliterator.CONCURRENT));
+        assertEquals(100_001, spliterator.estimateSize());
+        var prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        long[] count = new long[1];
+        prefix.forEachRemaining(key -> count[0]++);
+        spliterator.forEachRemaining(key -> count[0]++);
+        assertEquals(100_001, count[0]);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        ShakurMapMXBean stats = map.enableStatistics("test-" + System.nanoTime());
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+        }
+        map.get("key1");
+        map.remove("key2");
+        map.merge("key3", 1, Integer::sum);
+
+        assertEquals(100, stats.getWrites());
+        assertEquals(1, stats.getReads());
+        assertEquals(1, stats.getRemoves());
+        assertEquals(1, stats.getUpdates());
+        assertEquals(99, stats.getSize());
+        assertTrue(stats.getResizeCount() > 0);
+        assertTrue(stats.getTotalLockAcquisitions() >= 102);
+        assertEquals(stats.getTotalLockAcquisitions(), Arrays.stream(stats.getLockAcquisitions()).sum());
+        long[] histogram = stats.getChainLengthHistogram();
+        assertEquals(stats.getTableLength(), Arrays.stream(histogram).sum());
+        long entries = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            entries += i * histogram[i];
+        }
+        assertEquals(99, entries);
+
+        stats.reset();
+        assertEquals(0, stats.getWrites());
+        assertEquals(0, stats.getTotalLockAcquisitions());
+
+        map.disableStatistics();
+        map.put("more", 1);
+        assertEquals(0, stats.getWrites());
+    }
+
+    @Test
+    public void testShrinkAfterMassRemoval() {
+        ShakurMapMXBean stats = map.enableStatistics();
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, i);
+        }
+        int peak = stats.getTableLength();
+        for (int i = 0; i < 9900; i++) {
+            map.remove("key" + i);
+        }
+        assertTrue(stats.getTableLength() < peak);
+        for (int i = 9900; i < 10000; i++) {
+            assertEquals(i, map.get("key" + i));
+        }
+
+        map.trimToSize();
+        assertEquals(256, stats.getTableLength()); // 100 элементов при пороге 0.75
+        assertEquals(100, map.size());
+        assertEquals(100, map.keySet().size());
+
+        map.clear();
+        assertEquals(16, stats.getTableLength());
+        map.put("again", 1);
+        assertEquals(1, map.get("again"));
+    }
+
+    @Test
+    public void testShrinkWhenHashLowBitsAreNeverZero() {
+        // у ключей 64 * i + 1 младшие 6 бит хеша всегда 1: выборка по битам хеша не сработала бы ни разу
+        ShakurMap<Integer, Integer> sparse = new ShakurMap<>(16, 0.75f, 1);
+        ShakurMapMXBean stats = sparse.enableStatistics();
+        for (int i = 0; i < 1000; i++) {
+            sparse.put(64 * i + 1, i);
+        }
+        int peak = stats.getTableLength();
+        for (int i = 0; i < 500; i++) {
+            sparse.remove(64 * i + 1);
+        }
+        for (int i = 500; i < 990; i++) {
+            sparse.computeIfPresent(64 * i + 1, (k, v) -> null);
+        }
+        assertTrue(stats.getTableLength() < peak, () -> "table stayed at " + peak);
+        assertEquals(10, sparse.size());
+        assertEquals(995, sparse.get(64 * 995 + 1));
+    }
+
+    @Test
+    public void testSnapshotIsPointInTime() {
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, i);
+        }
+        map.put(null, -1);
+        Map<String, Integer> expected = new HashMap<>(map);
+
+        try (ShakurMap.Snapshot<String, Integer> snapshot = map.snapshot()) {
+            map.put("key0", 100);
+            map.remove("key1");
+            map.merge("key2", 1, Integer::sum);
+            map.put(null, -2);
+            for (int i = 1000; i < 5000; i++) { // ресайзы после снимка
+                map.put("key" + i, i);
+            }
+            assertEquals(expected, snapshot);
+            assertEquals(1001, snapshot.size());
+            assertEquals(0, snapshot.get("key0"));
+            assertEquals(1, snapshot.get("key1"));
+            assertEquals(-1, snapshot.get(null));
+            assertFalse(snapshot.containsKey("key1000"));
+
+            map.clear();
+            assertEquals(expected, snapshot);
+            assertThrows(UnsupportedOperationException.class, () -> snapshot.put("key", 1));
+        }
+
+        ShakurMap.Snapshot<String, Integer> closed = map.snapshot();
+        closed.close();
+        assertThrows(IllegalStateException.class, () -> closed.get("key0"));
+    }
+
+    @Test
+    public void testSnapshotOfCollidingKeys() {
+        ShakurMap<CollidingKey, Integer> colliding = new ShakurMap<>(100);
+        for (int i = 0; i < 50; i++) {
+            colliding.put(new CollidingKey(i), i);
+        }
+        try (ShakurMap.Snapshot<CollidingKey, Integer> snapshot = colliding.snapshot()) {
+            for (int i = 0; i < 50; i += 2) {
+                colliding.remove(new CollidingKey(i));
+            }
+            colliding.put(new CollidingKey(1), 100);
+            assertEquals(50, snapshot.size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, snapshot.get(new CollidingKey(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testGetOrLoad() {
+        map.put("present", 1);
+        assertEquals(1, map.getOrLoad("present", k -> fail("loaded present key")));
+        assertEquals(2, map.getOrLoad("absent", k -> 2));
+        assertEquals(2, map.get("absent"));
+
+        assertNull(map.getOrLoad("null", k -> null));
+        assertFalse(map.containsKey("null"));
+
+        assertThrows(IllegalStateException.class, () -> map.getOrLoad("failing", k -> {
+            throw new IllegalStateException("backend down");
+        }));
+        assertFalse(map.containsKey("failing")); // ошибка не кэшируется
+        assertEquals(3, map.getOrLoad("failing", k -> 3));
+    }
+
+    @Test
+    public void testRecursiveGetOrLoadFails() {
+        IllegalStateException e = assertTimeoutPreemptively(java.time.Duration.ofSeconds(10), () ->
+                assertThrows(IllegalStateException.class,
+                        () -> map.getOrLoad("self", k -> map.getOrLoad("self", k2 -> 1))));
+        assertTrue(e.getMessage().contains("Recursive"), e.getMessage());
+        assertFalse(map.containsKey("self"));
+        assertEquals(2, map.getOrLoad("self", k -> 2)); // загрузка снята, ключ грузится заново
+
+        // другой ключ из loader - не рекурсия
+        assertEquals(4, map.getOrLoad("outer", k -> map.getOrLoad("inner", k2 -> 3) + 1));
+        assertEquals(3, map.get("inner"));
+    }
+
+    @Test
+    public void testGetOrLoadAsync() throws Exception {
+        java.util.concurrent.CompletableFuture<Integer> backend = new java.util.concurrent.CompletableFuture<>();
+        java.util.concurrent.CompletableFuture<Integer> first = map.getOrLoadAsync("key", k -> backend);
+        java.util.concurrent.CompletableFuture<Integer> second = map.getOrLoadAsync("key", k -> fail("second load"));
+        assertFalse(first.isDone());
+        first.cancel(false); // копия: общая загрузка продолжается
+        backend.complete(7);
+        assertEquals(7, second.get());
+        assertEquals(7, map.get("key"));
+
+        java.util.concurrent.CompletableFuture<Integer> failed = map.getOrLoadAsync("bad",
+                k -> java.util.concurrent.CompletableFuture.failedFuture(new IllegalStateException("backend down")));
+        assertThrows(java.util.concurrent.ExecutionException.class, failed::get);
+        assertFalse(map.containsKey("bad"));
+        assertEquals(8, map.getOrLoadAsync("bad", k -> java.util.concurrent.CompletableFuture.completedFuture(8)).get());
+    }
+
+    @Test
+    public void testValueIndex() {
+        map.put("a", 1);
+        map.put("b", 1);
+        map.put(null, 2);
+        map.put("c", null);
+        assertEquals(Set.of("a", "b"), map.keysForValue(1)); // без индекса - обход
+
+        map.enableValueIndex();
+        assertEquals(Set.of("a", "b"), map.keysForValue(1));
+        assertEquals(Collections.singleton(null), map.keysForValue(2));
+        assertEquals(Set.of("c"), map.keysForValue(null));
+        assertTrue(map.containsValue(null));
+
+        map.put("a", 3);
+        map.merge("b", 10, Integer::sum);
+        assertFalse(map.containsValue(1));
+        assertTrue(map.containsValue(11));
+        map.compute("c", (k, v) -> 1);
+        assertFalse(map.containsValue(null));
+        map.remove(null);
+        assertFalse(map.containsValue(2));
+        map.replace("c", 1, 3);
+        map.putAll(Map.of("d", 3));
+        assertEquals(Set.of("a", "c", "d"), map.keysForValue(3));
+        map.removeAll(Arrays.asList("a", "d"));
+        assertEquals(Set.of("c"), map.keysForValue(3));
+
+        map.clear();
+        assertFalse(map.containsValue(3));
+        map.put("e", 5);
+        assertTrue(map.containsValue(5));
+
+        map.disableValueIndex();
+        assertTrue(map.containsValue(5));
+        assertEquals(Set.of("e"), map.keysForValue(5));
+    }
+
+    private static class PlainCollidingKey {
+        final int id;
+
+        PlainCollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PlainCollidingKey && ((PlainCollidingKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+
+    private static class CollidingKey extends PlainCollidingKey implements Comparable<CollidingKey> {
+
+        CollidingKey(int id) {
+            super(id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public int compareTo(CollidingKey other) {
+            return Integer.compare(id, other.id);
+        }
+    }
 }
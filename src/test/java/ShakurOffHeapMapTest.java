@@ -0,0 +1,202 @@
+import org.junit.jupiter.api.Test;
+import ru.shakur.ShakurOffHeapMap;
+import ru.shakur.ShakurSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurOffHeapMapTest {
+
+    private static final int THREAD_COUNT = 16;
+    private static final int ELEMENT_COUNT = 5_000;
+
+    @Test
+    public void testPutGetRemove() {
+        ShakurOffHeapMap<String, String> map = new ShakurOffHeapMap<>(ShakurSerializer.STRING, ShakurSerializer.STRING);
+        assertNull(map.get("one"));
+        assertNull(map.put("one", "1"));
+        assertEquals("1", map.put("one", "uno"));
+        assertEquals("uno", map.get("one"));
+        assertTrue(map.containsKey("one"));
+        assertNull(map.put("ключ", "значение"));
+        assertEquals("значение", map.get("ключ"));
+        assertEquals(2, map.size());
+
+        assertEquals("uno", map.remove("one"));
+        assertNull(map.remove("one"));
+        assertFalse(map.containsKey("one"));
+        assertEquals(1, map.size());
+        assertThrows(NullPointerException.class, () -> map.put("two", null));
+    }
+
+    @Test
+    public void testKeysWithCommonPrefixes() {
+        // ключи разной длины, отличающиеся и в 8-байтовых словах, и в хвосте
+        ShakurOffHeapMap<String, Integer> map = new ShakurOffHeapMap<>(ShakurSerializer.STRING, ShakurSerializer.INTEGER);
+        for (int i = 0; i < 2000; i++) {
+            map.put("common-prefix-" + i, i);
+            map.put("k" + i, -i);
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i, map.get("common-prefix-" + i));
+            assertEquals(-i, map.get("k" + i));
+        }
+        assertNull(map.get("common-prefix-"));
+        assertNull(map.get("common-prefix-20000"));
+        assertEquals(4000, map.size());
+    }
+
+    @Test
+    public void testValueGrowsAndShrinksAcrossBlockClasses() {
+        ShakurOffHeapMap<Long, byte[]> map = new ShakurOffHeapMap<>(ShakurSerializer.LONG, ShakurSerializer.BYTES, 4, 4096);
+        for (int length : new int[]{1, 100, 10_000, 3, 70_000, 0}) {
+            byte[] value = new byte[length];
+            Arrays.fill(value, (byte) length);
+            map.put(42L, value);
+            assertArrayEquals(value, map.get(42L));
+        }
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() {
+        ShakurOffHeapMap<Integer, byte[]> map = new ShakurOffHeapMap<>(ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        byte[] blob = new byte[500];
+        for (int i = 0; i < 10_000; i++) {
+            map.put(i, blob);
+        }
+        long capacity = map.offHeapCapacity();
+        long used = map.offHeapUsed();
+
+        // удаление и вставка того же объёма не должны выделять новые плиты
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10_000; i++) {
+                map.remove(i);
+            }
+            assertEquals(0, map.offHeapUsed());
+            for (int i = 0; i < 10_000; i++) {
+                map.put(i, blob);
+            }
+        }
+        assertEquals(capacity, map.offHeapCapacity());
+        assertEquals(used, map.offHeapUsed());
+        assertEquals(10_000, map.size());
+
+        int[] seen = new int[1];
+        map.forEach((key, value) -> {
+            assertEquals(500, value.length);
+            seen[0]++;
+        });
+        assertEquals(10_000, seen[0]);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.offHeapCapacity());
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void testBadSerializerIsRejected() {
+        ShakurSerializer<String> lying = new ShakurSerializer<>() {
+            @Override
+            public int sizeOf(String value) {
+                return value.length() + 1;
+            }
+
+            @Override
+            public void write(String value, ByteBuffer target) {
+                ShakurSerializer.STRING.write(value, target);
+            }
+
+            @Override
+            public String read(ByteBuffer source, int length) {
+                return ShakurSerializer.STRING.read(source, length);
+            }
+        };
+        ShakurOffHeapMap<String, String> map = new ShakurOffHeapMap<>(ShakurSerializer.STRING, lying);
+        assertThrows(IllegalStateException.class, () -> map.put("key", "value"));
+        assertEquals(0, map.offHeapUsed());
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testFailedOverwriteKeepsOldValue() {
+        // пишет половину значения и падает - на месте старого значения того же класса размера
+        ShakurSerializer<String> halfway = new ShakurSerializer<>() {
+            @Override
+            public int sizeOf(String value) {
+                return ShakurSerializer.STRING.sizeOf(value);
+            }
+
+            @Override
+            public void write(String value, ByteBuffer target) {
+                if (value.startsWith("bad")) {
+                    target.put((byte) 'X').put((byte) 'X');
+                    throw new IllegalArgumentException("cannot encode " + value);
+                }
+                ShakurSerializer.STRING.write(value, target);
+            }
+
+            @Override
+            public String read(ByteBuffer source, int length) {
+                return ShakurSerializer.STRING.read(source, length);
+            }
+        };
+        ShakurOffHeapMap<String, String> map = new ShakurOffHeapMap<>(ShakurSerializer.STRING, halfway);
+        map.put("key", "good1");
+        long used = map.offHeapUsed();
+        assertThrows(IllegalArgumentException.class, () -> map.put("key", "bad12"));
+        assertThrows(IllegalArgumentException.class, () -> map.put("key", "bad" + "x".repeat(1000)));
+        assertEquals("good1", map.get("key"));
+        assertEquals(used, map.offHeapUsed());
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testConcurrentPutGetRemove() throws InterruptedException {
+        ShakurOffHeapMap<Integer, String> map = new ShakurOffHeapMap<>(ShakurSerializer.INTEGER, ShakurSerializer.STRING);
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int threadId = i;
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < ELEMENT_COUNT; j++) {
+                        int key = threadId * ELEMENT_COUNT + j;
+                        map.put(key, "Value " + key);
+                        if (!("Value " + key).equals(map.get(key))) {
+                            failures.incrementAndGet();
+                        }
+                        if (j % 2 == 0) {
+                            map.remove(key);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        latch.await();
+
+        assertEquals(0, failures.get());
+        assertEquals(THREAD_COUNT * ELEMENT_COUNT / 2, map.size());
+        assertEquals("Value 1", map.get(1));
+        assertNull(map.get(2));
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
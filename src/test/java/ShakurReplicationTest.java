@@ -0,0 +1,174 @@
+import org.junit.jupiter.api.Test;
+import ru.shakur.ShakurChangeFeed;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurReplication;
+import ru.shakur.ShakurSerializer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurReplicationTest {
+
+    private static final int REPLICA_COUNT = 3;
+    private static final int THREAD_COUNT = 4;
+    private static final int ELEMENT_COUNT = 5_000;
+
+    private static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Test
+    public void testReplicasCatchUpFromSnapshotAndStream() throws Exception {
+        ShakurMap<String, String> map = new ShakurMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        map.put(null, "null key");
+
+        try (ShakurReplication.Primary<String, String> primary = ShakurReplication.startPrimary(map, loopback(),
+                ShakurSerializer.STRING, ShakurSerializer.STRING)) {
+            List<ShakurReplication.Replica<String, String>> replicas = new ArrayList<>();
+            for (int i = 0; i < REPLICA_COUNT; i++) {
+                replicas.add(ShakurReplication.connect(primary.address(), ShakurSerializer.STRING, ShakurSerializer.STRING));
+            }
+
+            map.put("key0", "changed");
+            map.remove("key1");
+            map.put("late", "after connect");
+
+            for (ShakurReplication.Replica<String, String> replica : replicas) {
+                assertTrue(replica.awaitPosition(primary.sequence(), 10, TimeUnit.SECONDS));
+                assertEquals(new HashMap<>(map), new HashMap<>(replica.map()));
+                assertEquals("changed", replica.map().get("key0"));
+                assertEquals("null key", replica.map().get(null));
+                assertEquals(0, replica.lag());
+                replica.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReplicasConvergeUnderConcurrentWrites() throws Exception {
+        ShakurMap<Integer, Integer> map = new ShakurMap<>();
+        // лента меньше потока записей: реплики отстают и пересинхронизируются снимками
+        try (ShakurReplication.Primary<Integer, Integer> primary = ShakurReplication.startPrimary(map, loopback(),
+                ShakurSerializer.INTEGER, ShakurSerializer.INTEGER, 256)) {
+            List<ShakurReplication.Replica<Integer, Integer>> replicas = new ArrayList<>();
+            for (int i = 0; i < REPLICA_COUNT; i++) {
+                replicas.add(ShakurReplication.connect(primary.address(), ShakurSerializer.INTEGER, ShakurSerializer.INTEGER));
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+            CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                final int threadId = i;
+                executor.submit(() -> {
+                    try {
+                        for (int j = 0; j < ELEMENT_COUNT; j++) {
+                            int key = j % 2000;
+                            if (j % 5 == threadId) {
+                                map.remove(key);
+                            } else {
+                                map.put(key, threadId * ELEMENT_COUNT + j);
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            long sequence = primary.sequence();
+            for (ShakurReplication.Replica<Integer, Integer> replica : replicas) {
+                assertTrue(replica.awaitPosition(sequence, 30, TimeUnit.SECONDS));
+                assertTrue(replica.isConnected());
+                assertEquals(new HashMap<>(map), new HashMap<>(replica.map()));
+            }
+            assertEquals(REPLICA_COUNT, primary.replicaCount());
+            assertEquals(0, primary.maxLag());
+
+            for (ShakurReplication.Replica<Integer, Integer> replica : replicas) {
+                replica.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReceiveFailureIsReported() throws Exception {
+        // поддельная основная карта шлёт кадр CHANGES без тела
+        try (java.nio.channels.ServerSocketChannel server = java.nio.channels.ServerSocketChannel.open().bind(loopback())) {
+            ShakurReplication.Replica<String, String> replica = ShakurReplication.connect(
+                    (InetSocketAddress) server.getLocalAddress(), ShakurSerializer.STRING, ShakurSerializer.STRING);
+            try (java.nio.channels.SocketChannel peer = server.accept()) {
+                peer.write(java.nio.ByteBuffer.allocate(5).putInt(1).put((byte) 4).flip());
+                assertFalse(replica.awaitPosition(0, 10, TimeUnit.SECONDS));
+            }
+            assertFalse(replica.isConnected());
+            assertInstanceOf(java.nio.BufferUnderflowException.class, replica.failure().getCause());
+        }
+
+        // реплика не может прочитать значение: разрыв с причиной
+        ShakurSerializer<String> broken = new ShakurSerializer<>() {
+            @Override
+            public int sizeOf(String value) {
+                return ShakurSerializer.STRING.sizeOf(value);
+            }
+
+            @Override
+            public void write(String value, java.nio.ByteBuffer target) {
+                ShakurSerializer.STRING.write(value, target);
+            }
+
+            @Override
+            public String read(java.nio.ByteBuffer source, int length) {
+                throw new IllegalStateException("cannot decode");
+            }
+        };
+        ShakurMap<String, String> map = new ShakurMap<>();
+        map.put("key", "value");
+        try (ShakurReplication.Primary<String, String> primary = ShakurReplication.startPrimary(map, loopback(),
+                ShakurSerializer.STRING, ShakurSerializer.STRING)) {
+            ShakurReplication.Replica<String, String> replica = ShakurReplication.connect(primary.address(),
+                    ShakurSerializer.STRING, broken);
+            assertFalse(replica.awaitPosition(primary.sequence(), 10, TimeUnit.SECONDS));
+            assertFalse(replica.isConnected());
+            assertInstanceOf(IllegalStateException.class, replica.failure().getCause());
+        }
+    }
+
+    @Test
+    public void testCloseStopsThreadsAndReleasesFeed() throws Exception {
+        ShakurMap<String, String> map = new ShakurMap<>();
+        ShakurReplication.Primary<String, String> primary = ShakurReplication.startPrimary(map, loopback(),
+                ShakurSerializer.STRING, ShakurSerializer.STRING);
+        ShakurReplication.Replica<String, String> replica = ShakurReplication.connect(primary.address(),
+                ShakurSerializer.STRING, ShakurSerializer.STRING);
+        map.put("key", "value");
+        assertTrue(replica.awaitPosition(primary.sequence(), 10, TimeUnit.SECONDS));
+        primary.close();
+        replica.close();
+
+        assertTrue(Thread.getAllStackTraces().keySet().stream()
+                .noneMatch(t -> t.getName().startsWith("shakur-replication-sender")
+                        || t.getName().startsWith("shakur-replication-acceptor")));
+        // лента, включённая startPrimary, выключена: включается новая с другой ёмкостью
+        ShakurChangeFeed<String, String> own = map.enableChangeFeed(8);
+        assertEquals(8, own.capacity());
+
+        // чужую ленту close не трогает
+        ShakurReplication.startPrimary(map, loopback(), ShakurSerializer.STRING, ShakurSerializer.STRING).close();
+        assertSame(own, map.enableChangeFeed(8));
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.shakur.ShakurMap;
+import ru.shakur.ShakurSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShakurSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        ShakurMap<String, Long> map = new ShakurMap<>();
+        for (long i = 0; i < 100_000; i++) {
+            map.put("key" + i, i);
+        }
+        map.put(null, -1L);
+        map.put("empty", null);
+
+        Path file = dir.resolve("map.snapshot");
+        assertEquals(100_002, map.snapshotTo(file, ShakurSerializer.STRING, ShakurSerializer.LONG));
+        assertFalse(Files.exists(dir.resolve("map.snapshot.tmp")));
+
+        ShakurMap<String, Long> loaded = ShakurMap.loadFrom(file, ShakurSerializer.STRING, ShakurSerializer.LONG);
+        assertEquals(100_002, loaded.size());
+        assertEquals(-1L, loaded.get(null));
+        assertTrue(loaded.containsKey("empty"));
+        assertNull(loaded.get("empty"));
+        for (long i = 0; i < 100_000; i++) {
+            assertEquals(i, loaded.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testSnapshotReplacesOldFileAndHandlesLargeValues() throws IOException {
+        Path file = dir.resolve("blobs.snapshot");
+        ShakurMap<Integer, byte[]> map = new ShakurMap<>();
+        map.put(1, new byte[10]);
+        map.snapshotTo(file, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+
+        // значение больше буфера записи
+        map.put(2, new byte[300_000]);
+        map.snapshotTo(file, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+
+        ShakurMap<Integer, byte[]> loaded = ShakurMap.loadFrom(file, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        assertEquals(2, loaded.size());
+        assertEquals(300_000, loaded.get(2).length);
+    }
+
+    @Test
+    public void testEmptyMap() throws IOException {
+        Path file = dir.resolve("empty.snapshot");
+        assertEquals(0, new ShakurMap<String, String>().snapshotTo(file, ShakurSerializer.STRING, ShakurSerializer.STRING));
+        assertTrue(ShakurMap.loadFrom(file, ShakurSerializer.STRING, ShakurSerializer.STRING).isEmpty());
+    }
+
+    @Test
+    public void testCorruptedFilesAreRejected() throws IOException {
+        Path garbage = dir.resolve("garbage.snapshot");
+        Files.write(garbage, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        assertThrows(IOException.class, () -> ShakurMap.loadFrom(garbage, ShakurSerializer.STRING, ShakurSerializer.STRING));
+
+        // заголовок обещает больше записей, чем вмещает файл: отказ до создания таблицы
+        Path huge = dir.resolve("huge.snapshot");
+        Files.write(huge, java.nio.ByteBuffer.allocate(32).putInt(0x53484B4D).putInt(1).putLong(1L << 30).array());
+        assertThrows(IOException.class, () -> ShakurMap.loadFrom(huge, ShakurSerializer.STRING, ShakurSerializer.STRING));
+
+        ShakurMap<String, String> map = new ShakurMap<>();
+        map.put("key", "value");
+        Path file = dir.resolve("truncated.snapshot");
+        map.snapshotTo(file, ShakurSerializer.STRING, ShakurSerializer.STRING);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, java.util.Arrays.copyOf(bytes, bytes.length - 2));
+        assertThrows(IOException.class, () -> ShakurMap.loadFrom(file, ShakurSerializer.STRING, ShakurSerializer.STRING));
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws IOException {
+        ShakurMap<String, String> map = new ShakurMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            map.put("key" + i, "значение " + i + " \uD83D\uDE00");
+        }
+        map.put(null, "null key");
+        map.put("empty", null);
+        map.put("large", "x".repeat(200_000)); // больше блока
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(50_003, map.writeTo(out, ShakurSerializer.STRING, ShakurSerializer.STRING));
+
+        ShakurMap<String, String> loaded = ShakurMap.readFrom(new ByteArrayInputStream(out.toByteArray()),
+                ShakurSerializer.STRING, ShakurSerializer.STRING);
+        assertEquals(new java.util.HashMap<>(map), new java.util.HashMap<>(loaded));
+        assertTrue(loaded.containsKey("empty"));
+        assertEquals("null key", loaded.get(null));
+    }
+
+    @Test
+    public void testStreamReadsOnlyItsOwnBytes() throws IOException {
+        ShakurMap<Integer, byte[]> first = new ShakurMap<>();
+        ShakurMap<Integer, byte[]> second = new ShakurMap<>();
+        for (int i = 0; i < 1000; i++) {
+            first.put(i, new byte[i % 17]);
+            second.put(-i, new byte[3]);
+        }
+
+        // два образа подряд и хвост в одном потоке
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        first.writeTo(out, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        new ShakurMap<Integer, byte[]>().writeTo(out, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        second.writeTo(out, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        out.write(42);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        ShakurMap<Integer, byte[]> loaded = ShakurMap.readFrom(in, ShakurSerializer.INTEGER, ShakurSerializer.BYTES);
+        assertEquals(1000, loaded.size());
+        assertEquals(999 % 17, loaded.get(999).length);
+        assertTrue(ShakurMap.readFrom(in, ShakurSerializer.INTEGER, ShakurSerializer.BYTES).isEmpty());
+        assertEquals(1000, ShakurMap.readFrom(in, ShakurSerializer.INTEGER, ShakurSerializer.BYTES).size());
+        assertEquals(42, in.read());
+    }
+
+    @Test
+    public void testTruncatedStreamIsRejected() throws IOException {
+        ShakurMap<Long, Long> map = new ShakurMap<>();
+        for (long i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.writeTo(out, ShakurSerializer.LONG, ShakurSerializer.LONG);
+        byte[] bytes = out.toByteArray();
+        assertThrows(IOException.class, () -> ShakurMap.readFrom(
+                new ByteArrayInputStream(java.util.Arrays.copyOf(bytes, bytes.length - 5)),
+                ShakurSerializer.LONG, ShakurSerializer.LONG));
+        assertThrows(IOException.class, () -> ShakurMap.readFrom(
+                new ByteArrayInputStream(new byte[16]), ShakurSerializer.LONG, ShakurSerializer.LONG));
+
+        // заголовок с огромным числом записей: таблица под него не создаётся, образ отвергается по концу
+        byte[] huge = java.nio.ByteBuffer.allocate(17).putInt(0x53484B4D).putInt(2).putLong(Integer.MAX_VALUE)
+                .put((byte) 0).array();
+        assertThrows(IOException.class, () -> ShakurMap.readFrom(
+                new ByteArrayInputStream(huge), ShakurSerializer.LONG, ShakurSerializer.LONG));
+    }
+}